@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.EdgeQuery;
+import com.twitter.flockdb.thrift.EdgeResults;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.contains_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.contains_metadata_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.count2_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.execute_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.get_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.get_metadata_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.select2_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.select_edges_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncIface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.newSetFromMap;
+import static org.apache.thrift.transport.TTransportException.TIMED_OUT;
+
+/**
+ * Executes FlockDB calls over up to {@code maxConnections} non blocking connections, which are all served by the
+ * selector thread of a single {@link org.apache.thrift.async.TAsyncClientManager}. Calls exceeding the available
+ * connections are queued and started as soon as a connection becomes idle, so no thread is ever blocked waiting for
+ * FlockDB. Calls submitted with a current {@link Deadline} fail instead of being started once it passed, and their
+ * timeout is limited to the remaining time.
+ */
+class AsyncFlockClient implements Closeable {
+	private final AsyncConnectionFactory connectionFactory;
+	private final int maxConnections;
+
+	private final Queue<Call<?, ?>> pendingCalls = new ConcurrentLinkedQueue<>();
+	private final Queue<AsyncFlockConnection> idleConnections = new ConcurrentLinkedQueue<>();
+	private final Set<AsyncFlockConnection> openConnections =
+		newSetFromMap(new ConcurrentHashMap<AsyncFlockConnection, Boolean>());
+	private final AtomicInteger reservedConnections = new AtomicInteger();
+	private volatile boolean closed;
+
+	AsyncFlockClient(AsyncConnectionFactory connectionFactory, int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("Illegal number of async connections: " + maxConnections);
+		}
+
+		this.connectionFactory = connectionFactory;
+		this.maxConnections = maxConnections;
+	}
+
+	ListenableFuture<Boolean> contains(final long sourceId, final int graphId, final long destinationId) {
+		return submit(new Call<contains_call, Boolean>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.contains(sourceId, graphId, destinationId, this);
+			}
+
+			@Override
+			Boolean getResult(contains_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<Edge> get(final long sourceId, final int graphId, final long destinationId) {
+		return submit(new Call<get_call, Edge>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.get(sourceId, graphId, destinationId, this);
+			}
+
+			@Override
+			Edge getResult(get_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<Metadata> getMetadata(final long sourceId, final int graphId) {
+		return submit(new Call<get_metadata_call, Metadata>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.get_metadata(sourceId, graphId, this);
+			}
+
+			@Override
+			Metadata getResult(get_metadata_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<Boolean> containsMetadata(final long sourceId, final int graphId) {
+		return submit(new Call<contains_metadata_call, Boolean>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.contains_metadata(sourceId, graphId, this);
+			}
+
+			@Override
+			Boolean getResult(contains_metadata_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<List<Results>> select2(final List<SelectQuery> queries) {
+		return submit(new Call<select2_call, List<Results>>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.select2(queries, this);
+			}
+
+			@Override
+			List<Results> getResult(select2_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<ByteBuffer> count2(final List<List<SelectOperation>> queries) {
+		return submit(new Call<count2_call, ByteBuffer>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.count2(queries, this);
+			}
+
+			@Override
+			ByteBuffer getResult(count2_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<List<EdgeResults>> selectEdges(final List<EdgeQuery> queries) {
+		return submit(new Call<select_edges_call, List<EdgeResults>>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.select_edges(queries, this);
+			}
+
+			@Override
+			List<EdgeResults> getResult(select_edges_call response) throws TException, FlockException {
+				return response.getResult();
+			}
+		});
+	}
+
+	ListenableFuture<Void> execute(final ExecuteOperations operations) {
+		return submit(new Call<execute_call, Void>() {
+			@Override
+			void start(AsyncIface client) throws TException {
+				client.execute(operations, this);
+			}
+
+			@Override
+			Void getResult(execute_call response) throws TException, FlockException {
+				response.getResult();
+				return null;
+			}
+		});
+	}
+
+	int getOpenConnections() {
+		return openConnections.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		for (AsyncFlockConnection connection : openConnections) {
+			connection.close();
+		}
+
+		while (!pendingCalls.isEmpty()) {
+			failNextPendingCall(new IOException("The async FlockDB client was closed"));
+		}
+	}
+
+	private <T> ListenableFuture<T> submit(Call<?, T> call) {
+		if (closed) {
+			call.future.setException(new FlockDBException(new IOException("The async FlockDB client was closed")));
+			return call.future;
+		}
+
+		pendingCalls.offer(call);
+		dispatch();
+		return call.future;
+	}
+
+	/**
+	 * Starts pending calls on idle (or newly opened) connections, until either no more calls are pending or all
+	 * connections are busy. Both submitting a call and releasing a connection end with a dispatch, so a call can never
+	 * get stuck in the queue while a connection is idle.
+	 */
+	private void dispatch() {
+		while (!pendingCalls.isEmpty()) {
+			AsyncFlockConnection connection = idleConnections.poll();
+			if (connection == null) {
+				try {
+					connection = tryToOpenConnection();
+				} catch (IOException e) {
+					failNextPendingCall(e);
+					continue;
+				}
+
+				if (connection == null) {
+					return;
+				}
+			}
+
+			Call<?, ?> call = pendingCalls.poll();
+			if (call == null) {
+				idleConnections.offer(connection);
+				continue;
+			}
+
+			if (call.deadline != null && call.deadline.isExpired()) {
+				idleConnections.offer(connection);
+				call.future.setException(new FlockDBException(
+					new TTransportException(TIMED_OUT, "The deadline passed while the call was queued")));
+				continue;
+			}
+
+			call.connection = connection;
+			try {
+				connection.limitTimeoutTo(call.deadline);
+				call.start(connection.getClient());
+			} catch (TException | RuntimeException e) {
+				discard(connection);
+				call.future.setException(new FlockDBException(e));
+			}
+		}
+	}
+
+	private AsyncFlockConnection tryToOpenConnection() throws IOException {
+		int reserved;
+		do {
+			reserved = reservedConnections.get();
+			if (reserved >= maxConnections) {
+				return null;
+			}
+		} while (!reservedConnections.compareAndSet(reserved, reserved + 1));
+
+		try {
+			AsyncFlockConnection connection = connectionFactory.openConnection();
+			openConnections.add(connection);
+			return connection;
+		} catch (IOException | RuntimeException e) {
+			reservedConnections.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void failNextPendingCall(Exception e) {
+		Call<?, ?> call = pendingCalls.poll();
+		if (call != null) {
+			call.future.setException(new FlockDBException(e));
+		}
+	}
+
+	private void release(AsyncFlockConnection connection) {
+		if (closed) {
+			discard(connection);
+			return;
+		}
+
+		idleConnections.offer(connection);
+		dispatch();
+	}
+
+	private void discard(AsyncFlockConnection connection) {
+		if (openConnections.remove(connection)) {
+			reservedConnections.decrementAndGet();
+		}
+		connection.close();
+	}
+
+	/**
+	 * A single FlockDB call, which is its own completion callback. The connection it has been started on is released
+	 * as soon as a response arrived, and discarded if the call failed on the transport level.
+	 */
+	private abstract class Call<C, T> implements AsyncMethodCallback<C> {
+		final SettableFuture<T> future = SettableFuture.create();
+		final Deadline deadline = Deadline.current();
+		AsyncFlockConnection connection;
+
+		abstract void start(AsyncIface client) throws TException;
+
+		abstract T getResult(C response) throws TException, FlockException;
+
+		@Override
+		public void onComplete(C response) {
+			T result;
+			try {
+				result = getResult(response);
+			} catch (TException | FlockException e) {
+				release(connection);
+				future.setException(new FlockDBException(e));
+				return;
+			} catch (RuntimeException e) {
+				// Must not escape to the selector thread, and the connection may not have consumed the whole response
+				discard(connection);
+				future.setException(new FlockDBException(e));
+				dispatch();
+				return;
+			}
+
+			release(connection);
+			future.set(result);
+		}
+
+		@Override
+		public void onError(Exception e) {
+			discard(connection);
+			future.setException(new FlockDBException(e));
+			dispatch();
+		}
+	}
+}
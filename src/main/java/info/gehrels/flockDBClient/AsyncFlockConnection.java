@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient;
+import com.twitter.flockdb.thrift.FlockDB.AsyncIface;
+import org.apache.thrift.async.TAsyncClient;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TTransport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A single non blocking connection to a FlockDB server. Like all Thrift async clients, it can only have one call in
+ * flight at a time, but it does not block any thread while doing so.
+ */
+class AsyncFlockConnection implements Closeable {
+	private final AsyncIface client;
+	private final TTransport transport;
+	private final long timeoutInMilliSeconds;
+
+	AsyncFlockConnection(AsyncIface client, TTransport transport) {
+		this(client, transport, 0);
+	}
+
+	private AsyncFlockConnection(AsyncIface client, TTransport transport, long timeoutInMilliSeconds) {
+		this.client = client;
+		this.transport = transport;
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+	}
+
+	static AsyncFlockConnection open(TAsyncClientManager clientManager, String hostname, int port,
+	                                 int timeoutInMilliSeconds) throws IOException {
+		TNonblockingSocket transport = new TNonblockingSocket(hostname, port, timeoutInMilliSeconds);
+		AsyncClient client = new AsyncClient(new TBinaryProtocol.Factory(), clientManager, transport);
+		client.setTimeout(timeoutInMilliSeconds);
+		return new AsyncFlockConnection(client, transport, timeoutInMilliSeconds);
+	}
+
+	/**
+	 * Lowers the timeout of the next call to the time remaining until the deadline, or resets it to the configured one
+	 * if there is no deadline.
+	 */
+	void limitTimeoutTo(Deadline deadline) {
+		if (!(client instanceof TAsyncClient)) {
+			return;
+		}
+
+		long timeout = timeoutInMilliSeconds;
+		if (deadline != null) {
+			long remaining = Math.max(1, NANOSECONDS.toMillis(deadline.remainingNanos()));
+			if (timeout <= 0 || remaining < timeout) {
+				timeout = remaining;
+			}
+		}
+		((TAsyncClient) client).setTimeout(timeout);
+	}
+
+	AsyncIface getClient() {
+		return client;
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.Metadata;
+
+/**
+ * Non blocking variants of the single edge and single node operations of {@link FlockDB}. All returned futures fail
+ * with a {@link FlockDBException} if the call failed.
+ */
+public class AsyncFlockDB {
+	private final AsyncFlockClient asyncFlockClient;
+	private final long timeoutInMilliSeconds;
+
+	AsyncFlockDB(AsyncFlockClient asyncFlockClient, long timeoutInMilliSeconds) {
+		this.asyncFlockClient = asyncFlockClient;
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+	}
+
+	public ListenableFuture<Boolean> contains(long sourceId, int graphId, long destinationId) {
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			return asyncFlockClient.contains(sourceId, graphId, destinationId);
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+
+	public ListenableFuture<Edge> get(long sourceId, int graphId, long destinationId) {
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			return asyncFlockClient.get(sourceId, graphId, destinationId);
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+
+	public ListenableFuture<Metadata> getMetadata(long sourceId, int graphId) {
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			return asyncFlockClient.getMetadata(sourceId, graphId);
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+
+	public ListenableFuture<Boolean> containsMetadata(long sourceId, int graphId) {
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			return asyncFlockClient.containsMetadata(sourceId, graphId);
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Tells how many edges a {@link BulkLoader} loaded, using how many calls, and how long it took.
+ */
+public final class BulkLoadResult {
+	private final long edges;
+	private final long calls;
+	private final long elapsedNanos;
+
+	BulkLoadResult(long edges, long calls, long elapsedNanos) {
+		this.edges = edges;
+		this.calls = calls;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getEdges() {
+		return edges;
+	}
+
+	public long getCalls() {
+		return calls;
+	}
+
+	public long getElapsedMilliSeconds() {
+		return NANOSECONDS.toMillis(elapsedNanos);
+	}
+
+	public double getEdgesPerSecond() {
+		return elapsedNanos == 0 ? 0 : edges * (double) SECONDS.toNanos(1) / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d edges in %d calls within %.1fs (%.0f edges/s)", edges, calls,
+		                     elapsedNanos / (double) SECONDS.toNanos(1), getEdgesPerSecond());
+	}
+}
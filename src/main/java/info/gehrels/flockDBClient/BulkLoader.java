@@ -0,0 +1,278 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.twitter.flockdb.thrift.Priority;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static info.gehrels.flockDBClient.Direction.OUTGOING;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Adds large numbers of edges read from a file. Consecutive edges with the same source node, graph and position are
+ * added by a single operation, and up to {@code edgesPerCall} edges are sent per call. At most {@code parallelCalls}
+ * calls are outstanding at the same time, reading the file pauses until one of them completed. Loading stops at the
+ * first failed call, so the {@link FlockDB} instance should have been built to retry or to be shared between threads
+ * (see {@link FlockDBBuilder}), if {@code parallelCalls} is greater than one.
+ * <p/>
+ * Two file formats are supported:
+ * <ul>
+ * <li>CSV files with one edge per line: {@code sourceId,graphId,destinationId[,position]}. Empty lines and lines
+ * starting with {@code #} are skipped. Edges without position get the time the load started at.</li>
+ * <li>Binary files with one 28 byte record per edge: source id (8 bytes), destination id (8 bytes), position (8 bytes)
+ * and graph id (4 bytes), all little endian. These files are memory mapped instead of being read.</li>
+ * </ul>
+ */
+public class BulkLoader {
+	static final int BINARY_RECORD_SIZE = 28;
+	private static final int MAPPED_RECORDS = (64 * 1024 * 1024) / BINARY_RECORD_SIZE;
+
+	private final FlockDB flockDB;
+	private Priority priority = Priority.Low;
+	private int edgesPerCall = 10000;
+	private int parallelCalls = 4;
+
+	public BulkLoader(FlockDB flockDB) {
+		this.flockDB = flockDB;
+	}
+
+	public BulkLoader withPriority(Priority priority) {
+		this.priority = priority;
+		return this;
+	}
+
+	public BulkLoader withEdgesPerCall(int edgesPerCall) {
+		this.edgesPerCall = edgesPerCall;
+		return this;
+	}
+
+	public BulkLoader withParallelCalls(int parallelCalls) {
+		this.parallelCalls = parallelCalls;
+		return this;
+	}
+
+	public BulkLoadResult loadCsv(File file) throws IOException {
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"))) {
+			return loadCsv(reader);
+		}
+	}
+
+	public BulkLoadResult loadCsv(Reader reader) throws IOException {
+		Load load = new Load();
+		try {
+			BufferedReader lines = new BufferedReader(reader);
+			long defaultPosition = System.currentTimeMillis();
+			int lineNumber = 0;
+			String line;
+			while ((line = lines.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] fields = line.split(",");
+				if (fields.length < 3 || fields.length > 4) {
+					throw new IOException("Malformed edge in line " + lineNumber + ": " + line);
+				}
+				try {
+					load.add(Long.parseLong(fields[0].trim()),
+					         Integer.parseInt(fields[1].trim()),
+					         Long.parseLong(fields[2].trim()),
+					         fields.length == 4 ? Long.parseLong(fields[3].trim()) : defaultPosition);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed edge in line " + lineNumber + ": " + line, e);
+				}
+			}
+			return load.finish();
+		} finally {
+			load.close();
+		}
+	}
+
+	public BulkLoadResult loadBinary(File file) throws IOException {
+		Load load = new Load();
+		try (FileInputStream in = new FileInputStream(file)) {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size % BINARY_RECORD_SIZE != 0) {
+				throw new IOException("The size of " + file + " is no multiple of the record size");
+			}
+
+			for (long offset = 0; offset < size; offset += (long) MAPPED_RECORDS * BINARY_RECORD_SIZE) {
+				MappedByteBuffer records =
+					channel.map(READ_ONLY, offset, Math.min((long) MAPPED_RECORDS * BINARY_RECORD_SIZE, size - offset));
+				records.order(ByteOrder.LITTLE_ENDIAN);
+				while (records.hasRemaining()) {
+					long sourceId = records.getLong();
+					long destinationId = records.getLong();
+					long position = records.getLong();
+					load.add(sourceId, records.getInt(), destinationId, position);
+				}
+			}
+			return load.finish();
+		} finally {
+			load.close();
+		}
+	}
+
+	/**
+	 * Usage: {@code BulkLoader <hostname> <port> <csv|binary> <file> [parallelCalls]}
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("Usage: BulkLoader <hostname> <port> <csv|binary> <file> [parallelCalls]");
+			System.exit(1);
+		}
+
+		int parallelCalls = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+		FlockDB flockDB = new FlockDBBuilder(args[0], Integer.parseInt(args[1]))
+			.withConnectionPoolSize(parallelCalls, parallelCalls)
+			.withTimeout(60000)
+			.build();
+		try {
+			BulkLoader loader = new BulkLoader(flockDB).withParallelCalls(parallelCalls);
+			File file = new File(args[3]);
+			System.out.println("binary".equals(args[2]) ? loader.loadBinary(file) : loader.loadCsv(file));
+		} finally {
+			flockDB.close();
+		}
+	}
+
+	/**
+	 * The state of a single load: the group of edges currently being collected, the call currently being built and
+	 * the calls in flight.
+	 */
+	private final class Load {
+		private final long start = System.nanoTime();
+		private final ExecutorService executor = Executors.newFixedThreadPool(
+			parallelCalls, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FlockDB bulk loader %d").build());
+		private final Semaphore callPermits = new Semaphore(parallelCalls);
+		private final AtomicLong loadedEdges = new AtomicLong();
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+		private ExecutionBuilder call = flockDB.batchExecution(priority);
+		private int edgesInCall;
+
+		private long groupSourceId;
+		private int groupGraphId;
+		private long groupPosition;
+		private long[] groupDestinationIds = new long[16];
+		private int groupSize;
+
+		void add(long sourceId, int graphId, long destinationId, long position) {
+			if (groupSize > 0 && (sourceId != groupSourceId || graphId != groupGraphId || position != groupPosition)) {
+				closeGroup();
+			}
+			if (groupSize == 0) {
+				groupSourceId = sourceId;
+				groupGraphId = graphId;
+				groupPosition = position;
+			}
+			if (groupSize == groupDestinationIds.length) {
+				long[] grown = new long[groupSize * 2];
+				System.arraycopy(groupDestinationIds, 0, grown, 0, groupSize);
+				groupDestinationIds = grown;
+			}
+			groupDestinationIds[groupSize++] = destinationId;
+
+			if (edgesInCall + groupSize >= edgesPerCall) {
+				closeGroup();
+				send();
+			}
+		}
+
+		BulkLoadResult finish() {
+			closeGroup();
+			send();
+			callPermits.acquireUninterruptibly(parallelCalls);
+			callPermits.release(parallelCalls);
+			throwIfFailed();
+			return new BulkLoadResult(loadedEdges.get(), calls.get(), System.nanoTime() - start);
+		}
+
+		void close() {
+			executor.shutdown();
+		}
+
+		private void closeGroup() {
+			if (groupSize > 0) {
+				long[] destinationIds = new long[groupSize];
+				System.arraycopy(groupDestinationIds, 0, destinationIds, 0, groupSize);
+				call.add(groupSourceId, groupGraphId, groupPosition, OUTGOING, destinationIds);
+				edgesInCall += groupSize;
+				groupSize = 0;
+			}
+		}
+
+		private void send() {
+			if (edgesInCall == 0) {
+				return;
+			}
+
+			final ExecutionBuilder sentCall = call;
+			final int sentEdges = edgesInCall;
+			call = flockDB.batchExecution(priority);
+			edgesInCall = 0;
+
+			callPermits.acquireUninterruptibly();
+			if (failure.get() != null) {
+				callPermits.release();
+				throwIfFailed();
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sentCall.execute();
+						loadedEdges.addAndGet(sentEdges);
+						calls.incrementAndGet();
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						callPermits.release();
+					}
+				}
+			});
+		}
+
+		private void throwIfFailed() {
+			RuntimeException e = failure.get();
+			if (e != null) {
+				throw e;
+			}
+		}
+	}
+}
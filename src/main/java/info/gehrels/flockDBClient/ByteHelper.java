@@ -28,40 +28,46 @@ import static org.apache.commons.lang.ArrayUtils.isNotEmpty;
  * some convenience helper methods to convert long[] to ByteBuffer and vice versa.
  */
 final class ByteHelper {
+	static final int BYTES_PER_ID = Long.SIZE / 8;
+
+	// Bulk copies through a LongBuffer view only pay off once the view's allocation is amortized over some ids
+	private static final int BULK_COPY_THRESHOLD = 16;
+
+	private ByteHelper() {
+	}
+
 	static ByteBuffer asByteBufferOrNull(long... destinationIds) {
-		ByteBuffer buf = null;
-		if (isNotEmpty(destinationIds)) {
-			buf = ByteBuffer.wrap(new byte[destinationIds.length * (Long.SIZE / 8)]);
-			buf.order(ByteOrder.LITTLE_ENDIAN);
+		return isNotEmpty(destinationIds) ? asByteBuffer(destinationIds) : null;
+	}
+
+	static ByteBuffer asByteBuffer(long... destinationIds) {
+		ByteBuffer buf = ByteBuffer.wrap(new byte[destinationIds.length * BYTES_PER_ID]).order(ByteOrder.LITTLE_ENDIAN);
+		if (destinationIds.length < BULK_COPY_THRESHOLD) {
 			for (long destinationId : destinationIds) {
 				buf.putLong(destinationId);
 			}
 			buf.rewind();
+		} else {
+			buf.asLongBuffer().put(destinationIds);
 		}
 		return buf;
 	}
 
-
-	static ByteBuffer asByteBuffer(long... destinationIds) {
-		ByteBuffer buf = null;
-		buf = ByteBuffer.wrap(new byte[destinationIds.length * (Long.SIZE / 8)]);
-		buf.order(ByteOrder.LITTLE_ENDIAN);
-		for (long destinationId : destinationIds) {
-			buf.putLong(destinationId);
-		}
-		buf.rewind();
-		return buf;
-	}
-
 	static long[] toLongArray(byte[] ids) {
 		LongBuffer buffy = ByteBuffer.wrap(ids).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
-		long[] result = new long[buffy.capacity()];
+		long[] result = new long[buffy.remaining()];
+		buffy.get(result);
+		return result;
+	}
 
-		int i = 0;
-		while (buffy.hasRemaining()) {
-			result[i++] = buffy.get();
+	/**
+	 * Returns a little endian view of the given buffers remaining bytes, without copying them. Null is treated like an
+	 * empty buffer.
+	 */
+	static LongBuffer asLongBuffer(ByteBuffer ids) {
+		if (ids == null) {
+			return LongBuffer.allocate(0);
 		}
-
-		return result;
+		return ids.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
 	}
 }
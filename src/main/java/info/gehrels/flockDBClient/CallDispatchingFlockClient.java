@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.EdgeQuery;
+import com.twitter.flockdb.thrift.EdgeResults;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.Page;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Base class for {@link Iface} implementations, which treat all FlockDB calls alike. Each call is wrapped into a
+ * {@link FlockCall} and handed to {@link #dispatch(FlockCall)}, which decides on which client it is executed. The
+ * idempotent single edge and metadata lookups are wrapped into {@link PointRead}s, and executions into {@link Write}s,
+ * so that they can be told apart.
+ */
+abstract class CallDispatchingFlockClient implements Iface {
+	@Override
+	public boolean contains(final long source_id, final int graph_id, final long destination_id)
+		throws FlockException, TException {
+		return dispatch(new PointRead<Boolean>() {
+			@Override
+			Boolean call(Iface client) throws TException, FlockException {
+				return client.contains(source_id, graph_id, destination_id);
+			}
+		});
+	}
+
+	@Override
+	public Edge get(final long source_id, final int graph_id, final long destination_id)
+		throws FlockException, TException {
+		return dispatch(new PointRead<Edge>() {
+			@Override
+			Edge call(Iface client) throws TException, FlockException {
+				return client.get(source_id, graph_id, destination_id);
+			}
+		});
+	}
+
+	@Override
+	public Metadata get_metadata(final long source_id, final int graph_id) throws FlockException, TException {
+		return dispatch(new PointRead<Metadata>() {
+			@Override
+			Metadata call(Iface client) throws TException, FlockException {
+				return client.get_metadata(source_id, graph_id);
+			}
+		});
+	}
+
+	@Override
+	public boolean contains_metadata(final long source_id, final int graph_id) throws FlockException, TException {
+		return dispatch(new PointRead<Boolean>() {
+			@Override
+			Boolean call(Iface client) throws TException, FlockException {
+				return client.contains_metadata(source_id, graph_id);
+			}
+		});
+	}
+
+	@Override
+	public List<Results> select2(final List<SelectQuery> queries) throws FlockException, TException {
+		return dispatch(new FlockCall<List<Results>>() {
+			@Override
+			List<Results> call(Iface client) throws TException, FlockException {
+				return client.select2(queries);
+			}
+		});
+	}
+
+	@Override
+	public ByteBuffer count2(final List<List<SelectOperation>> queries) throws FlockException, TException {
+		return dispatch(new FlockCall<ByteBuffer>() {
+			@Override
+			ByteBuffer call(Iface client) throws TException, FlockException {
+				return client.count2(queries);
+			}
+		});
+	}
+
+	@Override
+	public List<EdgeResults> select_edges(final List<EdgeQuery> queries) throws FlockException, TException {
+		return dispatch(new FlockCall<List<EdgeResults>>() {
+			@Override
+			List<EdgeResults> call(Iface client) throws TException, FlockException {
+				return client.select_edges(queries);
+			}
+		});
+	}
+
+	@Override
+	public void execute(final ExecuteOperations operations) throws FlockException, TException {
+		dispatch(new Write(operations) {
+			@Override
+			Void call(Iface client) throws TException, FlockException {
+				client.execute(operations);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public int count(final List<SelectOperation> operations) throws FlockException, TException {
+		return dispatch(new FlockCall<Integer>() {
+			@Override
+			Integer call(Iface client) throws TException, FlockException {
+				return client.count(operations);
+			}
+		});
+	}
+
+	@Override
+	public Results select(final List<SelectOperation> operations, final Page page) throws FlockException, TException {
+		return dispatch(new FlockCall<Results>() {
+			@Override
+			Results call(Iface client) throws TException, FlockException {
+				return client.select(operations, page);
+			}
+		});
+	}
+
+	abstract <T> T dispatch(FlockCall<T> call) throws TException, FlockException;
+
+	abstract static class FlockCall<T> {
+		abstract T call(Iface client) throws TException, FlockException;
+	}
+
+	abstract static class PointRead<T> extends FlockCall<T> {
+	}
+
+	abstract static class Write extends FlockCall<Void> {
+		final ExecuteOperations operations;
+
+		Write(ExecuteOperations operations) {
+			this.operations = operations;
+		}
+	}
+}
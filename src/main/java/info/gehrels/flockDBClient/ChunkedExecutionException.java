@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperations;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Thrown if a batch execution has been split into several calls, and some of them failed. The operations of the
+ * other calls have been executed. Calls are not sent, if an earlier call containing operations on one of their edges
+ * failed, so that operations on the same edge are never executed out of order.
+ */
+public class ChunkedExecutionException extends FlockDBException {
+	private static final long serialVersionUID = 1L;
+
+	private final int executedChunks;
+	private final List<FailedChunk> failedChunks;
+	private final List<ExecuteOperations> unsentChunks;
+
+	ChunkedExecutionException(int executedChunks, List<FailedChunk> failedChunks,
+	                          List<ExecuteOperations> unsentChunks) {
+		super(failedChunks.size() + " of " + (executedChunks + failedChunks.size() + unsentChunks.size())
+		      + " calls failed, " + unsentChunks.size() + " have not been sent", failedChunks.get(0).getCause());
+		this.executedChunks = executedChunks;
+		this.failedChunks = failedChunks;
+		this.unsentChunks = unsentChunks;
+	}
+
+	public int getExecutedChunks() {
+		return executedChunks;
+	}
+
+	public List<FailedChunk> getFailedChunks() {
+		return failedChunks;
+	}
+
+	public List<ExecuteOperations> getUnsentChunks() {
+		return unsentChunks;
+	}
+
+	public static final class FailedChunk implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final ExecuteOperations operations;
+		private final Exception cause;
+
+		FailedChunk(ExecuteOperations operations, Exception cause) {
+			this.operations = operations;
+			this.cause = cause;
+		}
+
+		public ExecuteOperations getOperations() {
+			return operations;
+		}
+
+		/**
+		 * Either a {@link com.twitter.flockdb.thrift.FlockException} or an {@link org.apache.thrift.TException}.
+		 */
+		public Exception getCause() {
+			return cause;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.EdgeQuery;
+import com.twitter.flockdb.thrift.EdgeResults;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockDB.contains_args;
+import com.twitter.flockdb.thrift.FlockDB.contains_metadata_args;
+import com.twitter.flockdb.thrift.FlockDB.count2_args;
+import com.twitter.flockdb.thrift.FlockDB.get_args;
+import com.twitter.flockdb.thrift.FlockDB.get_metadata_args;
+import com.twitter.flockdb.thrift.FlockDB.select2_args;
+import com.twitter.flockdb.thrift.FlockDB.select_edges_args;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent, identical reads share a single call: The first thread sends the call, and threads asking the same
+ * while it is outstanding wait for its result instead of sending calls of their own. They get copies of the result,
+ * so that no two threads share mutable structs or buffers. Reads are identical if their arguments have the same
+ * binary encoding.
+ * <p/>
+ * The shared call runs within the {@link Deadline} of the thread sending it, so a thread only waits for calls sent
+ * within the same or a later deadline than its own. Otherwise it sends the call itself, and later threads wait for that
+ * one instead. So a call never fails for a deadline one of its waiting threads did not set.
+ * <p/>
+ * Executions passing this client, and asynchronous executions it is notified of as an {@link ExecutionListener}, detach
+ * all outstanding reads, so that a read starting after an execution completed never gets the result of a read sent
+ * before it. All other calls are passed through unchanged.
+ */
+class CoalescingFlockClient extends CallDispatchingFlockClient implements ExecutionListener {
+	private final Iface backingFlockClient;
+	private final ConcurrentMap<SerializedKey, OutstandingRead> outstandingReads = new ConcurrentHashMap<>();
+	private final AtomicLong coalescedReads = new AtomicLong();
+
+	CoalescingFlockClient(Iface backingFlockClient) {
+		this.backingFlockClient = backingFlockClient;
+	}
+
+	@Override
+	public boolean contains(final long source_id, final int graph_id, final long destination_id)
+		throws FlockException, TException {
+		return coalesce(new SerializedKey("contains", new contains_args(source_id, graph_id, destination_id)),
+		                new CoalescedRead<Boolean>() {
+			                @Override
+			                Boolean call(Iface client) throws TException, FlockException {
+				                return client.contains(source_id, graph_id, destination_id);
+			                }
+		                });
+	}
+
+	@Override
+	public Edge get(final long source_id, final int graph_id, final long destination_id)
+		throws FlockException, TException {
+		return coalesce(new SerializedKey("get", new get_args(source_id, graph_id, destination_id)),
+		                new CoalescedRead<Edge>() {
+			                @Override
+			                Edge call(Iface client) throws TException, FlockException {
+				                return client.get(source_id, graph_id, destination_id);
+			                }
+
+			                @Override
+			                Edge copy(Edge edge) {
+				                return edge == null ? null : edge.deepCopy();
+			                }
+		                });
+	}
+
+	@Override
+	public Metadata get_metadata(final long source_id, final int graph_id) throws FlockException, TException {
+		return coalesce(new SerializedKey("get_metadata", new get_metadata_args(source_id, graph_id)),
+		                new CoalescedRead<Metadata>() {
+			                @Override
+			                Metadata call(Iface client) throws TException, FlockException {
+				                return client.get_metadata(source_id, graph_id);
+			                }
+
+			                @Override
+			                Metadata copy(Metadata metadata) {
+				                return metadata == null ? null : metadata.deepCopy();
+			                }
+		                });
+	}
+
+	@Override
+	public boolean contains_metadata(final long source_id, final int graph_id) throws FlockException, TException {
+		return coalesce(new SerializedKey("contains_metadata", new contains_metadata_args(source_id, graph_id)),
+		                new CoalescedRead<Boolean>() {
+			                @Override
+			                Boolean call(Iface client) throws TException, FlockException {
+				                return client.contains_metadata(source_id, graph_id);
+			                }
+		                });
+	}
+
+	@Override
+	public List<Results> select2(final List<SelectQuery> queries) throws FlockException, TException {
+		return coalesce(new SerializedKey("select2", new select2_args(queries)), new CoalescedRead<List<Results>>() {
+			@Override
+			List<Results> call(Iface client) throws TException, FlockException {
+				return client.select2(queries);
+			}
+
+			@Override
+			List<Results> copy(List<Results> results) {
+				List<Results> copies = new ArrayList<>(results.size());
+				for (Results result : results) {
+					// Decoded ids are only handed out as read-only views, so they need not be copied
+					copies.add(result instanceof DecodedResults
+						           ? new DecodedResults(((DecodedResults) result).getDecodedIds(),
+						                                result.getNext_cursor(), result.getPrev_cursor())
+						           : result.deepCopy());
+				}
+				return copies;
+			}
+		});
+	}
+
+	@Override
+	public ByteBuffer count2(final List<List<SelectOperation>> queries) throws FlockException, TException {
+		return coalesce(new SerializedKey("count2", new count2_args(queries)), new CoalescedRead<ByteBuffer>() {
+			@Override
+			ByteBuffer call(Iface client) throws TException, FlockException {
+				return client.count2(queries);
+			}
+
+			@Override
+			ByteBuffer copy(ByteBuffer counts) {
+				// A duplicate has a position and byte order of its own, which is all its readers modify
+				return counts.duplicate();
+			}
+		});
+	}
+
+	@Override
+	public List<EdgeResults> select_edges(final List<EdgeQuery> queries) throws FlockException, TException {
+		return coalesce(new SerializedKey("select_edges", new select_edges_args(queries)),
+		                new CoalescedRead<List<EdgeResults>>() {
+			                @Override
+			                List<EdgeResults> call(Iface client) throws TException, FlockException {
+				                return client.select_edges(queries);
+			                }
+
+			                @Override
+			                List<EdgeResults> copy(List<EdgeResults> results) {
+				                List<EdgeResults> copies = new ArrayList<>(results.size());
+				                for (EdgeResults result : results) {
+					                copies.add(result.deepCopy());
+				                }
+				                return copies;
+			                }
+		                });
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		try {
+			return call.call(backingFlockClient);
+		} finally {
+			if (call instanceof Write) {
+				executed(((Write) call).operations);
+			}
+		}
+	}
+
+	@Override
+	public void executed(ExecuteOperations operations) {
+		outstandingReads.clear();
+	}
+
+	long coalescedReads() {
+		return coalescedReads.get();
+	}
+
+	private <T> T coalesce(SerializedKey key, CoalescedRead<T> read) throws TException, FlockException {
+		OutstandingRead ownRead = new OutstandingRead(Deadline.current());
+		OutstandingRead outstandingRead = join(key, ownRead);
+		if (outstandingRead != null) {
+			coalescedReads.incrementAndGet();
+			@SuppressWarnings("unchecked")
+			T result = (T) FutureHelper.awaitCall(outstandingRead.result);
+			return read.copy(result);
+		}
+
+		try {
+			T result = read.call(backingFlockClient);
+			// The waiting threads copy what is published here, so it must not be the result this thread goes on to read
+			ownRead.result.set(read.copy(result));
+			return result;
+		} catch (Throwable e) {
+			// Waiting threads must be released whatever happened
+			ownRead.result.setException(e);
+			throw e;
+		} finally {
+			outstandingReads.remove(key, ownRead);
+		}
+	}
+
+	/**
+	 * Returns the outstanding read to wait for, or null if the given read has been registered and is to be sent by the
+	 * current thread.
+	 */
+	private OutstandingRead join(SerializedKey key, OutstandingRead ownRead) {
+		while (true) {
+			OutstandingRead outstandingRead = outstandingReads.putIfAbsent(key, ownRead);
+			if (outstandingRead == null || Deadline.isNotEarlier(outstandingRead.deadline, ownRead.deadline)) {
+				return outstandingRead;
+			}
+			// The outstanding read may time out before our deadline, so later threads shall wait for ours instead
+			if (outstandingReads.replace(key, outstandingRead, ownRead)) {
+				return null;
+			}
+		}
+	}
+
+	private static final class OutstandingRead {
+		final SettableFuture<Object> result = SettableFuture.create();
+		final Deadline deadline;
+
+		OutstandingRead(Deadline deadline) {
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * A read, whose result can be handed to several threads. Immutable results need not be copied.
+	 */
+	private abstract static class CoalescedRead<T> extends FlockCall<T> {
+		T copy(T result) {
+			return result;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.Closeable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.thrift.transport.TTransportException.NOT_OPEN;
+
+/**
+ * A bounded pool of {@link FlockConnection}s. Idle connections are handed out most recently used first, so that
+ * surplus connections stay idle long enough to be evicted once the load goes down again.
+ * <p/>
+ * If validation on borrow is enabled, connections are checked for an open transport before they are handed out, and
+ * connections idle for longer than {@link #PROBE_AFTER_IDLE_NANOS} are probed for having been closed by the server.
+ */
+class ConnectionPool implements Closeable {
+	static final long PROBE_AFTER_IDLE_NANOS = SECONDS.toNanos(1);
+
+	private final ConnectionFactory connectionFactory;
+	private final int minConnections;
+	private final long borrowTimeoutNanos;
+	private final long idleTimeoutNanos;
+	private final boolean validateOnBorrow;
+
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<FlockConnection> idleConnections = new LinkedBlockingDeque<>();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private volatile boolean closed;
+
+	ConnectionPool(ConnectionFactory connectionFactory, int minConnections, int maxConnections,
+	               long borrowTimeoutNanos, long idleTimeoutNanos, boolean validateOnBorrow)
+		throws TTransportException {
+		if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections) {
+			throw new IllegalArgumentException(
+				"Illegal pool size: min " + minConnections + ", max " + maxConnections);
+		}
+
+		this.connectionFactory = connectionFactory;
+		this.minConnections = minConnections;
+		this.borrowTimeoutNanos = borrowTimeoutNanos;
+		this.idleTimeoutNanos = idleTimeoutNanos;
+		this.validateOnBorrow = validateOnBorrow;
+		this.permits = new Semaphore(maxConnections, true);
+
+		try {
+			for (int i = 0; i < minConnections; i++) {
+				idleConnections.offerLast(openConnection());
+			}
+		} catch (TTransportException e) {
+			close();
+			throw e;
+		}
+	}
+
+	FlockConnection borrow() throws TTransportException {
+		return borrow(null);
+	}
+
+	/**
+	 * Waits for a free connection no longer than the configured borrow timeout or the time remaining until the
+	 * deadline, whichever is shorter.
+	 */
+	FlockConnection borrow(Deadline deadline) throws TTransportException {
+		acquirePermit(Deadline.remainingNanos(deadline, borrowTimeoutNanos));
+		try {
+			evictIdleConnections();
+
+			FlockConnection connection;
+			while ((connection = idleConnections.pollFirst()) != null) {
+				if (!validateOnBorrow || isValid(connection)) {
+					return connection;
+				}
+				destroy(connection);
+			}
+
+			return openConnection();
+		} catch (TTransportException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	void release(FlockConnection connection) {
+		if (closed) {
+			destroy(connection);
+		} else {
+			connection.markUsed();
+			idleConnections.offerFirst(connection);
+			// close() may have drained the idle connections just before this one was added
+			if (closed && idleConnections.removeFirstOccurrence(connection)) {
+				destroy(connection);
+			}
+		}
+		permits.release();
+	}
+
+	void invalidate(FlockConnection connection) {
+		destroy(connection);
+		permits.release();
+	}
+
+	int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	int getIdleConnections() {
+		return idleConnections.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		FlockConnection connection;
+		while ((connection = idleConnections.pollFirst()) != null) {
+			destroy(connection);
+		}
+	}
+
+	private void acquirePermit(long timeoutNanos) throws TTransportException {
+		if (closed) {
+			throw new TTransportException(NOT_OPEN, "The connection pool has been closed");
+		}
+
+		try {
+			if (!permits.tryAcquire(timeoutNanos, NANOSECONDS)) {
+				throw new LocalWaitTimeoutException("Timed out waiting for a pooled FlockDB connection");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LocalWaitTimeoutException("Interrupted while waiting for a pooled FlockDB connection");
+		}
+	}
+
+	/**
+	 * Closes the connections exceeding {@code minConnections}, which have been idle for longer than the idle timeout.
+	 * Called on every borrow, and periodically, so that idle connections are closed even without any calls.
+	 */
+	void evictIdleConnections() {
+		FlockConnection eldest;
+		while (openConnections.get() > minConnections
+		       && (eldest = idleConnections.peekLast()) != null
+		       && eldest.getIdleNanos() > idleTimeoutNanos) {
+			if (idleConnections.removeLastOccurrence(eldest)) {
+				destroy(eldest);
+			}
+		}
+	}
+
+	private static boolean isValid(FlockConnection connection) {
+		return connection.getIdleNanos() > PROBE_AFTER_IDLE_NANOS ? connection.isAlive() : connection.isOpen();
+	}
+
+	private FlockConnection openConnection() throws TTransportException {
+		FlockConnection connection = connectionFactory.openConnection();
+		openConnections.incrementAndGet();
+		return connection;
+	}
+
+	private void destroy(FlockConnection connection) {
+		openConnections.decrementAndGet();
+		connection.close();
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Page;
+import com.twitter.flockdb.thrift.QueryTerm;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+
+import java.nio.LongBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.twitter.flockdb.thrift.SelectOperationType.SimpleQuery;
+import static java.util.Collections.singletonList;
+
+/**
+ * Answers {@code contains} for the outgoing edges of selected source nodes with a {@link LongBloomFilter} of their
+ * destination ids, so that edges which definitely do not exist need no call. Only possible positives are passed to
+ * FlockDB.
+ * <p/>
+ * A filter is loaded by scanning all outgoing edges of its node page by page, and kept up to date with the edges added
+ * by executions passing this client, or sent asynchronously by the same {@link FlockDB}. Removed edges stay in the
+ * filter, which only makes it answer "maybe" for them. Executions adding all edges of a node, which restores edges this
+ * client does not know, drop the filters of the whole graph. Edges added by other clients are not seen until the filter
+ * is loaded again.
+ */
+class ContainsFilteringFlockClient extends CallDispatchingFlockClient implements ExecutionListener {
+	private static final int SCAN_PAGE_SIZE = 10000;
+
+	private final Iface backingFlockClient;
+	private final int bytesPerFilter;
+	private final int maxFilters;
+	private final ConcurrentMap<FilterKey, Filter> filters = new ConcurrentHashMap<>();
+	private final AtomicLong definiteNegatives = new AtomicLong();
+	private final AtomicLong possiblePositives = new AtomicLong();
+
+	ContainsFilteringFlockClient(Iface backingFlockClient, int bytesPerFilter, int maxFilters) {
+		if (bytesPerFilter < 8 || maxFilters < 1) {
+			throw new IllegalArgumentException("Illegal filter limits: " + bytesPerFilter + " bytes, " + maxFilters
+			                                   + " filters");
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.bytesPerFilter = bytesPerFilter;
+		this.maxFilters = maxFilters;
+	}
+
+	@Override
+	public boolean contains(long source_id, int graph_id, long destination_id) throws FlockException, TException {
+		Filter filter = filters.get(new FilterKey(source_id, graph_id));
+		if (filter != null && filter.loaded && !filter.bloomFilter.mightContain(destination_id)) {
+			definiteNegatives.incrementAndGet();
+			return false;
+		}
+
+		if (filter != null && filter.loaded) {
+			possiblePositives.incrementAndGet();
+		}
+		return super.contains(source_id, graph_id, destination_id);
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		if (!(call instanceof Write)) {
+			return call.call(backingFlockClient);
+		}
+
+		try {
+			return call.call(backingFlockClient);
+		} finally {
+			// Failed executions may have been executed partially
+			executed(((Write) call).operations);
+		}
+	}
+
+	@Override
+	public void executed(ExecuteOperations operations) {
+		for (ExecuteOperation operation : operations.getOperations()) {
+			if (operation.getOperation_type() == ExecuteOperationType.Add) {
+				added(operation.getTerm());
+			}
+		}
+	}
+
+	/**
+	 * Loads, or reloads, the filter of the given source node. The filter receives the edges added during the scan, and
+	 * is used once the scan is complete.
+	 */
+	void load(long sourceId, int graphId) throws TException, FlockException {
+		FilterKey key = new FilterKey(sourceId, graphId);
+		QueryTerm term = new QueryTerm(sourceId, graphId, true);
+		List<SelectOperation> operations = singletonList(new SelectOperation(SimpleQuery).setTerm(term));
+		Filter filter = new Filter(new LongBloomFilter(bytesPerFilter, backingFlockClient.count(operations)));
+		Filter replaced;
+		// Filters are only ever added while holding the lock, so that concurrent loads cannot exceed maxFilters
+		synchronized (filters) {
+			if (!filters.containsKey(key) && filters.size() >= maxFilters) {
+				throw new IllegalStateException("Already " + filters.size() + " filters loaded");
+			}
+			replaced = filters.put(key, filter);
+		}
+		try {
+			Page page = new Page(SCAN_PAGE_SIZE, -1);
+			do {
+				Results results = backingFlockClient.select2(singletonList(new SelectQuery(operations, page))).get(0);
+				LongBuffer ids = DecodedResults.idsOf(results);
+				while (ids.hasRemaining()) {
+					filter.bloomFilter.put(ids.get());
+				}
+				page = new Page(SCAN_PAGE_SIZE, results.getNext_cursor());
+			} while (page.getCursor() != 0);
+		} catch (TException | FlockException | RuntimeException e) {
+			synchronized (filters) {
+				if (filters.remove(key, filter) && replaced != null) {
+					filters.putIfAbsent(key, replaced);
+				}
+			}
+			throw e;
+		}
+		filter.loaded = true;
+	}
+
+	void unload(long sourceId, int graphId) {
+		filters.remove(new FilterKey(sourceId, graphId));
+	}
+
+	int filters() {
+		return filters.size();
+	}
+
+	long memoryInBytes() {
+		long bytes = 0;
+		for (Filter filter : filters.values()) {
+			bytes += filter.bloomFilter.sizeInBytes();
+		}
+		return bytes;
+	}
+
+	long definiteNegatives() {
+		return definiteNegatives.get();
+	}
+
+	long possiblePositives() {
+		return possiblePositives.get();
+	}
+
+	private void added(QueryTerm term) {
+		int graphId = term.getGraph_id();
+		if (!term.isSetDestination_ids()) {
+			for (Iterator<FilterKey> keys = filters.keySet().iterator(); keys.hasNext(); ) {
+				if (keys.next().graphId == graphId) {
+					keys.remove();
+				}
+			}
+			return;
+		}
+
+		LongBuffer destinationIds = ByteHelper.asLongBuffer(term.bufferForDestination_ids());
+		Filter sourceFilter = term.isIs_forward() ? filters.get(new FilterKey(term.getSource_id(), graphId)) : null;
+		while (destinationIds.hasRemaining()) {
+			long destinationId = destinationIds.get();
+			if (sourceFilter != null) {
+				sourceFilter.bloomFilter.put(destinationId);
+			} else if (!term.isIs_forward()) {
+				// An incoming edge of the source node is an outgoing edge of the destination node
+				Filter destinationFilter = filters.get(new FilterKey(destinationId, graphId));
+				if (destinationFilter != null) {
+					destinationFilter.bloomFilter.put(term.getSource_id());
+				}
+			}
+		}
+	}
+
+	private static final class Filter {
+		final LongBloomFilter bloomFilter;
+		volatile boolean loaded;
+
+		Filter(LongBloomFilter bloomFilter) {
+			this.bloomFilter = bloomFilter;
+		}
+	}
+
+	private static final class FilterKey {
+		final long sourceId;
+		final int graphId;
+
+		FilterKey(long sourceId, int graphId) {
+			this.sourceId = sourceId;
+			this.graphId = graphId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof FilterKey)) {
+				return false;
+			}
+			FilterKey other = (FilterKey) o;
+			return sourceId == other.sourceId && graphId == other.graphId;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (int) (sourceId ^ (sourceId >>> 32)) + graphId;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockException;
+import info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.MethodObject;
+import org.apache.thrift.TException;
+
+import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
+
+/**
+ * Manages the Bloom filters, which let {@link FlockDB#contains} answer that an outgoing edge of a hot source node does
+ * not exist without asking FlockDB. Filters see the edges added by this instance, but not those added by other
+ * clients, so they should be reloaded regularly if other clients write to their graph.
+ */
+public final class ContainsFilters {
+	private final ContainsFilteringFlockClient client;
+
+	ContainsFilters(ContainsFilteringFlockClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Loads, or reloads, the filter of the outgoing edges of the given node, by selecting all of them page by page.
+	 * {@link FlockDB#contains} keeps asking FlockDB until the filter is completely loaded.
+	 *
+	 * @throws IllegalStateException if the maximum number of filters is already loaded.
+	 */
+	public void load(final long sourceId, final int graphId) {
+		handleFlockAndThriftExceptions(new MethodObject<Void>() {
+			@Override
+			public Void call() throws TException, FlockException {
+				client.load(sourceId, graphId);
+				return null;
+			}
+		});
+	}
+
+	public void unload(long sourceId, int graphId) {
+		client.unload(sourceId, graphId);
+	}
+
+	public int getLoadedFilters() {
+		return client.filters();
+	}
+
+	/**
+	 * Returns the memory taken by the bits of all filters.
+	 */
+	public long getMemoryInBytes() {
+		return client.memoryInBytes();
+	}
+
+	/**
+	 * Counts the lookups, which have been answered by a filter without asking FlockDB.
+	 */
+	public long getDefiniteNegatives() {
+		return client.definiteNegatives();
+	}
+
+	/**
+	 * Counts the lookups, which a filter could not answer, and which thus have been sent to FlockDB.
+	 */
+	public long getPossiblePositives() {
+		return client.possiblePositives();
+	}
+
+	@Override
+	public String toString() {
+		return "ContainsFilters{loadedFilters=" + getLoadedFilters() + ", memoryInBytes=" + getMemoryInBytes()
+		       + ", definiteNegatives=" + getDefiniteNegatives() + ", possiblePositives=" + getPossiblePositives() + "}";
+	}
+}
@@ -17,6 +17,8 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
 import com.twitter.flockdb.thrift.SelectOperation;
@@ -27,15 +29,24 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkState;
 import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
+import static info.gehrels.flockDBClient.FutureHelper.transform;
 import static java.nio.ByteOrder.LITTLE_ENDIAN;
 
 public final class CountBuilder {
 	private final Iface backingFlockClient;
+	private final AsyncFlockClient asyncFlockClient;
 	private List<List<SelectOperation>> queries = new ArrayList<>();
+	private long timeoutInMilliSeconds;
 
 	CountBuilder(Iface backingFlockClient) {
+		this(backingFlockClient, null);
+	}
+
+	CountBuilder(Iface backingFlockClient, AsyncFlockClient asyncFlockClient) {
 		this.backingFlockClient = backingFlockClient;
+		this.asyncFlockClient = asyncFlockClient;
 	}
 
 	public CountBuilder count(SelectionQuery selectionQuery) {
@@ -43,8 +54,17 @@ public final class CountBuilder {
 		return this;
 	}
 
+	/**
+	 * Fails the call with a {@link FlockDBException}, if it did not complete within the given time.
+	 */
+	public CountBuilder withTimeout(long timeoutInMilliSeconds) {
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		return this;
+	}
+
 	public List<Integer> execute() {
-		return handleFlockAndThriftExceptions(new MethodObject<List<Integer>>() {
+		Deadline deadline = Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+		return handleFlockAndThriftExceptions(deadline, new MethodObject<List<Integer>>() {
 			@Override
 			public List<Integer> call() throws TException, FlockException {
 				return createIntegerListFromByteBuffer(backingFlockClient.count2(queries));
@@ -52,6 +72,21 @@ public final class CountBuilder {
 		});
 	}
 
+	public ListenableFuture<List<Integer>> executeAsync() {
+		checkState(asyncFlockClient != null, "This FlockDB instance has not been configured for async calls");
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			return transform(asyncFlockClient.count2(queries), new Function<ByteBuffer, List<Integer>>() {
+				@Override
+				public List<Integer> apply(ByteBuffer byteBuffer) {
+					return createIntegerListFromByteBuffer(byteBuffer);
+				}
+			});
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+
 	List<List<SelectOperation>> getQueries() {
 		return queries;
 	}
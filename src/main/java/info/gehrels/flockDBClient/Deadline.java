@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import org.apache.thrift.transport.TTransportException;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.thrift.transport.TTransportException.TIMED_OUT;
+
+/**
+ * The point in time until which a call and all its page fetches have to be finished. While a call is executed, its
+ * deadline is the {@link #current()} one of the calling thread, so that connection pools and transports can limit
+ * their waits to the remaining time without every {@link com.twitter.flockdb.thrift.FlockDB.Iface} method having to
+ * pass it on.
+ */
+final class Deadline {
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+	private final long deadlineNanos;
+
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Returns null for non positive timeouts, which means "no deadline".
+	 */
+	static Deadline afterMilliSeconds(long timeoutInMilliSeconds) {
+		if (timeoutInMilliSeconds <= 0) {
+			return null;
+		}
+		return new Deadline(System.nanoTime() + MILLISECONDS.toNanos(timeoutInMilliSeconds));
+	}
+
+	static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Makes the earlier of the given and the current deadline the current one, and returns the previous one to be
+	 * restored afterwards.
+	 */
+	static Deadline enter(Deadline deadline) {
+		Deadline previous = CURRENT.get();
+		if (deadline != null && (previous == null || deadline.deadlineNanos - previous.deadlineNanos < 0)) {
+			CURRENT.set(deadline);
+		}
+		return previous;
+	}
+
+	/**
+	 * Returns whether the given deadline is not earlier than the other one, no deadline being later than any other.
+	 */
+	static boolean isNotEarlier(Deadline deadline, Deadline other) {
+		return deadline == null || (other != null && deadline.deadlineNanos - other.deadlineNanos >= 0);
+	}
+
+	static void restore(Deadline previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * Returns the remaining time, or {@code timeoutNanos} if there is no deadline or it is further away.
+	 */
+	static long remainingNanos(Deadline deadline, long timeoutNanos) {
+		return deadline == null ? timeoutNanos : Math.min(deadline.remainingNanos(), timeoutNanos);
+	}
+
+	long remainingNanos() {
+		return deadlineNanos - System.nanoTime();
+	}
+
+	boolean isExpired() {
+		return remainingNanos() <= 0;
+	}
+
+	void check() throws TTransportException {
+		if (isExpired()) {
+			throw new TTransportException(TIMED_OUT, "The deadline of the call has been exceeded");
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.Results;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TTransport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * {@link Results}, whose ids are decoded into a {@code long[]} while they are read from the transport, instead of
+ * being kept as binary. If the transport buffers the whole response, the ids are decoded straight out of its buffer,
+ * otherwise they are read in small chunks. The binary accessors of {@link Results} encode the ids again on demand, and
+ * so do {@code equals}, {@code hashCode}, {@code compareTo} and {@code toString}, which compare and print them just
+ * like those of plain {@link Results} with the same content.
+ */
+final class DecodedResults extends Results {
+	private static final long serialVersionUID = 1L;
+	private static final int CHUNK_SIZE = 8192;
+	private static final short IDS_FIELD_ID = 1;
+	private static final short NEXT_CURSOR_FIELD_ID = 2;
+	private static final short PREV_CURSOR_FIELD_ID = 3;
+	private static final ThreadLocal<byte[]> CHUNKS = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
+	private long[] decodedIds = new long[0];
+
+	DecodedResults() {
+	}
+
+	/**
+	 * Wraps the given ids without copying them, so they must not be modified afterwards.
+	 */
+	DecodedResults(long[] decodedIds, long nextCursor, long prevCursor) {
+		this.decodedIds = decodedIds;
+		setNext_cursor(nextCursor);
+		setPrev_cursor(prevCursor);
+	}
+
+	long[] getDecodedIds() {
+		return decodedIds;
+	}
+
+	/**
+	 * Returns the ids of the given results, without copying them.
+	 */
+	static LongBuffer idsOf(Results results) {
+		if (results instanceof DecodedResults) {
+			return LongBuffer.wrap(((DecodedResults) results).decodedIds);
+		}
+		// getIds() would copy the ids out of the response frame, bufferForIds() does not
+		return ByteHelper.asLongBuffer(results.bufferForIds());
+	}
+
+	@Override
+	public void read(TProtocol iprot) throws TException {
+		iprot.readStructBegin();
+		while (true) {
+			TField field = iprot.readFieldBegin();
+			if (field.type == TType.STOP) {
+				break;
+			}
+
+			if (field.id == IDS_FIELD_ID && field.type == TType.STRING) {
+				decodedIds = readIds(iprot);
+			} else if (field.id == NEXT_CURSOR_FIELD_ID && field.type == TType.I64) {
+				setNext_cursor(iprot.readI64());
+			} else if (field.id == PREV_CURSOR_FIELD_ID && field.type == TType.I64) {
+				setPrev_cursor(iprot.readI64());
+			} else {
+				TProtocolUtil.skip(iprot, field.type);
+			}
+			iprot.readFieldEnd();
+		}
+		iprot.readStructEnd();
+	}
+
+	@Override
+	public boolean isSetIds() {
+		return true;
+	}
+
+	@Override
+	public byte[] getIds() {
+		return ByteHelper.asByteBuffer(decodedIds).array();
+	}
+
+	@Override
+	public ByteBuffer bufferForIds() {
+		return ByteHelper.asByteBuffer(decodedIds);
+	}
+
+	@Override
+	public Results deepCopy() {
+		return new Results(bufferForIds(), getNext_cursor(), getPrev_cursor());
+	}
+
+	@Override
+	public void write(TProtocol oprot) throws TException {
+		deepCopy().write(oprot);
+	}
+
+	@Override
+	public boolean equals(Results that) {
+		return that != null && deepCopy().equals(plain(that));
+	}
+
+	@Override
+	public int hashCode() {
+		return deepCopy().hashCode();
+	}
+
+	@Override
+	public int compareTo(Results other) {
+		return deepCopy().compareTo(plain(other));
+	}
+
+	@Override
+	public String toString() {
+		return deepCopy().toString();
+	}
+
+	private static Results plain(Results results) {
+		return results instanceof DecodedResults ? results.deepCopy() : results;
+	}
+
+	private static long[] readIds(TProtocol iprot) throws TException {
+		if (!(iprot instanceof TBinaryProtocol)) {
+			// Only the binary protocol is known to write binaries as their length followed by the raw bytes
+			LongBuffer binaryIds = ByteHelper.asLongBuffer(iprot.readBinary());
+			long[] ids = new long[binaryIds.remaining()];
+			binaryIds.get(ids);
+			return ids;
+		}
+
+		int size = iprot.readI32();
+		if (size < 0) {
+			throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative length: " + size);
+		}
+
+		long[] ids = new long[size / 8];
+		TTransport transport = iprot.getTransport();
+		if (transport.getBytesRemainingInBuffer() >= size) {
+			asLongBuffer(transport.getBuffer(), transport.getBufferPosition(), size).get(ids);
+			transport.consumeBuffer(size);
+			return ids;
+		}
+
+		byte[] chunk = CHUNKS.get();
+		int decodedIds = 0;
+		for (int remaining = size; remaining > 0; ) {
+			int length = Math.min(remaining, chunk.length);
+			transport.readAll(chunk, 0, length);
+			LongBuffer decodedChunk = asLongBuffer(chunk, 0, length);
+			int decodedChunkIds = decodedChunk.remaining();
+			decodedChunk.get(ids, decodedIds, decodedChunkIds);
+			decodedIds += decodedChunkIds;
+			remaining -= length;
+		}
+		return ids;
+	}
+
+	private static LongBuffer asLongBuffer(byte[] bytes, int offset, int length) {
+		return ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	}
+}
@@ -17,6 +17,8 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.twitter.flockdb.thrift.EdgeQuery;
 import com.twitter.flockdb.thrift.EdgeResults;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
@@ -30,15 +32,24 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkState;
 import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
 import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
+import static info.gehrels.flockDBClient.FutureHelper.transform;
 
 public class EdgeSelectionBuilder {
 	private final Iface backingFlockClient;
+	private final AsyncFlockClient asyncFlockClient;
 	private List<EdgeQuery> queries = new ArrayList<>();
+	private long timeoutInMilliSeconds;
 
 	EdgeSelectionBuilder(Iface backingFlockClient) {
+		this(backingFlockClient, null);
+	}
+
+	EdgeSelectionBuilder(Iface backingFlockClient, AsyncFlockClient asyncFlockClient) {
 		this.backingFlockClient = backingFlockClient;
+		this.asyncFlockClient = asyncFlockClient;
 	}
 
 	public EdgeSelectionBuilder selectEdges(long sourceId, int graphId, Direction direction, long... destinationIds) {
@@ -62,18 +73,48 @@ public class EdgeSelectionBuilder {
 		return this;
 	}
 
-	public List<PagedEdgeList> execute() {
-		List<PagedEdgeList> result = new ArrayList<>();
+	/**
+	 * Limits the time for this call and for fetching further pages of the returned lists, see
+	 * {@link SelectionBuilder#withTimeout(long)}.
+	 */
+	public EdgeSelectionBuilder withTimeout(long timeoutInMilliSeconds) {
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		return this;
+	}
 
-		List<EdgeResults> rawResults = handleFlockAndThriftExceptions(new MethodObject<List<EdgeResults>>() {
+	public List<PagedEdgeList> execute() {
+		Deadline deadline = Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+		List<EdgeResults> rawResults = handleFlockAndThriftExceptions(deadline, new MethodObject<List<EdgeResults>>() {
 			@Override
 			public List<EdgeResults> call() throws TException, FlockException {
 				return backingFlockClient.select_edges(queries);
 			}
 		});
 
+		return toPagedEdgeLists(rawResults, deadline);
+	}
+
+	public ListenableFuture<List<PagedEdgeList>> executeAsync() {
+		checkState(asyncFlockClient != null, "This FlockDB instance has not been configured for async calls");
+		final Deadline deadline = Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+		Deadline previous = Deadline.enter(deadline);
+		try {
+			return transform(asyncFlockClient.selectEdges(queries),
+			                 new Function<List<EdgeResults>, List<PagedEdgeList>>() {
+				                 @Override
+				                 public List<PagedEdgeList> apply(List<EdgeResults> rawResults) {
+					                 return toPagedEdgeLists(rawResults, deadline);
+				                 }
+			                 });
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+
+	private List<PagedEdgeList> toPagedEdgeLists(List<EdgeResults> rawResults, Deadline deadline) {
+		List<PagedEdgeList> result = new ArrayList<>();
 		for (int i = 0; i < rawResults.size(); i++) {
-			result.add(new PagedEdgeList(backingFlockClient, this.queries.get(i), rawResults.get(i)));
+			result.add(new PagedEdgeList(backingFlockClient, this.queries.get(i), rawResults.get(i), deadline));
 		}
 		return result;
 	}
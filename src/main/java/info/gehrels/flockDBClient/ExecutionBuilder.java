@@ -17,6 +17,9 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.twitter.flockdb.thrift.ExecuteOperation;
 import com.twitter.flockdb.thrift.ExecuteOperationType;
 import com.twitter.flockdb.thrift.ExecuteOperations;
@@ -24,21 +27,52 @@ import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
 import com.twitter.flockdb.thrift.Priority;
 import com.twitter.flockdb.thrift.QueryTerm;
+import info.gehrels.flockDBClient.ChunkedExecutionException.FailedChunk;
 import info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.MethodObject;
 import org.apache.thrift.TException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+/**
+ * Collects mutating operations to be executed in a single call. Before they are sent, operations on the same source,
+ * graph and direction are merged, and operations on edges removed later in the same batch are dropped, see
+ * {@link OperationMerger}. If the {@link FlockDBBuilder} enabled chunked execution, large batches are split into
+ * several calls, which fail with a {@link ChunkedExecutionException} if only some of them failed.
+ * <p/>
+ * Batches can be scheduled to be executed by FlockDB at a later time, see {@link #withExecutionTime(Date)}, or spread
+ * over a time window in several calls, see {@link #executeOffPeak(OffPeakWindow, int)}.
+ */
 public class ExecutionBuilder {
 	private final Iface backingFlockClient;
+	private final AsyncFlockClient asyncFlockClient;
+	private final ExecutionChunker executionChunker;
+	private final WriteBehindJournal writeBehindJournal;
+	private final List<ExecutionListener> executionListeners;
 	private final Priority priority;
 	private final List<ExecuteOperation> operations = new ArrayList<>();
+	private long timeoutInMilliSeconds;
+	private Date executionTime;
 
 	ExecutionBuilder(Iface backingFlockClient, Priority priority) {
+		this(backingFlockClient, null, null, null, Collections.<ExecutionListener>emptyList(), priority);
+	}
+
+	ExecutionBuilder(Iface backingFlockClient, AsyncFlockClient asyncFlockClient, ExecutionChunker executionChunker,
+	                 WriteBehindJournal writeBehindJournal, List<ExecutionListener> executionListeners,
+	                 Priority priority) {
 		this.backingFlockClient = backingFlockClient;
+		this.asyncFlockClient = asyncFlockClient;
+		this.executionChunker = executionChunker;
+		this.writeBehindJournal = writeBehindJournal;
+		this.executionListeners = executionListeners;
 		this.priority = priority;
 	}
 
@@ -87,16 +121,136 @@ public class ExecutionBuilder {
 		return this;
 	}
 
+	/**
+	 * Fails the call with a {@link FlockDBException}, if it did not complete within the given time. Note that the
+	 * operations may nevertheless have been executed by the server.
+	 */
+	public ExecutionBuilder withTimeout(long timeoutInMilliSeconds) {
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * Lets FlockDB execute the operations at the given time instead of right away. FlockDB stores the execution time
+	 * in seconds, so fractions of a second are cut off.
+	 */
+	public ExecutionBuilder withExecutionTime(Date executionTime) {
+		this.executionTime = executionTime;
+		return this;
+	}
+
 	public void execute() {
-		FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions(new MethodObject<Void>() {
+		Deadline deadline = Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+		FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions(deadline, new MethodObject<Void>() {
 			@Override
 			public Void call() throws TException, FlockException {
-				backingFlockClient.execute(new ExecuteOperations(operations, priority));
+				if (executionChunker != null) {
+					executionChunker.execute(backingFlockClient, toExecuteOperations());
+				} else {
+					backingFlockClient.execute(OperationMerger.merge(toExecuteOperations()));
+				}
 				return null;
 			}
 		});
 	}
 
+	/**
+	 * Sends the operations without waiting for FlockDB. The caches and contains filters of this instance see the
+	 * operations before the returned future completes. Write scheduling does not apply, see
+	 * {@link FlockDBBuilder#withWriteScheduling}.
+	 */
+	public ListenableFuture<Void> executeAsync() {
+		checkState(asyncFlockClient != null, "This FlockDB instance has not been configured for async calls");
+		final ExecuteOperations executeOperations = toExecuteOperations();
+		ListenableFuture<Void> sent;
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			if (executionChunker != null) {
+				sent = executionChunker.executeAsync(asyncFlockClient, executeOperations);
+			} else {
+				sent = asyncFlockClient.execute(OperationMerger.merge(executeOperations));
+			}
+		} finally {
+			Deadline.restore(previous);
+		}
+
+		if (executionListeners.isEmpty()) {
+			return sent;
+		}
+		// The synchronous clients update their state once an execution passed them, async executions bypass them
+		return FutureHelper.completingAfter(sent, new Runnable() {
+			@Override
+			public void run() {
+				for (ExecutionListener listener : executionListeners) {
+					listener.executed(executeOperations);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends the operations to the local write behind journal and returns without waiting for FlockDB. The
+	 * operations are sent in the background, and are sent again after a restart unless FlockDB confirmed them before.
+	 *
+	 * @throws FlockDBException     if the journal is full.
+	 * @throws IllegalStateException if this instance has not been built with a write behind journal.
+	 */
+	public void executeWriteBehind() {
+		checkState(writeBehindJournal != null, "This FlockDB instance has not been configured with a journal");
+		writeBehindJournal.append(toExecuteOperations());
+	}
+
+	/**
+	 * Sends the operations in calls of at most {@code operationsPerCall} operations each, which FlockDB executes at
+	 * evenly spaced times within the next off-peak window. Use this to move large, non-urgent mutations away from
+	 * traffic peaks. The calls are sent right away, so that FlockDB can reject them before this method returns.
+	 *
+	 * @throws ChunkedExecutionException if some of the calls failed. Calls after a failed one are not sent.
+	 */
+	public void executeOffPeak(OffPeakWindow window, int operationsPerCall) {
+		Date now = new Date();
+		executeSpreadOver(window.nextStart(now), window.nextEnd(now), operationsPerCall);
+	}
+
+	/**
+	 * Like {@link #executeOffPeak(OffPeakWindow, int)}, but spreads the calls over the given time window.
+	 */
+	public void executeSpreadOver(Date windowStart, Date windowEnd, int operationsPerCall) {
+		checkArgument(!windowEnd.before(windowStart), "The window must not end before it starts");
+		checkArgument(operationsPerCall > 0, "operationsPerCall must be positive");
+
+		List<List<ExecuteOperation>> partitions = Lists.partition(OperationMerger.merge(operations), operationsPerCall);
+		long startInSeconds = MILLISECONDS.toSeconds(windowStart.getTime());
+		long windowInSeconds = MILLISECONDS.toSeconds(windowEnd.getTime()) - startInSeconds;
+		List<ExecuteOperations> chunks = new ArrayList<>();
+		for (int i = 0; i < partitions.size(); i++) {
+			chunks.add(new ExecuteOperations(partitions.get(i), priority)
+				           .setExecute_at(Ints.checkedCast(startInSeconds + windowInSeconds * i / partitions.size())));
+		}
+
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+		try {
+			for (int i = 0; i < chunks.size(); i++) {
+				try {
+					backingFlockClient.execute(chunks.get(i));
+				} catch (FlockException | TException e) {
+					throw new ChunkedExecutionException(i, Collections.singletonList(new FailedChunk(chunks.get(i), e)),
+					                                    chunks.subList(i + 1, chunks.size()));
+				}
+			}
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+
+	private ExecuteOperations toExecuteOperations() {
+		ExecuteOperations executeOperations = new ExecuteOperations(operations, priority);
+		if (executionTime != null) {
+			executeOperations.setExecute_at(Ints.checkedCast(MILLISECONDS.toSeconds(executionTime.getTime())));
+		}
+		return executeOperations;
+	}
+
 	Iface getBackingFlockClient() {
 		return backingFlockClient;
 	}
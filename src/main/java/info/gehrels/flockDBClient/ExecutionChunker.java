@@ -0,0 +1,377 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.QueryTerm;
+import info.gehrels.flockDBClient.ChunkedExecutionException.FailedChunk;
+import org.apache.thrift.TException;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static info.gehrels.flockDBClient.ByteHelper.BYTES_PER_ID;
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static info.gehrels.flockDBClient.ByteHelper.asLongBuffer;
+
+/**
+ * Splits large batch executions into calls of at most {@code maxOperationsPerCall} operations and roughly
+ * {@code maxBytesPerCall} bytes, operations with too many destination ids being split themselves. Operations are
+ * distributed over {@code lanes} by the source node of the edges they touch, i.e. forward operations by their source id
+ * and backward operations by their destination ids. The lanes are sent in parallel, while the calls of a lane are sent
+ * one after the other, so that operations on the same edge keep their order, no matter in which direction they are
+ * written. Batches containing backward operations on all edges of a node are sent in a single lane.
+ */
+class ExecutionChunker {
+	// Thrift encoding of an execute operation without its destination ids, rounded up
+	private static final int OPERATION_OVERHEAD_BYTES = 64;
+
+	private final int maxOperationsPerCall;
+	private final int maxBytesPerCall;
+	private final int lanes;
+	private final ExecutorService executor;
+
+	ExecutionChunker(int maxOperationsPerCall, int maxBytesPerCall, int lanes, ExecutorService executor) {
+		if (maxOperationsPerCall < 1 || maxBytesPerCall < OPERATION_OVERHEAD_BYTES + BYTES_PER_ID || lanes < 1) {
+			throw new IllegalArgumentException("Illegal chunking limits: " + maxOperationsPerCall + " operations, "
+			                                   + maxBytesPerCall + " bytes, " + lanes + " lanes");
+		}
+
+		this.maxOperationsPerCall = maxOperationsPerCall;
+		this.maxBytesPerCall = maxBytesPerCall;
+		this.lanes = lanes;
+		this.executor = executor;
+	}
+
+	void execute(final Iface client, ExecuteOperations batch) throws TException, FlockException {
+		List<Lane> chunkedLanes = split(batch);
+		if (isSingleCall(chunkedLanes)) {
+			client.execute(singleCall(chunkedLanes, batch));
+			return;
+		}
+
+		final Deadline deadline = Deadline.current();
+		List<Future<?>> sentLanes = new ArrayList<>();
+		for (final Lane lane : chunkedLanes.subList(1, chunkedLanes.size())) {
+			sentLanes.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					Deadline previous = Deadline.enter(deadline);
+					try {
+						lane.send(client);
+					} finally {
+						Deadline.restore(previous);
+					}
+				}
+			}));
+		}
+		chunkedLanes.get(0).send(client);
+
+		for (Future<?> sentLane : sentLanes) {
+			try {
+				getUninterruptibly(sentLane);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new FlockDBException(e);
+			}
+		}
+		throwIfFailed(chunkedLanes);
+	}
+
+	ListenableFuture<Void> executeAsync(AsyncFlockClient client, ExecuteOperations batch) {
+		List<Lane> chunkedLanes = split(batch);
+		if (isSingleCall(chunkedLanes)) {
+			return client.execute(singleCall(chunkedLanes, batch));
+		}
+
+		AsyncExecution execution = new AsyncExecution(client, chunkedLanes);
+		for (Lane lane : chunkedLanes) {
+			execution.sendNext(lane);
+		}
+		return execution.result;
+	}
+
+	private List<Lane> split(ExecuteOperations batch) {
+		List<ExecuteOperation> pieces = new ArrayList<>();
+		long totalBytes = 0;
+		for (ExecuteOperation operation : OperationMerger.merge(batch.getOperations())) {
+			for (ExecuteOperation piece : splitDestinationIds(operation)) {
+				pieces.add(piece);
+				totalBytes += estimatedSize(piece);
+			}
+		}
+
+		// Spreading a batch, which fits into a single call, over several lanes would only cost additional calls
+		int usableLanes = pieces.size() <= maxOperationsPerCall && totalBytes <= maxBytesPerCall ? 1 : lanes;
+		if (touchesEdgesOfAllLanes(pieces)) {
+			usableLanes = 1;
+		}
+		Lane[] lanesByIndex = new Lane[usableLanes];
+		List<Lane> usedLanes = new ArrayList<>();
+		for (ExecuteOperation piece : pieces) {
+			QueryTerm term = piece.getTerm();
+			if (usableLanes == 1 || term.isIs_forward()) {
+				addToLane(lanesByIndex, usedLanes, batch, laneIndex(term.getSource_id(), usableLanes), piece);
+				continue;
+			}
+
+			// The backward operation on B listing A touches the edge A -> B, which belongs to the lane of A
+			LongBuffer destinationIds = asLongBuffer(term.bufferForDestination_ids());
+			int[] idsPerLane = new int[usableLanes];
+			for (int i = 0; i < destinationIds.limit(); i++) {
+				idsPerLane[laneIndex(destinationIds.get(i), usableLanes)]++;
+			}
+			for (int index = 0; index < usableLanes; index++) {
+				if (idsPerLane[index] == destinationIds.limit()) {
+					addToLane(lanesByIndex, usedLanes, batch, index, piece);
+				} else if (idsPerLane[index] > 0) {
+					long[] laneIds = new long[idsPerLane[index]];
+					int count = 0;
+					for (int i = 0; i < destinationIds.limit(); i++) {
+						if (laneIndex(destinationIds.get(i), usableLanes) == index) {
+							laneIds[count++] = destinationIds.get(i);
+						}
+					}
+					addToLane(lanesByIndex, usedLanes, batch, index, withDestinationIds(piece, laneIds));
+				}
+			}
+		}
+
+		for (Lane lane : usedLanes) {
+			lane.closeChunk();
+		}
+		return usedLanes;
+	}
+
+	/**
+	 * Returns whether one of the operations touches all incoming edges of a node, whose sources may belong to any lane.
+	 */
+	private static boolean touchesEdgesOfAllLanes(List<ExecuteOperation> operations) {
+		for (ExecuteOperation operation : operations) {
+			if (!operation.getTerm().isIs_forward() && !operation.getTerm().isSetDestination_ids()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int laneIndex(long nodeId, int usableLanes) {
+		return ((int) (nodeId ^ (nodeId >>> 32)) & Integer.MAX_VALUE) % usableLanes;
+	}
+
+	private void addToLane(Lane[] lanesByIndex, List<Lane> usedLanes, ExecuteOperations batch, int index,
+	                       ExecuteOperation operation) {
+		if (lanesByIndex[index] == null) {
+			lanesByIndex[index] = new Lane(batch);
+			usedLanes.add(lanesByIndex[index]);
+		}
+		lanesByIndex[index].add(operation, estimatedSize(operation));
+	}
+
+	private static boolean isSingleCall(List<Lane> chunkedLanes) {
+		return chunkedLanes.isEmpty() || (chunkedLanes.size() == 1 && chunkedLanes.get(0).chunks.size() == 1);
+	}
+
+	private static ExecuteOperations singleCall(List<Lane> chunkedLanes, ExecuteOperations batch) {
+		return chunkedLanes.isEmpty()
+			? OperationMerger.withOperations(batch, Collections.<ExecuteOperation>emptyList())
+			: chunkedLanes.get(0).chunks.get(0);
+	}
+
+	private List<ExecuteOperation> splitDestinationIds(ExecuteOperation operation) {
+		QueryTerm term = operation.getTerm();
+		if (!term.isSetDestination_ids() || estimatedSize(operation) <= maxBytesPerCall) {
+			return Collections.singletonList(operation);
+		}
+
+		// The ids are copied bytewise instead of being decoded and encoded again. Slices of the original bytes would be
+		// cheaper, but the generated getDestination_ids() returns the whole backing array for slices starting at 0.
+		ByteBuffer destinationIds = term.bufferForDestination_ids().duplicate();
+		int bytesPerPiece = (maxBytesPerCall - OPERATION_OVERHEAD_BYTES) / BYTES_PER_ID * BYTES_PER_ID;
+		List<ExecuteOperation> pieces = new ArrayList<>();
+		while (destinationIds.hasRemaining()) {
+			byte[] pieceIds = new byte[Math.min(bytesPerPiece, destinationIds.remaining())];
+			destinationIds.get(pieceIds);
+			pieces.add(withDestinationIds(operation, ByteBuffer.wrap(pieceIds)));
+		}
+		return pieces;
+	}
+
+	private static ExecuteOperation withDestinationIds(ExecuteOperation operation, long[] destinationIds) {
+		return withDestinationIds(operation, asByteBuffer(destinationIds));
+	}
+
+	private static ExecuteOperation withDestinationIds(ExecuteOperation operation, ByteBuffer destinationIds) {
+		QueryTerm term = operation.getTerm();
+		ExecuteOperation copy = new ExecuteOperation(
+			operation.getOperation_type(),
+			new QueryTerm(term.getSource_id(), term.getGraph_id(), term.isIs_forward())
+				.setDestination_ids(destinationIds)
+				.setState_ids(term.getState_ids())
+		);
+		if (operation.isSetPosition()) {
+			copy.setPosition(operation.getPosition());
+		}
+		return copy;
+	}
+
+	private static int estimatedSize(ExecuteOperation operation) {
+		QueryTerm term = operation.getTerm();
+		int size = OPERATION_OVERHEAD_BYTES;
+		if (term.isSetDestination_ids()) {
+			size += term.bufferForDestination_ids().remaining();
+		}
+		if (term.isSetState_ids()) {
+			size += 4 * term.getState_idsSize();
+		}
+		return size;
+	}
+
+	private static void throwIfFailed(List<Lane> chunkedLanes) {
+		int executedChunks = 0;
+		List<FailedChunk> failedChunks = new ArrayList<>();
+		List<ExecuteOperations> unsentChunks = new ArrayList<>();
+		for (Lane lane : chunkedLanes) {
+			executedChunks += lane.sentChunks;
+			if (lane.failure != null) {
+				executedChunks--;
+				failedChunks.add(new FailedChunk(lane.chunks.get(lane.sentChunks - 1), lane.failure));
+				unsentChunks.addAll(lane.chunks.subList(lane.sentChunks, lane.chunks.size()));
+			}
+		}
+
+		if (!failedChunks.isEmpty()) {
+			throw new ChunkedExecutionException(executedChunks, failedChunks, unsentChunks);
+		}
+	}
+
+	private final class Lane {
+		final ExecuteOperations batch;
+		final List<ExecuteOperations> chunks = new ArrayList<>();
+		List<ExecuteOperation> currentChunk = new ArrayList<>();
+		int currentChunkBytes;
+		int sentChunks;
+		Exception failure;
+
+		Lane(ExecuteOperations batch) {
+			this.batch = batch;
+		}
+
+		void add(ExecuteOperation operation, int bytes) {
+			if (!currentChunk.isEmpty()
+			    && (currentChunk.size() >= maxOperationsPerCall || currentChunkBytes + bytes > maxBytesPerCall)) {
+				closeChunk();
+			}
+			currentChunk.add(operation);
+			currentChunkBytes += bytes;
+		}
+
+		void closeChunk() {
+			if (!currentChunk.isEmpty()) {
+				chunks.add(OperationMerger.withOperations(batch, currentChunk));
+				currentChunk = new ArrayList<>();
+				currentChunkBytes = 0;
+			}
+		}
+
+		void send(Iface client) {
+			while (sentChunks < chunks.size()) {
+				ExecuteOperations chunk = chunks.get(sentChunks++);
+				try {
+					client.execute(chunk);
+				} catch (TException | FlockException e) {
+					failure = e;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the next chunk of a lane, when the previous one succeeded, and completes the result once all lanes are
+	 * done.
+	 */
+	private final class AsyncExecution {
+		final AsyncFlockClient client;
+		final List<Lane> chunkedLanes;
+		final Deadline deadline = Deadline.current();
+		final AtomicInteger pendingLanes;
+		final SettableFuture<Void> result = SettableFuture.create();
+
+		AsyncExecution(AsyncFlockClient client, List<Lane> chunkedLanes) {
+			this.client = client;
+			this.chunkedLanes = chunkedLanes;
+			this.pendingLanes = new AtomicInteger(chunkedLanes.size());
+		}
+
+		void sendNext(final Lane lane) {
+			if (lane.sentChunks == lane.chunks.size()) {
+				laneDone();
+				return;
+			}
+
+			final ListenableFuture<Void> sent;
+			Deadline previous = Deadline.enter(deadline);
+			try {
+				sent = client.execute(lane.chunks.get(lane.sentChunks++));
+			} finally {
+				Deadline.restore(previous);
+			}
+			sent.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						getUninterruptibly(sent);
+						sendNext(lane);
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						lane.failure = (Exception) (cause instanceof FlockDBException ? cause.getCause() : cause);
+						laneDone();
+					}
+				}
+			}, FutureHelper.SAME_THREAD_EXECUTOR);
+		}
+
+		private void laneDone() {
+			if (pendingLanes.decrementAndGet() > 0) {
+				return;
+			}
+			try {
+				throwIfFailed(chunkedLanes);
+				result.set(null);
+			} catch (ChunkedExecutionException e) {
+				result.setException(e);
+			}
+		}
+	}
+}
@@ -5,12 +5,26 @@ import org.apache.thrift.TException;
 
 public class FlockAndThriftExceptionHandling {
 	public static <T> T handleFlockAndThriftExceptions(MethodObject<T> methodObject) {
+		return handleFlockAndThriftExceptions(null, methodObject);
+	}
+
+	/**
+	 * Executes the method object with the given (or an earlier, already current) deadline being the current one.
+	 */
+	static <T> T handleFlockAndThriftExceptions(Deadline deadline, MethodObject<T> methodObject) {
+		Deadline previous = Deadline.enter(deadline);
 		try {
+			Deadline current = Deadline.current();
+			if (current != null) {
+				current.check();
+			}
 			return methodObject.call();
 		} catch (TException e) {
 			throw new FlockDBException(e);
 		} catch (FlockException e) {
 			throw new FlockDBException(e);
+		} finally {
+			Deadline.restore(previous);
 		}
 	}
 
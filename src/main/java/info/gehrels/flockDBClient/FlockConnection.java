@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A single, non thread safe connection to a FlockDB server, consisting of the Thrift client and the transport it talks
+ * through.
+ */
+class FlockConnection implements Closeable {
+	private final Iface client;
+	private final TTransport transport;
+	private final TSocket socket;
+	private final int timeoutInMilliSeconds;
+	private int currentTimeoutInMilliSeconds;
+	private long lastUsedNanos;
+
+	FlockConnection(Iface client, TTransport transport) {
+		this(client, transport, null, 0);
+	}
+
+	private FlockConnection(Iface client, TTransport transport, TSocket socket, int timeoutInMilliSeconds) {
+		this.client = client;
+		this.transport = transport;
+		this.socket = socket;
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		this.currentTimeoutInMilliSeconds = timeoutInMilliSeconds;
+		this.lastUsedNanos = System.nanoTime();
+	}
+
+	static FlockConnection open(String hostname, int port, int timeoutInMilliSeconds) throws TTransportException {
+		TSocket socket = new TSocket(hostname, port, timeoutInMilliSeconds);
+		TTransport transport = new TFramedTransport(socket);
+		transport.open();
+		return new FlockConnection(new IdDecodingFlockClient(new TBinaryProtocol(transport)), transport, socket,
+		                           timeoutInMilliSeconds);
+	}
+
+	/**
+	 * Lowers the socket timeout to the time remaining until the deadline for the next call, or resets it to the
+	 * configured one if there is no deadline.
+	 */
+	void limitTimeoutTo(Deadline deadline) {
+		if (socket == null) {
+			return;
+		}
+
+		int timeout = timeoutInMilliSeconds;
+		if (deadline != null) {
+			long remaining = Math.max(1, NANOSECONDS.toMillis(deadline.remainingNanos()));
+			if (timeout <= 0 || remaining < timeout) {
+				timeout = (int) remaining;
+			}
+		}
+
+		if (timeout != currentTimeoutInMilliSeconds) {
+			socket.setTimeout(timeout);
+			currentTimeoutInMilliSeconds = timeout;
+		}
+	}
+
+	Iface getClient() {
+		return client;
+	}
+
+	boolean isOpen() {
+		return transport.isOpen();
+	}
+
+	/**
+	 * Unlike {@link #isOpen()}, also detects connections the server closed, by waiting up to a millisecond for the end
+	 * of the stream. Connections with unexpected data pending are not alive either.
+	 */
+	boolean isAlive() {
+		if (!transport.isOpen()) {
+			return false;
+		}
+		if (socket == null) {
+			return true;
+		}
+
+		Socket rawSocket = socket.getSocket();
+		try {
+			int timeout = rawSocket.getSoTimeout();
+			rawSocket.setSoTimeout(1);
+			try {
+				rawSocket.getInputStream().read();
+				return false;
+			} finally {
+				rawSocket.setSoTimeout(timeout);
+			}
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	void markUsed() {
+		lastUsedNanos = System.nanoTime();
+	}
+
+	long getIdleNanos() {
+		return System.nanoTime() - lastUsedNanos;
+	}
+}
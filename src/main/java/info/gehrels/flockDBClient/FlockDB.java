@@ -17,50 +17,104 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.twitter.flockdb.thrift.Edge;
-import com.twitter.flockdb.thrift.FlockDB.Client;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
 import com.twitter.flockdb.thrift.Metadata;
 import com.twitter.flockdb.thrift.Priority;
 import info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.MethodObject;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
 
 public class FlockDB {
-	private TTransport transport;
-	private Iface backingFlockClient;
+	private final Iface backingFlockClient;
+	private final AsyncFlockClient asyncFlockClient;
+	private final HedgingStatistics hedgingStatistics;
+	private final PointReadCacheStatistics pointReadCacheStatistics;
+	private final ContainsFilters containsFilters;
+	private final WriteBuffer writeBuffer;
+	private final ExecutionChunker executionChunker;
+	private final WriteBehindJournal writeBehindJournal;
+	private final List<ExecutionListener> executionListeners;
+	private final List<Closeable> resources;
+	private final long timeoutInMilliSeconds;
 
 	public FlockDB(String hostname, int port) throws IOException {
 		this(hostname, port, 1000);
 	}
 
 	public FlockDB(String hostname, int port, int timeoutInMilliSeconds) throws IOException {
-		transport = new TFramedTransport(new TSocket(hostname, port, timeoutInMilliSeconds));
-		TProtocol protocol = new TBinaryProtocol(transport);
-		try {
-			transport.open();
-		} catch (TTransportException e) {
-			throw new IOException("Opening the transport failed", e);
-		}
-		backingFlockClient = new Client(protocol);
+		this(openConnection(hostname, port, timeoutInMilliSeconds));
+	}
+
+	private FlockDB(FlockConnection connection) {
+		this(connection.getClient(), null, Collections.<Closeable>singletonList(connection));
+	}
+
+	FlockDB(Iface backingFlockClient, AsyncFlockClient asyncFlockClient, List<Closeable> resources) {
+		this(backingFlockClient, asyncFlockClient, null, null, null, null, null, null,
+		     Collections.<ExecutionListener>emptyList(), resources);
+	}
+
+	FlockDB(Iface backingFlockClient, AsyncFlockClient asyncFlockClient, HedgingStatistics hedgingStatistics,
+	        PointReadCacheStatistics pointReadCacheStatistics, ContainsFilters containsFilters, WriteBuffer writeBuffer,
+	        ExecutionChunker executionChunker, WriteBehindJournal writeBehindJournal,
+	        List<ExecutionListener> executionListeners, List<Closeable> resources) {
+		this(backingFlockClient, asyncFlockClient, hedgingStatistics, pointReadCacheStatistics, containsFilters,
+		     writeBuffer, executionChunker, writeBehindJournal, executionListeners, resources, 0);
+	}
+
+	private FlockDB(Iface backingFlockClient, AsyncFlockClient asyncFlockClient, HedgingStatistics hedgingStatistics,
+	                PointReadCacheStatistics pointReadCacheStatistics, ContainsFilters containsFilters,
+	                WriteBuffer writeBuffer, ExecutionChunker executionChunker, WriteBehindJournal writeBehindJournal,
+	                List<ExecutionListener> executionListeners, List<Closeable> resources,
+	                long timeoutInMilliSeconds) {
+		this.backingFlockClient = backingFlockClient;
+		this.asyncFlockClient = asyncFlockClient;
+		this.hedgingStatistics = hedgingStatistics;
+		this.pointReadCacheStatistics = pointReadCacheStatistics;
+		this.containsFilters = containsFilters;
+		this.writeBuffer = writeBuffer;
+		this.executionChunker = executionChunker;
+		this.writeBehindJournal = writeBehindJournal;
+		this.executionListeners = executionListeners;
+		this.resources = resources;
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+	}
+
+	/**
+	 * Returns a view on this instance, whose calls fail with a {@link FlockDBException} if they did not complete within
+	 * the given time. This applies to the single edge and metadata lookups as well as to all queries built by the
+	 * view, unless they set a timeout of their own. The view shares its connections with this instance, so closing
+	 * either of them closes both.
+	 */
+	public FlockDB withTimeout(long timeoutInMilliSeconds) {
+		return new FlockDB(backingFlockClient, asyncFlockClient, hedgingStatistics, pointReadCacheStatistics,
+		                   containsFilters, writeBuffer, executionChunker, writeBehindJournal, executionListeners,
+		                   resources, timeoutInMilliSeconds);
 	}
 
 	FlockDB(Iface flockDbIFaceMock) {
-		backingFlockClient = flockDbIFaceMock;
+		this(flockDbIFaceMock, null, Collections.<Closeable>emptyList());
 	}
 
 	public boolean contains(final long sourceId, final int graphId, final long destinationId) {
-		return handleFlockAndThriftExceptions(new MethodObject<Boolean>() {
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<Boolean>() {
 			@Override
 			public Boolean call() throws TException, FlockException {
 				return backingFlockClient.contains(sourceId, graphId, destinationId);
@@ -68,8 +122,32 @@ public class FlockDB {
 		});
 	}
 
+	/**
+	 * Returns for each of the given destination ids, whether the graph contains an edge from the source node to it.
+	 * They are looked up with a single call, unless there are more than {@value MultiPointReads#MAX_IDS_PER_CALL}.
+	 */
+	public boolean[] containsAll(long sourceId, int graphId, long... destinationIds) {
+		long[] sourceIds = new long[destinationIds.length];
+		Arrays.fill(sourceIds, sourceId);
+		return containsAll(sourceIds, graphId, destinationIds);
+	}
+
+	/**
+	 * Like {@link #containsAll(long, int, long...)}, but returns whether the graph contains an edge from
+	 * {@code sourceIds[i]} to {@code destinationIds[i]}, for each {@code i}.
+	 */
+	public boolean[] containsAll(final long[] sourceIds, final int graphId, final long[] destinationIds) {
+		checkArgument(sourceIds.length == destinationIds.length, "There must be as many source as destination ids");
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<boolean[]>() {
+			@Override
+			public boolean[] call() throws TException, FlockException {
+				return MultiPointReads.containsAll(backingFlockClient, sourceIds, graphId, destinationIds);
+			}
+		});
+	}
+
 	public Edge get(final long sourceId, final int graphId, final long destinationId) {
-		return handleFlockAndThriftExceptions(new MethodObject<Edge>() {
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<Edge>() {
 			@Override
 			public Edge call() throws TException, FlockException {
 				return backingFlockClient.get(sourceId, graphId, destinationId);
@@ -77,8 +155,21 @@ public class FlockDB {
 		});
 	}
 
+	/**
+	 * Returns the edges from the source node to each of the given destination ids, or null where there is none. They
+	 * are looked up with a single call, unless there are more than {@value MultiPointReads#MAX_IDS_PER_CALL}.
+	 */
+	public Edge[] getAll(final long sourceId, final int graphId, final long... destinationIds) {
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<Edge[]>() {
+			@Override
+			public Edge[] call() throws TException, FlockException {
+				return MultiPointReads.getAll(backingFlockClient, sourceId, graphId, destinationIds);
+			}
+		});
+	}
+
 	public Metadata getMetadata(final long sourceId, final int graphId) {
-		return handleFlockAndThriftExceptions(new MethodObject<Metadata>() {
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<Metadata>() {
 			@Override
 			public Metadata call() throws TException, FlockException {
 				return backingFlockClient.get_metadata(sourceId, graphId);
@@ -86,8 +177,55 @@ public class FlockDB {
 		});
 	}
 
+	/**
+	 * Returns the metadata of each of the given nodes. If this instance has been built with async connections, all
+	 * lookups are sent at once, otherwise one after the other. If only the number of edges is needed, prefer
+	 * {@link #countAll(int, Direction, long...)}, which needs a single call.
+	 */
+	public Metadata[] getMetadataAll(final int graphId, final long... sourceIds) {
+		if (asyncFlockClient == null) {
+			return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<Metadata[]>() {
+				@Override
+				public Metadata[] call() throws TException, FlockException {
+					return MultiPointReads.getMetadataAll(backingFlockClient, graphId, sourceIds);
+				}
+			});
+		}
+
+		List<ListenableFuture<Metadata>> lookups = new ArrayList<>(sourceIds.length);
+		Deadline previous = Deadline.enter(newDeadline());
+		try {
+			for (long sourceId : sourceIds) {
+				lookups.add(asyncFlockClient.getMetadata(sourceId, graphId));
+			}
+		} finally {
+			Deadline.restore(previous);
+		}
+
+		try {
+			return getUninterruptibly(Futures.allAsList(lookups)).toArray(new Metadata[sourceIds.length]);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new FlockDBException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of edges of each of the given nodes in the given direction, counted with a single call.
+	 */
+	public int[] countAll(final int graphId, final Direction direction, final long... sourceIds) {
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<int[]>() {
+			@Override
+			public int[] call() throws TException, FlockException {
+				return MultiPointReads.countAll(backingFlockClient, graphId, direction, sourceIds);
+			}
+		});
+	}
+
 	public boolean containsMetadata(final long sourceId, final int graphId) {
-		return handleFlockAndThriftExceptions(new MethodObject<Boolean>() {
+		return handleFlockAndThriftExceptions(newDeadline(), new MethodObject<Boolean>() {
 			@Override
 			public Boolean call() throws TException, FlockException {
 				return backingFlockClient.contains_metadata(sourceId, graphId);
@@ -96,24 +234,103 @@ public class FlockDB {
 	}
 
 	public SelectionBuilder select(SelectionQuery firstQuery) {
-		return new SelectionBuilder(backingFlockClient).select(firstQuery);
+		return new SelectionBuilder(backingFlockClient, asyncFlockClient).withTimeout(timeoutInMilliSeconds)
+			.select(firstQuery);
 	}
 
 	public CountBuilder count(SelectionQuery selectionQuery) {
-		return new CountBuilder(backingFlockClient).count(selectionQuery);
+		return new CountBuilder(backingFlockClient, asyncFlockClient).withTimeout(timeoutInMilliSeconds)
+			.count(selectionQuery);
 	}
 
 	public EdgeSelectionBuilder selectEdges(long sourceId, int graphId, Direction direction,
 	                                        long... destinationIds) {
-		return new EdgeSelectionBuilder(backingFlockClient).selectEdges(sourceId, graphId, direction, destinationIds);
+		return new EdgeSelectionBuilder(backingFlockClient, asyncFlockClient).withTimeout(timeoutInMilliSeconds)
+			.selectEdges(sourceId, graphId, direction, destinationIds);
 	}
 
 	public ExecutionBuilder batchExecution(Priority priority) {
-		return new ExecutionBuilder(backingFlockClient, priority);
+		return new ExecutionBuilder(backingFlockClient, asyncFlockClient, executionChunker, writeBehindJournal,
+		                            executionListeners, priority).withTimeout(timeoutInMilliSeconds);
+	}
+
+	/**
+	 * Returns a non blocking view on this instance. Queries built by {@link #select}, {@link #count},
+	 * {@link #selectEdges} and {@link #batchExecution} can also be executed asynchronously using their
+	 * {@code executeAsync()} methods.
+	 *
+	 * @throws IllegalStateException if this instance has not been built with async connections.
+	 */
+	public AsyncFlockDB async() {
+		checkState(asyncFlockClient != null, "This FlockDB instance has not been configured for async calls");
+		return new AsyncFlockDB(asyncFlockClient, timeoutInMilliSeconds);
+	}
+
+	/**
+	 * @throws IllegalStateException if this instance has not been built with hedged reads.
+	 */
+	public HedgingStatistics hedgingStatistics() {
+		checkState(hedgingStatistics != null, "This FlockDB instance has not been configured for hedged reads");
+		return hedgingStatistics;
+	}
+
+	/**
+	 * @throws IllegalStateException if this instance has not been built with a point read cache.
+	 */
+	public PointReadCacheStatistics pointReadCacheStatistics() {
+		checkState(pointReadCacheStatistics != null,
+		           "This FlockDB instance has not been configured with a point read cache");
+		return pointReadCacheStatistics;
+	}
+
+	/**
+	 * Returns the Bloom filters answering {@link #contains} for hot source nodes, which have to be loaded explicitly.
+	 *
+	 * @throws IllegalStateException if this instance has not been built with contains filters.
+	 */
+	public ContainsFilters containsFilters() {
+		checkState(containsFilters != null, "This FlockDB instance has not been configured with contains filters");
+		return containsFilters;
+	}
+
+	/**
+	 * Returns the write buffer shared by all users of this instance. Operations submitted to it are sent in batches
+	 * together with those of other threads, instead of one {@link #batchExecution} call each. Closing this instance
+	 * sends all operations still buffered.
+	 *
+	 * @throws IllegalStateException if this instance has not been built with a write buffer.
+	 */
+	public WriteBuffer writeBuffer() {
+		checkState(writeBuffer != null, "This FlockDB instance has not been configured with a write buffer");
+		return writeBuffer;
 	}
 
 	public void close() {
-		transport.close();
+		IOException failure = null;
+		for (Closeable resource : resources) {
+			try {
+				resource.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		if (failure != null) {
+			throw new FlockDBException(failure);
+		}
+	}
+
+	private Deadline newDeadline() {
+		return Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+	}
+
+	private static FlockConnection openConnection(String hostname, int port, int timeoutInMilliSeconds)
+		throws IOException {
+		try {
+			return FlockConnection.open(hostname, port, timeoutInMilliSeconds);
+		} catch (TTransportException e) {
+			throw new IOException("Opening the transport failed", e);
+		}
 	}
 
 }
@@ -0,0 +1,583 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.Priority;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Creates {@link FlockDB} instances, that may safely be shared between threads. Each call borrows a connection from
+ * a bounded connection pool, so that up to {@code maxConnections} calls may be executed concurrently.
+ * <p/>
+ * If more than one endpoint is given, each endpoint gets a connection pool of its own and calls are balanced between
+ * them, preferring endpoints with fewer outstanding calls and skipping endpoints which failed or became slow.
+ */
+public class FlockDBBuilder {
+	private final List<InetSocketAddress> endpoints = new ArrayList<>();
+	private int timeoutInMilliSeconds = 1000;
+	private int minConnections = 1;
+	private int maxConnections = 8;
+	private long borrowTimeoutInMilliSeconds = 1000;
+	private long idleTimeoutInMilliSeconds = 60000;
+	private boolean validateOnBorrow = true;
+	private int maxAsyncConnections = 0;
+	private int maxPendingCallsPerConnection = 0;
+	private int failuresBeforeEjection = 3;
+	private long ejectionTimeInMilliSeconds = 30000;
+	private long maxAverageLatencyInMilliSeconds = Long.MAX_VALUE;
+	private double hedgingPercentile = 0;
+	private double maxHedgingExtraLoad = 0;
+	private int maxBufferedOperations = 0;
+	private long writeLingerInMilliSeconds = 0;
+	private int maxOperationsPerCall = 0;
+	private int maxBytesPerCall = 0;
+	private int parallelCallsPerExecution = 1;
+	private File journalFile;
+	private long journalCapacityInBytes;
+	private int maxConcurrentWrites = 0;
+	private final Map<Priority, Integer> writeWeights = new EnumMap<>(Priority.class);
+	private final Map<Priority, Double> writeRateLimits = new EnumMap<>(Priority.class);
+	private long selectCacheBytes = 0;
+	private long selectCacheTtlInMilliSeconds = 0;
+	private final Map<Integer, Long> selectCacheTtlsInMilliSeconds = new HashMap<>();
+	private int pointReadCacheEntries = 0;
+	private long pointReadCacheTtlInMilliSeconds = 0;
+	private long pointReadCacheNegativeTtlInMilliSeconds = 0;
+	private int bytesPerContainsFilter = 0;
+	private int maxContainsFilters = 0;
+	private boolean coalesceReads = false;
+	private int maxQueriesPerBatchedRead = 0;
+	private long readLingerInMilliSeconds = 0;
+
+	public FlockDBBuilder(String hostname, int port) {
+		withEndpoint(hostname, port);
+		writeWeights.put(Priority.High, 16);
+		writeWeights.put(Priority.Medium, 4);
+		writeWeights.put(Priority.Low, 1);
+	}
+
+	/**
+	 * Replaces the connection pool by a single connection per endpoint, over which up to
+	 * {@code maxPendingCallsPerConnection} calls are sent without waiting for the responses of the calls before. Each
+	 * call still blocks its calling thread, but many threads may share one socket. The connection pool settings are
+	 * ignored in this mode.
+	 */
+	public FlockDBBuilder withPipelining(int maxPendingCallsPerConnection) {
+		this.maxPendingCallsPerConnection = maxPendingCallsPerConnection;
+		return this;
+	}
+
+	/**
+	 * Adds another FlockDB app server, calls will be balanced between all endpoints.
+	 */
+	public FlockDBBuilder withEndpoint(String hostname, int port) {
+		endpoints.add(InetSocketAddress.createUnresolved(hostname, port));
+		return this;
+	}
+
+	/**
+	 * An endpoint failing {@code failuresBeforeEjection} calls in a row on the transport level will not be used for
+	 * {@code ejectionTimeInMilliSeconds}. Has no effect unless multiple endpoints are given.
+	 */
+	public FlockDBBuilder withEjectionOfFailingEndpoints(int failuresBeforeEjection, long ejectionTimeInMilliSeconds) {
+		this.failuresBeforeEjection = failuresBeforeEjection;
+		this.ejectionTimeInMilliSeconds = ejectionTimeInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * An endpoint whose moving average latency exceeds {@code maxAverageLatencyInMilliSeconds} will be ejected like a
+	 * failing one. Has no effect unless multiple endpoints are given.
+	 */
+	public FlockDBBuilder withEjectionOfSlowEndpoints(long maxAverageLatencyInMilliSeconds) {
+		this.maxAverageLatencyInMilliSeconds = maxAverageLatencyInMilliSeconds;
+		return this;
+	}
+
+	public FlockDBBuilder withTimeout(int timeoutInMilliSeconds) {
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		return this;
+	}
+
+	public FlockDBBuilder withConnectionPoolSize(int minConnections, int maxConnections) {
+		this.minConnections = minConnections;
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Limits how long a call waits for a free connection, if all {@code maxConnections} connections are in use.
+	 */
+	public FlockDBBuilder withBorrowTimeout(long borrowTimeoutInMilliSeconds) {
+		this.borrowTimeoutInMilliSeconds = borrowTimeoutInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * Connections exceeding {@code minConnections}, which have not been used for this long, will be closed. They are
+	 * looked for on every borrow, and every half of the idle timeout.
+	 */
+	public FlockDBBuilder withIdleTimeout(long idleTimeoutInMilliSeconds) {
+		this.idleTimeoutInMilliSeconds = idleTimeoutInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * If enabled, idle connections are checked for a still open transport before they are handed out. Connections idle
+	 * for more than a second are also probed for having been closed by the server, which takes up to a millisecond.
+	 */
+	public FlockDBBuilder withValidationOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+		return this;
+	}
+
+	/**
+	 * Enables {@link FlockDB#async()} and the {@code executeAsync()} methods of all query builders. Asynchronous calls
+	 * are multiplexed over up to {@code maxAsyncConnections} non blocking connections, which are all served by a single
+	 * selector thread. Calls exceeding that number are queued without blocking the calling thread.
+	 */
+	public FlockDBBuilder withAsyncConnections(int maxAsyncConnections) {
+		this.maxAsyncConnections = maxAsyncConnections;
+		return this;
+	}
+
+	/**
+	 * Enables hedged reads for {@link FlockDB#contains}, {@link FlockDB#get}, {@link FlockDB#getMetadata} and
+	 * {@link FlockDB#containsMetadata}: If a call did not answer within the {@code percentile} (e.g. 0.95) of the
+	 * recently observed latencies, an identical call is sent over another connection, and the first answer wins. At
+	 * most {@code maxExtraLoad} (e.g. 0.05) additional calls per call are sent this way. The calls are sent from a pool
+	 * of up to two threads per pooled connection, calls exceeding it are sent from the calling thread without hedging.
+	 * See {@link FlockDB#hedgingStatistics()} for how often this happened.
+	 */
+	public FlockDBBuilder withHedgedReads(double percentile, double maxExtraLoad) {
+		this.hedgingPercentile = percentile;
+		this.maxHedgingExtraLoad = maxExtraLoad;
+		return this;
+	}
+
+	/**
+	 * Enables {@link FlockDB#writeBuffer()}, which sends the operations submitted to it by all threads in batches of
+	 * up to {@code maxOperationsPerBatch} operations. A batch which did not fill up is sent after waiting at most
+	 * {@code lingerInMilliSeconds} for further operations.
+	 */
+	public FlockDBBuilder withWriteBuffer(int maxOperationsPerBatch, long lingerInMilliSeconds) {
+		this.maxBufferedOperations = maxOperationsPerBatch;
+		this.writeLingerInMilliSeconds = lingerInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * Splits batch executions into calls of at most {@code maxOperationsPerCall} operations and roughly
+	 * {@code maxBytesPerCall} bytes. Up to {@code parallelCallsPerExecution} of these calls are sent at the same time,
+	 * operations on the same edge are always sent one after the other in the order they were added, even if one of them
+	 * is written in backward direction.
+	 */
+	public FlockDBBuilder withChunkedExecution(int maxOperationsPerCall, int maxBytesPerCall,
+	                                           int parallelCallsPerExecution) {
+		this.maxOperationsPerCall = maxOperationsPerCall;
+		this.maxBytesPerCall = maxBytesPerCall;
+		this.parallelCallsPerExecution = parallelCallsPerExecution;
+		return this;
+	}
+
+	/**
+	 * Enables {@link ExecutionBuilder#executeWriteBehind()}, which appends operations to a memory mapped journal in
+	 * the given file, and sends them in the background. If the file already contains a journal, its operations not
+	 * confirmed by FlockDB yet are sent again, and its capacity is kept.
+	 */
+	public FlockDBBuilder withWriteBehindJournal(File journalFile, long capacityInBytes) {
+		this.journalFile = journalFile;
+		this.journalCapacityInBytes = capacityInBytes;
+		return this;
+	}
+
+	/**
+	 * Lets at most {@code maxConcurrentWrites} batch executions use connections at the same time. Further executions
+	 * wait in a queue per priority, and the queues are served in proportion to their weights, see
+	 * {@link #withWriteWeight}. This includes the executions sent by the write behind journal, but not asynchronous
+	 * ones ({@code executeAsync()}), as waiting for a slot would block the calling thread. Those are only limited by
+	 * the number of asynchronous connections, see {@link #withAsyncConnections}.
+	 */
+	public FlockDBBuilder withWriteScheduling(int maxConcurrentWrites) {
+		this.maxConcurrentWrites = maxConcurrentWrites;
+		return this;
+	}
+
+	/**
+	 * Sets the share of free write slots executions of the given priority get, if executions of several priorities
+	 * are waiting. Defaults to 16 for {@code High}, 4 for {@code Medium} and 1 for {@code Low}. Has no effect unless
+	 * write scheduling is enabled.
+	 */
+	public FlockDBBuilder withWriteWeight(Priority priority, int weight) {
+		writeWeights.put(priority, weight);
+		return this;
+	}
+
+	/**
+	 * Limits the operations per second executed with the given priority. Has no effect unless write scheduling is
+	 * enabled, and like it, does not apply to asynchronous executions.
+	 */
+	public FlockDBBuilder withWriteRateLimit(Priority priority, double operationsPerSecond) {
+		writeRateLimits.put(priority, operationsPerSecond);
+		return this;
+	}
+
+	/**
+	 * Caches the pages returned by selections for {@code ttlInMilliSeconds}, so that identical selections are answered
+	 * without a call. The cache holds up to roughly {@code maxBytes} of node ids. Batch executions of this instance,
+	 * including asynchronous ones, invalidate the cached pages of the nodes they touch, executions by other clients are
+	 * only seen after the time to live expired. Asynchronous selections are not cached.
+	 */
+	public FlockDBBuilder withSelectCache(long maxBytes, long ttlInMilliSeconds) {
+		this.selectCacheBytes = maxBytes;
+		this.selectCacheTtlInMilliSeconds = ttlInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * Overrides the time to live of cached pages selecting from the given graph. Has no effect unless the select cache
+	 * is enabled.
+	 */
+	public FlockDBBuilder withSelectCacheTtl(int graphId, long ttlInMilliSeconds) {
+		selectCacheTtlsInMilliSeconds.put(graphId, ttlInMilliSeconds);
+		return this;
+	}
+
+	/**
+	 * Caches the results of {@link FlockDB#contains}, {@link FlockDB#get} and {@link FlockDB#getMetadata} for
+	 * {@code ttlInMilliSeconds}, and results of {@link FlockDB#contains} telling that an edge does not exist for
+	 * {@code negativeTtlInMilliSeconds}. Missing edges and nodes failing {@link FlockDB#get} and
+	 * {@link FlockDB#getMetadata} are not cached. At most {@code maxEntries} results are kept. Batch executions of this
+	 * instance, including asynchronous ones, invalidate the results of the edges and nodes they touch, executions by
+	 * other clients are only seen after the time to live expired. See {@link FlockDB#pointReadCacheStatistics()} for how
+	 * often the cache answered.
+	 */
+	public FlockDBBuilder withPointReadCache(int maxEntries, long ttlInMilliSeconds, long negativeTtlInMilliSeconds) {
+		this.pointReadCacheEntries = maxEntries;
+		this.pointReadCacheTtlInMilliSeconds = ttlInMilliSeconds;
+		this.pointReadCacheNegativeTtlInMilliSeconds = negativeTtlInMilliSeconds;
+		return this;
+	}
+
+	/**
+	 * Enables {@link FlockDB#containsFilters()}, Bloom filters of the outgoing edges of up to {@code maxFilters} hot
+	 * source nodes, which let {@link FlockDB#contains} answer that an edge does not exist without a call. Each filter
+	 * takes {@code bytesPerFilter} bytes; one byte per edge gives a false positive rate of about 2%.
+	 */
+	public FlockDBBuilder withContainsFilters(int bytesPerFilter, int maxFilters) {
+		this.bytesPerContainsFilter = bytesPerFilter;
+		this.maxContainsFilters = maxFilters;
+		return this;
+	}
+
+	/**
+	 * Lets concurrent, identical reads share a single call: A thread asking what another thread is already waiting
+	 * for waits for the same answer instead of sending a call of its own. This protects FlockDB from floods of
+	 * identical selections, e.g. of the followers of a popular account. Asynchronous calls are not coalesced.
+	 */
+	public FlockDBBuilder withCoalescedReads() {
+		this.coalesceReads = true;
+		return this;
+	}
+
+	/**
+	 * Gathers the selections, counts and edge selections of concurrent threads into shared calls of up to
+	 * {@code maxQueriesPerCall} queries. The first thread of such a call waits up to {@code lingerInMilliSeconds} for
+	 * others to join. A query failing on the server fails all threads of its call.
+	 */
+	public FlockDBBuilder withMicroBatchedReads(int maxQueriesPerCall, long lingerInMilliSeconds) {
+		this.maxQueriesPerBatchedRead = maxQueriesPerCall;
+		this.readLingerInMilliSeconds = lingerInMilliSeconds;
+		return this;
+	}
+
+	public FlockDB build() throws IOException {
+		List<Closeable> resources = new ArrayList<>();
+		AsyncFlockClient asyncFlockClient = null;
+		if (maxAsyncConnections > 0) {
+			final TAsyncClientManager clientManager = new TAsyncClientManager();
+			final AtomicInteger nextEndpoint = new AtomicInteger();
+			asyncFlockClient = new AsyncFlockClient(new AsyncConnectionFactory() {
+				@Override
+				public AsyncFlockConnection openConnection() throws IOException {
+					InetSocketAddress endpoint =
+						endpoints.get((nextEndpoint.getAndIncrement() & Integer.MAX_VALUE) % endpoints.size());
+					return AsyncFlockConnection.open(clientManager, endpoint.getHostString(), endpoint.getPort(),
+					                                 timeoutInMilliSeconds);
+				}
+			}, maxAsyncConnections);
+			resources.add(asyncFlockClient);
+			resources.add(new Closeable() {
+				@Override
+				public void close() {
+					clientManager.stop();
+				}
+			});
+		}
+
+		// Only starts a thread once the first connection pool schedules its eviction
+		ScheduledExecutorService evictionScheduler = newDaemonScheduler("FlockDB idle connection evictor", resources);
+
+		if (endpoints.size() == 1) {
+			try {
+				return build(connect(endpoints.get(0), minConnections, evictionScheduler, resources), asyncFlockClient,
+				             resources);
+			} catch (IOException e) {
+				close(resources);
+				throw e;
+			}
+		}
+
+		List<Iface> clients = new ArrayList<>(endpoints.size());
+		IOException lastFailure = null;
+		int failedEndpoints = 0;
+		for (InetSocketAddress endpoint : endpoints) {
+			try {
+				clients.add(connect(endpoint, minConnections, evictionScheduler, resources));
+			} catch (IOException e) {
+				// An endpoint being down must not prevent using the others, it will be ejected on first use
+				lastFailure = e;
+				failedEndpoints++;
+				clients.add(connect(endpoint, 0, evictionScheduler, resources));
+			}
+		}
+
+		if (failedEndpoints == endpoints.size()) {
+			close(resources);
+			throw lastFailure;
+		}
+
+		try {
+			return build(new LoadBalancingFlockClient(clients, failuresBeforeEjection,
+			                                          MILLISECONDS.toNanos(ejectionTimeInMilliSeconds),
+			                                          MILLISECONDS.toNanos(maxAverageLatencyInMilliSeconds)),
+			             asyncFlockClient, resources);
+		} catch (IOException e) {
+			close(resources);
+			throw e;
+		}
+	}
+
+	private FlockDB build(Iface client, AsyncFlockClient asyncFlockClient, List<Closeable> resources)
+		throws IOException {
+		// Clients keeping state derived from executions, which need to see asynchronous executions, too
+		List<ExecutionListener> executionListeners = new ArrayList<>();
+
+		if (maxConcurrentWrites > 0) {
+			Map<Priority, RateLimiter> rateLimiters = new EnumMap<>(Priority.class);
+			for (Map.Entry<Priority, Double> rateLimit : writeRateLimits.entrySet()) {
+				rateLimiters.put(rateLimit.getKey(), RateLimiter.create(rateLimit.getValue()));
+			}
+			client = new PriorityWriteScheduler(client, maxConcurrentWrites, writeWeights, rateLimiters);
+		}
+
+		HedgingStatistics hedgingStatistics = null;
+		if (hedgingPercentile > 0) {
+			// Enough threads for a first attempt and a hedge on every pooled connection, further calls hedge no more
+			ExecutorService executor = newDaemonThreadPool("FlockDB hedged read %d",
+			                                               2 * maxConnections * endpoints.size(), resources);
+			hedgingStatistics = new HedgingStatistics();
+			client = new HedgingFlockClient(client, executor, hedgingPercentile, maxHedgingExtraLoad,
+			                                hedgingStatistics);
+		}
+
+		if (maxQueriesPerBatchedRead > 0) {
+			client = new MicroBatchingFlockClient(client, maxQueriesPerBatchedRead,
+			                                      MILLISECONDS.toNanos(readLingerInMilliSeconds));
+		}
+
+		if (coalesceReads) {
+			CoalescingFlockClient coalescingClient = new CoalescingFlockClient(client);
+			executionListeners.add(coalescingClient);
+			client = coalescingClient;
+		}
+
+		if (selectCacheBytes > 0) {
+			Map<Integer, Long> ttlNanosByGraph = new HashMap<>();
+			for (Map.Entry<Integer, Long> ttl : selectCacheTtlsInMilliSeconds.entrySet()) {
+				ttlNanosByGraph.put(ttl.getKey(), MILLISECONDS.toNanos(ttl.getValue()));
+			}
+			SelectCachingFlockClient cachingClient =
+				new SelectCachingFlockClient(client, selectCacheBytes, MILLISECONDS.toNanos(selectCacheTtlInMilliSeconds),
+				                             ttlNanosByGraph, Ticker.systemTicker());
+			executionListeners.add(cachingClient);
+			client = cachingClient;
+		}
+
+		PointReadCacheStatistics pointReadCacheStatistics = null;
+		if (pointReadCacheEntries > 0) {
+			pointReadCacheStatistics = new PointReadCacheStatistics();
+			PointReadCachingFlockClient cachingClient =
+				new PointReadCachingFlockClient(client, pointReadCacheEntries,
+				                                MILLISECONDS.toNanos(pointReadCacheTtlInMilliSeconds),
+				                                MILLISECONDS.toNanos(pointReadCacheNegativeTtlInMilliSeconds),
+				                                Ticker.systemTicker(), pointReadCacheStatistics);
+			executionListeners.add(cachingClient);
+			client = cachingClient;
+		}
+
+		ContainsFilters containsFilters = null;
+		if (maxContainsFilters > 0) {
+			ContainsFilteringFlockClient filteringClient =
+				new ContainsFilteringFlockClient(client, bytesPerContainsFilter, maxContainsFilters);
+			containsFilters = new ContainsFilters(filteringClient);
+			executionListeners.add(filteringClient);
+			client = filteringClient;
+		}
+
+		WriteBuffer writeBuffer = null;
+		if (maxBufferedOperations > 0) {
+			writeBuffer = new WriteBuffer(client, maxBufferedOperations,
+			                              MILLISECONDS.toNanos(writeLingerInMilliSeconds));
+			// Buffered operations must be sent before the connections are closed
+			resources.add(0, writeBuffer);
+		}
+
+		ExecutionChunker executionChunker = null;
+		if (maxOperationsPerCall > 0) {
+			executionChunker = new ExecutionChunker(maxOperationsPerCall, maxBytesPerCall, parallelCallsPerExecution,
+			                                        newDaemonThreadPool("FlockDB chunk sender %d", resources));
+		}
+
+		WriteBehindJournal writeBehindJournal = null;
+		if (journalFile != null) {
+			// Sends through the whole chain, so journaled executions are scheduled and invalidate the caches, too
+			writeBehindJournal = new WriteBehindJournal(journalFile, journalCapacityInBytes, client);
+			// Stop draining before the connections are closed
+			resources.add(0, writeBehindJournal);
+		}
+
+		return new FlockDB(client, asyncFlockClient, hedgingStatistics, pointReadCacheStatistics, containsFilters,
+		                   writeBuffer, executionChunker, writeBehindJournal, executionListeners, resources);
+	}
+
+	/**
+	 * Creates the client for a single endpoint and opens {@code minConnections} connections to it right away.
+	 */
+	private Iface connect(final InetSocketAddress endpoint, int minConnections,
+	                      ScheduledExecutorService evictionScheduler, List<Closeable> resources) throws IOException {
+		if (maxPendingCallsPerConnection > 0) {
+			PipelinedFlockClient client = new PipelinedFlockClient(new PipelinedConnectionFactory() {
+				@Override
+				public PipelinedFlockConnection openConnection() throws TTransportException {
+					return PipelinedFlockConnection.open(endpoint.getHostString(), endpoint.getPort(),
+					                                     timeoutInMilliSeconds, maxPendingCallsPerConnection);
+				}
+			});
+			if (minConnections > 0) {
+				try {
+					client.getOpenConnection();
+				} catch (TTransportException e) {
+					throw new IOException("Opening the transport failed", e);
+				}
+			}
+			resources.add(client);
+			return client;
+		}
+
+		final ConnectionPool connectionPool = createConnectionPool(new ConnectionFactory() {
+			@Override
+			public FlockConnection openConnection() throws TTransportException {
+				return FlockConnection.open(endpoint.getHostString(), endpoint.getPort(), timeoutInMilliSeconds);
+			}
+		}, minConnections);
+		resources.add(connectionPool);
+		long evictionPeriodInMilliSeconds = Math.max(1, idleTimeoutInMilliSeconds / 2);
+		evictionScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionPool.evictIdleConnections();
+			}
+		}, evictionPeriodInMilliSeconds, evictionPeriodInMilliSeconds, MILLISECONDS);
+		return new PooledFlockClient(connectionPool);
+	}
+
+	private ConnectionPool createConnectionPool(ConnectionFactory connectionFactory, int minConnections)
+		throws IOException {
+		try {
+			return new ConnectionPool(connectionFactory, minConnections, maxConnections,
+			                          MILLISECONDS.toNanos(borrowTimeoutInMilliSeconds),
+			                          MILLISECONDS.toNanos(idleTimeoutInMilliSeconds),
+			                          validateOnBorrow);
+		} catch (TTransportException e) {
+			throw new IOException("Opening the transport failed", e);
+		}
+	}
+
+	private static ExecutorService newDaemonThreadPool(String nameFormat, List<Closeable> resources) {
+		return newDaemonThreadPool(nameFormat, Integer.MAX_VALUE, resources);
+	}
+
+	/**
+	 * Like a cached thread pool, but rejecting tasks while {@code maxThreads} threads are busy.
+	 */
+	private static ExecutorService newDaemonThreadPool(String nameFormat, int maxThreads, List<Closeable> resources) {
+		final ExecutorService executor =
+			new ThreadPoolExecutor(0, maxThreads, 60, SECONDS, new SynchronousQueue<Runnable>(),
+			                       new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build());
+		resources.add(new Closeable() {
+			@Override
+			public void close() {
+				executor.shutdown();
+			}
+		});
+		return executor;
+	}
+
+	private static ScheduledExecutorService newDaemonScheduler(String name, List<Closeable> resources) {
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name).build());
+		resources.add(new Closeable() {
+			@Override
+			public void close() {
+				scheduler.shutdown();
+			}
+		});
+		return scheduler;
+	}
+
+	private static void close(List<Closeable> resources) throws IOException {
+		for (Closeable resource : resources) {
+			resource.close();
+		}
+	}
+}
@@ -11,4 +11,8 @@ public class FlockDBException extends RuntimeException {
 	public FlockDBException(Exception e) {
 		super(e);
 	}
+
+	protected FlockDBException(String message, Exception e) {
+		super(message, e);
+	}
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.thrift.transport.TTransportException.TIMED_OUT;
+
+/**
+ * Static helpers around {@link ListenableFuture}s, limited to those parts of Guavas future utilities, that are
+ * available in all Guava versions this library supports.
+ */
+final class FutureHelper {
+	static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private FutureHelper() {
+	}
+
+	static <F, T> ListenableFuture<T> transform(final ListenableFuture<F> input,
+	                                            final Function<? super F, ? extends T> function) {
+		final SettableFuture<T> output = SettableFuture.create();
+		input.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					output.set(function.apply(getUninterruptibly(input)));
+				} catch (ExecutionException e) {
+					output.setException(e.getCause());
+				} catch (RuntimeException e) {
+					output.setException(e);
+				}
+			}
+		}, SAME_THREAD_EXECUTOR);
+		return output;
+	}
+
+	/**
+	 * Returns a future completing like the given one, but only after the given action has been run, so that whoever
+	 * waits for the result sees the effects of the action.
+	 */
+	static <T> ListenableFuture<T> completingAfter(final ListenableFuture<T> input, final Runnable action) {
+		final SettableFuture<T> output = SettableFuture.create();
+		input.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					action.run();
+					output.set(getUninterruptibly(input));
+				} catch (ExecutionException e) {
+					output.setException(e.getCause());
+				} catch (RuntimeException e) {
+					output.setException(e);
+				}
+			}
+		}, SAME_THREAD_EXECUTOR);
+		return output;
+	}
+
+	/**
+	 * Waits for the result of a call made by another thread on behalf of the current one, at most until the deadline
+	 * of the current thread, and throws the failure of that call as if it had been made by the current thread.
+	 */
+	static <T> T awaitCall(ListenableFuture<T> call) throws TException, FlockException {
+		Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				return getUninterruptibly(call);
+			}
+			return getUninterruptibly(call, deadline.remainingNanos(), NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new TTransportException(TIMED_OUT, "The deadline of the call has been exceeded");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TException) {
+				throw (TException) cause;
+			}
+			if (cause instanceof FlockException) {
+				throw (FlockException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new FlockDBException(e);
+		}
+	}
+}
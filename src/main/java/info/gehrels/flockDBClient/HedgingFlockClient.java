@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.thrift.transport.TTransportException.TIMED_OUT;
+
+/**
+ * Sends a second, identical request for point reads whose first attempt did not answer within the configured latency
+ * percentile, and returns whichever answer arrives first. The backing client is expected to start the second attempt
+ * on another connection (or, when balancing between endpoints, most likely on another endpoint, since the first
+ * attempt is still outstanding there). To cap the additional load, each call earns {@code maxExtraLoad} hedges, and a
+ * hedge is only fired if a whole one has been earned. All other calls are passed through unchanged.
+ * <p/>
+ * The attempts run on the given executor. If it rejects the first attempt, that attempt runs on the calling thread,
+ * and if it rejects a hedge, the hedge is suppressed, so a bounded executor caps the threads without failing calls.
+ */
+class HedgingFlockClient extends CallDispatchingFlockClient {
+	private static final int LATENCY_WINDOW = 1024;
+	private static final long HEDGE_COST = 1000000;
+	private static final long MAX_SAVED_HEDGES = 10;
+
+	private final Iface backingFlockClient;
+	private final Executor executor;
+	private final LatencyTracker latencyTracker;
+	private final long budgetPerCall;
+	private final AtomicLong budget = new AtomicLong();
+	private final HedgingStatistics statistics;
+
+	HedgingFlockClient(Iface backingFlockClient, Executor executor, double percentile, double maxExtraLoad,
+	                   HedgingStatistics statistics) {
+		if (maxExtraLoad <= 0 || maxExtraLoad > 1) {
+			throw new IllegalArgumentException("Illegal maximum extra load: " + maxExtraLoad);
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.executor = executor;
+		this.latencyTracker = new LatencyTracker(percentile, LATENCY_WINDOW);
+		// Rounded up, so that even a tiny extra load eventually earns a hedge
+		this.budgetPerCall = (long) Math.ceil(maxExtraLoad * HEDGE_COST);
+		this.statistics = statistics;
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		if (call instanceof PointRead) {
+			return hedge(call);
+		}
+		return call.call(backingFlockClient);
+	}
+
+	private <T> T hedge(FlockCall<T> call) throws TException, FlockException {
+		statistics.callStarted();
+		earnBudget();
+
+		Deadline deadline = Deadline.current();
+		HedgedCall<T> hedgedCall = new HedgedCall<>(call, deadline);
+		Runnable firstAttempt = hedgedCall.newAttempt(false);
+		try {
+			executor.execute(firstAttempt);
+		} catch (RejectedExecutionException e) {
+			firstAttempt.run();
+		}
+
+		long hedgeDelay = latencyTracker.getPercentileNanos();
+		if (hedgeDelay >= 0 && hedgeDelay < Deadline.remainingNanos(deadline, Long.MAX_VALUE)) {
+			try {
+				return hedgedCall.get(hedgeDelay);
+			} catch (TimeoutException e) {
+				if (!spendBudget()) {
+					statistics.hedgeSuppressed();
+				} else if (hedgedCall.startHedge()) {
+					try {
+						executor.execute(hedgedCall.newAttempt(true));
+						statistics.hedgeFired();
+					} catch (RejectedExecutionException rejected) {
+						hedgedCall.hedgeRejected();
+						statistics.hedgeSuppressed();
+					}
+				}
+			}
+		}
+
+		if (deadline == null) {
+			return hedgedCall.get();
+		}
+		try {
+			return hedgedCall.get(deadline.remainingNanos());
+		} catch (TimeoutException e) {
+			throw new TTransportException(TIMED_OUT, "The deadline of the call has been exceeded");
+		}
+	}
+
+	private void earnBudget() {
+		long current;
+		long updated;
+		do {
+			current = budget.get();
+			updated = Math.min(current + budgetPerCall, MAX_SAVED_HEDGES * HEDGE_COST);
+		} while (current != updated && !budget.compareAndSet(current, updated));
+	}
+
+	private boolean spendBudget() {
+		long current;
+		do {
+			current = budget.get();
+			if (current < HEDGE_COST) {
+				return false;
+			}
+		} while (!budget.compareAndSet(current, current - HEDGE_COST));
+		return true;
+	}
+
+	/**
+	 * The attempts of a single point read. The first successful attempt completes the call, it fails only if all
+	 * started attempts failed.
+	 */
+	private final class HedgedCall<T> {
+		private final FlockCall<T> call;
+		private final Deadline deadline;
+		private final SettableFuture<T> result = SettableFuture.create();
+		private final AtomicBoolean won = new AtomicBoolean();
+		private int startedAttempts = 1;
+		private int failedAttempts;
+		private Exception firstFailure;
+
+		HedgedCall(FlockCall<T> call, Deadline deadline) {
+			this.call = call;
+			this.deadline = deadline;
+		}
+
+		synchronized boolean startHedge() {
+			if (result.isDone()) {
+				return false;
+			}
+			startedAttempts++;
+			return true;
+		}
+
+		void hedgeRejected() {
+			synchronized (this) {
+				// The first attempt may have failed in the meantime, waiting for the hedge to fail, too
+				if (--startedAttempts > failedAttempts) {
+					return;
+				}
+			}
+			result.setException(firstFailure);
+		}
+
+		Runnable newAttempt(final boolean hedge) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					T value;
+					Deadline previous = Deadline.enter(deadline);
+					try {
+						value = call.call(backingFlockClient);
+					} catch (TException | FlockException | RuntimeException e) {
+						failed(e);
+						return;
+					} finally {
+						Deadline.restore(previous);
+					}
+
+					latencyTracker.record(System.nanoTime() - start);
+					if (won.compareAndSet(false, true)) {
+						if (hedge) {
+							statistics.hedgeWon();
+						}
+						result.set(value);
+					}
+				}
+			};
+		}
+
+		private void failed(Exception e) {
+			synchronized (this) {
+				if (firstFailure == null) {
+					firstFailure = e;
+				}
+				if (++failedAttempts < startedAttempts) {
+					return;
+				}
+			}
+			result.setException(firstFailure);
+		}
+
+		T get(long timeoutNanos) throws TException, FlockException, TimeoutException {
+			try {
+				return result.get(timeoutNanos, NANOSECONDS);
+			} catch (InterruptedException e) {
+				throw interrupted();
+			} catch (ExecutionException e) {
+				throw rethrow(e);
+			}
+		}
+
+		T get() throws TException, FlockException {
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				throw interrupted();
+			} catch (ExecutionException e) {
+				throw rethrow(e);
+			}
+		}
+
+		private TException interrupted() {
+			Thread.currentThread().interrupt();
+			return new TException("Interrupted while waiting for a hedged FlockDB call");
+		}
+
+		private TException rethrow(ExecutionException e) throws FlockException {
+			Throwable cause = e.getCause();
+			if (cause instanceof FlockException) {
+				throw (FlockException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			return (TException) cause;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often hedged reads have been necessary and how often they paid off. A hedge is fired if the first attempt
+ * of a point read did not answer within the configured latency percentile, and it has won if it answered before that
+ * first attempt did.
+ */
+public final class HedgingStatistics {
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong hedgesFired = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+	private final AtomicLong hedgesSuppressed = new AtomicLong();
+
+	HedgingStatistics() {
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public long getHedgesFired() {
+		return hedgesFired.get();
+	}
+
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+
+	/**
+	 * Counts the hedges, which would have been fired, had the budget for additional calls not been exhausted.
+	 */
+	public long getHedgesSuppressed() {
+		return hedgesSuppressed.get();
+	}
+
+	void callStarted() {
+		calls.incrementAndGet();
+	}
+
+	void hedgeFired() {
+		hedgesFired.incrementAndGet();
+	}
+
+	void hedgeWon() {
+		hedgesWon.incrementAndGet();
+	}
+
+	void hedgeSuppressed() {
+		hedgesSuppressed.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "HedgingStatistics{calls=" + getCalls() + ", hedgesFired=" + getHedgesFired() + ", hedgesWon="
+		       + getHedgesWon() + ", hedgesSuppressed=" + getHedgesSuppressed() + "}";
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Client;
+import com.twitter.flockdb.thrift.FlockDB.select2_result;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Results;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The generated {@link Client}, except that {@code select2} returns {@link DecodedResults}, whose ids are decoded into
+ * {@code long[]}s while the response is read. The generated client would copy them out of the response frame into a
+ * {@code byte[]} first, which {@link PagedNodeIdList} would then have to decode again.
+ */
+class IdDecodingFlockClient extends Client {
+	IdDecodingFlockClient(TProtocol protocol) {
+		super(protocol);
+	}
+
+	IdDecodingFlockClient(TProtocol inputProtocol, TProtocol outputProtocol) {
+		super(inputProtocol, outputProtocol);
+	}
+
+	@Override
+	public List<Results> recv_select2() throws FlockException, TException {
+		select2_result result = new DecodingSelect2Result();
+		receiveBase(result, "select2");
+		if (result.isSetSuccess()) {
+			return result.success;
+		}
+		if (result.ex != null) {
+			throw result.ex;
+		}
+		throw new TApplicationException(TApplicationException.MISSING_RESULT, "select2 failed: unknown result");
+	}
+
+	private static final class DecodingSelect2Result extends select2_result {
+		private static final long serialVersionUID = 1L;
+		private static final short SUCCESS_FIELD_ID = 0;
+		private static final short EX_FIELD_ID = 1;
+
+		@Override
+		public void read(TProtocol iprot) throws TException {
+			iprot.readStructBegin();
+			while (true) {
+				TField field = iprot.readFieldBegin();
+				if (field.type == TType.STOP) {
+					break;
+				}
+
+				if (field.id == SUCCESS_FIELD_ID && field.type == TType.LIST) {
+					TList list = iprot.readListBegin();
+					success = new ArrayList<>(list.size);
+					for (int i = 0; i < list.size; i++) {
+						DecodedResults results = new DecodedResults();
+						results.read(iprot);
+						success.add(results);
+					}
+					iprot.readListEnd();
+				} else if (field.id == EX_FIELD_ID && field.type == TType.STRUCT) {
+					ex = new FlockException();
+					ex.read(iprot);
+				} else {
+					TProtocolUtil.skip(iprot, field.type);
+				}
+				iprot.readFieldEnd();
+			}
+			iprot.readStructEnd();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the latencies of the last {@code windowSize} calls and estimates a percentile of them. Recording is lock free,
+ * the percentile is recomputed by sorting a snapshot of the window each {@code windowSize / 8} recorded calls, so
+ * reading it is cheap.
+ */
+class LatencyTracker {
+	private final double percentile;
+	private final AtomicLongArray samples;
+	private final AtomicInteger recordedSamples = new AtomicInteger();
+	private final int recomputationInterval;
+	private volatile long percentileNanos = -1;
+
+	LatencyTracker(double percentile, int windowSize) {
+		if (percentile <= 0 || percentile >= 1) {
+			throw new IllegalArgumentException("Illegal percentile: " + percentile);
+		}
+
+		this.percentile = percentile;
+		this.samples = new AtomicLongArray(windowSize);
+		this.recomputationInterval = Math.max(1, windowSize / 8);
+	}
+
+	void record(long latencyNanos) {
+		int sample = recordedSamples.getAndIncrement() & Integer.MAX_VALUE;
+		samples.set(sample % samples.length(), latencyNanos);
+		if (sample + 1 >= samples.length() && (sample + 1) % recomputationInterval == 0) {
+			recompute();
+		}
+	}
+
+	/**
+	 * Returns -1 until the window has been filled once.
+	 */
+	long getPercentileNanos() {
+		return percentileNanos;
+	}
+
+	private void recompute() {
+		long[] snapshot = new long[samples.length()];
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = samples.get(i);
+		}
+		Arrays.sort(snapshot);
+		percentileNanos = snapshot[(int) Math.ceil(percentile * snapshot.length) - 1];
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads calls over several FlockDB app servers. Each call picks two random available endpoints and goes to the one
+ * with fewer outstanding calls (or, on a tie, the lower average latency). Endpoints are ejected for
+ * {@code ejectionTimeNanos} after {@code failuresBeforeEjection} consecutive transport failures, or as soon as their
+ * average latency exceeds {@code maxAverageLatencyNanos}. Calls failing because the deadline of the caller expired, or
+ * because a local wait timed out, do not count as failures, as they tell nothing about the endpoint. The last available
+ * endpoint is never ejected, and if all endpoints are ejected anyway, calls are spread over all of them.
+ */
+class LoadBalancingFlockClient extends CallDispatchingFlockClient {
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final List<Endpoint> endpoints;
+	private final int failuresBeforeEjection;
+	private final long ejectionTimeNanos;
+	private final long maxAverageLatencyNanos;
+	private final Random random = new Random();
+
+	LoadBalancingFlockClient(List<Iface> clients, int failuresBeforeEjection, long ejectionTimeNanos,
+	                         long maxAverageLatencyNanos) {
+		if (clients.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is required");
+		}
+
+		this.endpoints = new ArrayList<>(clients.size());
+		for (Iface client : clients) {
+			endpoints.add(new Endpoint(client));
+		}
+		this.failuresBeforeEjection = failuresBeforeEjection;
+		this.ejectionTimeNanos = ejectionTimeNanos;
+		this.maxAverageLatencyNanos = maxAverageLatencyNanos;
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		Endpoint endpoint = choose();
+		endpoint.outstandingCalls.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			T result = call.call(endpoint.client);
+			succeeded(endpoint, System.nanoTime() - start);
+			return result;
+		} catch (FlockException e) {
+			succeeded(endpoint, System.nanoTime() - start);
+			throw e;
+		} catch (TException e) {
+			if (isEndpointFailure(e)) {
+				failed(endpoint);
+			}
+			throw e;
+		} finally {
+			endpoint.outstandingCalls.decrementAndGet();
+		}
+	}
+
+	int getOutstandingCalls(int endpointIndex) {
+		return endpoints.get(endpointIndex).outstandingCalls.get();
+	}
+
+	boolean isAvailable(int endpointIndex) {
+		return endpoints.get(endpointIndex).isAvailable(System.nanoTime());
+	}
+
+	private Endpoint choose() {
+		List<Endpoint> candidates = availableEndpoints(System.nanoTime());
+		if (candidates.isEmpty()) {
+			candidates = endpoints;
+		}
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+
+		int first = random.nextInt(candidates.size());
+		int second = random.nextInt(candidates.size() - 1);
+		if (second >= first) {
+			second++;
+		}
+		return better(candidates.get(first), candidates.get(second));
+	}
+
+	private static Endpoint better(Endpoint a, Endpoint b) {
+		int outstandingA = a.outstandingCalls.get();
+		int outstandingB = b.outstandingCalls.get();
+		if (outstandingA != outstandingB) {
+			return outstandingA < outstandingB ? a : b;
+		}
+		return a.averageLatencyNanos <= b.averageLatencyNanos ? a : b;
+	}
+
+	private List<Endpoint> availableEndpoints(long now) {
+		List<Endpoint> available = new ArrayList<>(endpoints.size());
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.isAvailable(now)) {
+				available.add(endpoint);
+			}
+		}
+		return available;
+	}
+
+	private void succeeded(Endpoint endpoint, long latencyNanos) {
+		endpoint.consecutiveFailures.set(0);
+		long average = endpoint.averageLatencyNanos;
+		average = average == 0 ? latencyNanos : (long) (average + LATENCY_WEIGHT * (latencyNanos - average));
+		endpoint.averageLatencyNanos = average;
+		if (average > maxAverageLatencyNanos) {
+			eject(endpoint);
+		}
+	}
+
+	private static boolean isEndpointFailure(TException e) {
+		Deadline deadline = Deadline.current();
+		return !(e instanceof LocalWaitTimeoutException) && (deadline == null || !deadline.isExpired());
+	}
+
+	private void failed(Endpoint endpoint) {
+		if (endpoint.consecutiveFailures.incrementAndGet() >= failuresBeforeEjection) {
+			eject(endpoint);
+		}
+	}
+
+	private void eject(Endpoint endpoint) {
+		long now = System.nanoTime();
+		synchronized (endpoints) {
+			if (!endpoint.isAvailable(now) || availableEndpoints(now).size() < 2) {
+				return;
+			}
+			endpoint.consecutiveFailures.set(0);
+			// Start from scratch once the endpoint comes back, instead of ejecting it again on its old average
+			endpoint.averageLatencyNanos = 0;
+			endpoint.ejectedUntilNanos = now + ejectionTimeNanos;
+			endpoint.ejected = true;
+		}
+	}
+
+	private static final class Endpoint {
+		final Iface client;
+		final AtomicInteger outstandingCalls = new AtomicInteger();
+		final AtomicInteger consecutiveFailures = new AtomicInteger();
+		volatile long averageLatencyNanos;
+		volatile long ejectedUntilNanos;
+		volatile boolean ejected;
+
+		Endpoint(Iface client) {
+			this.client = client;
+		}
+
+		boolean isAvailable(long now) {
+			return !ejected || now - ejectedUntilNanos >= 0;
+		}
+	}
+}
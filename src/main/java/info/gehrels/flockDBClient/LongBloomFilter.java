@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of node ids, which may be read and written concurrently without locking. The bit positions of an id
+ * are derived from two independent hashes by double hashing.
+ */
+final class LongBloomFilter {
+	private static final int MAX_HASHES = 16;
+
+	private final AtomicLongArray words;
+	private final long bits;
+	private final int hashes;
+
+	/**
+	 * Creates a filter of {@code bytes} bytes, whose number of hashes minimizes the false positive rate for
+	 * {@code expectedIds} ids.
+	 */
+	LongBloomFilter(int bytes, long expectedIds) {
+		if (bytes < 8) {
+			throw new IllegalArgumentException("Illegal filter size: " + bytes + " bytes");
+		}
+
+		this.words = new AtomicLongArray(bytes / 8);
+		this.bits = words.length() * 64L;
+		this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bits * Math.log(2) / Math.max(1, expectedIds))));
+	}
+
+	void put(long id) {
+		long hash1 = mix(id);
+		long hash2 = mix(hash1 ^ id) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bits;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current;
+			do {
+				current = words.get(word);
+			} while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask));
+		}
+	}
+
+	/**
+	 * Returns false only if the id has definitely not been put into this filter.
+	 */
+	boolean mightContain(long id) {
+		long hash1 = mix(id);
+		long hash2 = mix(hash1 ^ id) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bits;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int sizeInBytes() {
+		return words.length() * 8;
+	}
+
+	int getHashes() {
+		return hashes;
+	}
+
+	// The finalization step of MurmurHash3, spreading each input bit over the whole hash
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		return value ^ (value >>> 33);
+	}
+}
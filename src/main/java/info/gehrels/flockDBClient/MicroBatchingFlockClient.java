@@ -0,0 +1,289 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.EdgeQuery;
+import com.twitter.flockdb.thrift.EdgeResults;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Gathers the queries of {@code select2}, {@code count2} and {@code select_edges} calls of many threads into one call
+ * each. The first thread of a batch waits up to {@code lingerNanos} for other threads to add their queries, or until
+ * the batch holds {@code maxQueries} queries. Then the thread with the latest {@link Deadline}, or one without a
+ * deadline, sends the whole batch within its own deadline, so that the call never fails for a deadline one of the other
+ * threads did not set. The other threads wait for their share of the result, but not beyond their own deadlines. As
+ * FlockDB fails a call as a whole, a single failing query fails all callers of its batch. All other calls are passed
+ * through unchanged.
+ */
+class MicroBatchingFlockClient extends CallDispatchingFlockClient {
+	// Handed to the thread chosen to send a batch instead of a result
+	private static final Object SEND_BATCH = new Object();
+
+	private final Iface backingFlockClient;
+	private final int maxQueries;
+	private final long lingerNanos;
+	private final AtomicLong sentCalls = new AtomicLong();
+	private final AtomicLong sentQueries = new AtomicLong();
+
+	private final Batcher<SelectQuery, List<Results>> select2Batcher = new Batcher<SelectQuery, List<Results>>() {
+		@Override
+		List<Results> send(Iface client, List<SelectQuery> queries) throws TException, FlockException {
+			return client.select2(queries);
+		}
+
+		@Override
+		List<Results> slice(List<Results> results, int from, int to) {
+			return new ArrayList<>(results.subList(from, to));
+		}
+	};
+
+	private final Batcher<List<SelectOperation>, ByteBuffer> count2Batcher =
+		new Batcher<List<SelectOperation>, ByteBuffer>() {
+			@Override
+			ByteBuffer send(Iface client, List<List<SelectOperation>> queries) throws TException, FlockException {
+				return client.count2(queries);
+			}
+
+			@Override
+			ByteBuffer slice(ByteBuffer counts, int from, int to) {
+				// Each count is a 32 bit integer
+				byte[] slice = new byte[(to - from) * 4];
+				ByteBuffer source = counts.duplicate();
+				source.position(source.position() + from * 4);
+				source.get(slice);
+				return ByteBuffer.wrap(slice);
+			}
+		};
+
+	private final Batcher<EdgeQuery, List<EdgeResults>> selectEdgesBatcher =
+		new Batcher<EdgeQuery, List<EdgeResults>>() {
+			@Override
+			List<EdgeResults> send(Iface client, List<EdgeQuery> queries) throws TException, FlockException {
+				return client.select_edges(queries);
+			}
+
+			@Override
+			List<EdgeResults> slice(List<EdgeResults> results, int from, int to) {
+				return new ArrayList<>(results.subList(from, to));
+			}
+		};
+
+	MicroBatchingFlockClient(Iface backingFlockClient, int maxQueries, long lingerNanos) {
+		if (maxQueries < 1 || lingerNanos < 0) {
+			throw new IllegalArgumentException("Illegal batch limits: " + maxQueries + " queries, " + lingerNanos + "ns");
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.maxQueries = maxQueries;
+		this.lingerNanos = lingerNanos;
+	}
+
+	@Override
+	public List<Results> select2(List<SelectQuery> queries) throws FlockException, TException {
+		return select2Batcher.call(queries);
+	}
+
+	@Override
+	public ByteBuffer count2(List<List<SelectOperation>> queries) throws FlockException, TException {
+		return count2Batcher.call(queries);
+	}
+
+	@Override
+	public List<EdgeResults> select_edges(List<EdgeQuery> queries) throws FlockException, TException {
+		return selectEdgesBatcher.call(queries);
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		return call.call(backingFlockClient);
+	}
+
+	long sentCalls() {
+		return sentCalls.get();
+	}
+
+	long sentQueries() {
+		return sentQueries.get();
+	}
+
+	int openSelect2Queries() {
+		return select2Batcher.openQueries();
+	}
+
+	/**
+	 * Batches the calls of one method. The queries of a batch are the concatenation of the queries of its callers, and
+	 * each caller gets the slice of the result matching its queries.
+	 */
+	private abstract class Batcher<Q, R> {
+		private Batch<Q, R> openBatch;
+
+		abstract R send(Iface client, List<Q> queries) throws TException, FlockException;
+
+		abstract R slice(R result, int from, int to);
+
+		synchronized int openQueries() {
+			return openBatch == null ? 0 : openBatch.queries.size();
+		}
+
+		R call(List<Q> queries) throws TException, FlockException {
+			Batch<Q, R> batch;
+			SettableFuture<Object> result = SettableFuture.create();
+			int caller;
+			boolean first;
+			synchronized (this) {
+				if (openBatch != null && openBatch.queries.size() + queries.size() > maxQueries) {
+					close(openBatch);
+				}
+				first = openBatch == null;
+				if (first) {
+					openBatch = new Batch<>();
+				}
+				batch = openBatch;
+				caller = batch.add(queries, result, Deadline.current());
+				if (batch.queries.size() >= maxQueries) {
+					close(batch);
+				}
+			}
+
+			if (first) {
+				linger(batch);
+				int sender = batch.callerWithLatestDeadline();
+				if (sender == caller) {
+					return sendBatch(batch, caller);
+				}
+				batch.results.get(sender).set(SEND_BATCH);
+			}
+
+			Object outcome = FutureHelper.awaitCall(result);
+			if (outcome == SEND_BATCH) {
+				return sendBatch(batch, caller);
+			}
+			@SuppressWarnings("unchecked")
+			R slice = (R) outcome;
+			return slice;
+		}
+
+		private void linger(Batch<Q, R> batch) {
+			long lingerEnd = System.nanoTime() + lingerNanos;
+			boolean interrupted = false;
+			synchronized (this) {
+				for (long remaining = lingerNanos; !batch.closed && remaining > 0;
+				     remaining = lingerEnd - System.nanoTime()) {
+					try {
+						NANOSECONDS.timedWait(this, remaining);
+					} catch (InterruptedException e) {
+						// The batch is sent anyway, the other callers wait for it
+						interrupted = true;
+						break;
+					}
+				}
+				if (!batch.closed) {
+					close(batch);
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void close(Batch<Q, R> batch) {
+			batch.closed = true;
+			if (openBatch == batch) {
+				openBatch = null;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Sends the batch, hands the other callers their slices of the result, and returns the slice of the sender.
+		 */
+		private R sendBatch(Batch<Q, R> batch, int sender) throws TException, FlockException {
+			sentCalls.incrementAndGet();
+			sentQueries.addAndGet(batch.queries.size());
+			R result;
+			try {
+				result = send(backingFlockClient, batch.queries);
+			} catch (Throwable e) {
+				for (int i = 0; i < batch.results.size(); i++) {
+					if (i != sender) {
+						batch.results.get(i).setException(e);
+					}
+				}
+				throw e;
+			}
+
+			for (int i = 0; i < batch.results.size(); i++) {
+				if (i != sender) {
+					batch.results.get(i).set(slice(result, batch.offsets.get(i), batch.offsets.get(i + 1)));
+				}
+			}
+			return slice(result, batch.offsets.get(sender), batch.offsets.get(sender + 1));
+		}
+	}
+
+	private static final class Batch<Q, R> {
+		final List<Q> queries = new ArrayList<>();
+		final List<Integer> offsets = new ArrayList<>();
+		final List<SettableFuture<Object>> results = new ArrayList<>();
+		final List<Deadline> deadlines = new ArrayList<>();
+		boolean closed;
+
+		Batch() {
+			offsets.add(0);
+		}
+
+		/**
+		 * Adds the queries of a caller, and returns its index within the batch.
+		 */
+		int add(List<Q> callerQueries, SettableFuture<Object> result, Deadline deadline) {
+			queries.addAll(callerQueries);
+			offsets.add(queries.size());
+			results.add(result);
+			deadlines.add(deadline);
+			return results.size() - 1;
+		}
+
+		/**
+		 * Returns the index of the caller with the latest deadline. Must not be called before the batch is closed.
+		 */
+		int callerWithLatestDeadline() {
+			int latest = 0;
+			for (int i = 1; i < deadlines.size(); i++) {
+				if (!Deadline.isNotEarlier(deadlines.get(latest), deadlines.get(i))) {
+					latest = i;
+				}
+			}
+			return latest;
+		}
+	}
+
+}
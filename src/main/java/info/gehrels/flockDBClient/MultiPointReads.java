@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.EdgeQuery;
+import com.twitter.flockdb.thrift.EdgeResults;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.Page;
+import com.twitter.flockdb.thrift.QueryTerm;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.twitter.flockdb.thrift.SelectOperationType.SimpleQuery;
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.util.Collections.singletonList;
+
+/**
+ * Answers many single edge and node lookups with a few calls. Edges are looked up by asking FlockDB, which of the given
+ * destination ids are among the edges of a source node. The lookups are grouped by source node, and a call carries at
+ * most {@link #MAX_IDS_PER_CALL} destination ids, so that large lookups stay well below the frame size limit.
+ */
+final class MultiPointReads {
+	static final int MAX_IDS_PER_CALL = 10000;
+
+	private MultiPointReads() {
+	}
+
+	/**
+	 * Returns for each pair of {@code sourceIds[i]} and {@code destinationIds[i]}, whether the graph contains an edge
+	 * from the former to the latter, like {@link Iface#contains(long, int, long)} does.
+	 */
+	static boolean[] containsAll(Iface client, long[] sourceIds, int graphId, long[] destinationIds)
+		throws TException, FlockException {
+		boolean[] contained = new boolean[destinationIds.length];
+		List<Lookup> lookups = new ArrayList<>();
+		int idsInCall = 0;
+		for (Lookup lookup : groupBySource(sourceIds, destinationIds)) {
+			if (idsInCall + lookup.size() > MAX_IDS_PER_CALL && !lookups.isEmpty()) {
+				select(client, graphId, lookups, destinationIds, contained);
+				lookups.clear();
+				idsInCall = 0;
+			}
+			lookups.add(lookup);
+			idsInCall += lookup.size();
+		}
+		if (!lookups.isEmpty()) {
+			select(client, graphId, lookups, destinationIds, contained);
+		}
+		return contained;
+	}
+
+	/**
+	 * Returns the edges from the source node to each of the given destination ids, or null where there is none.
+	 */
+	static Edge[] getAll(Iface client, long sourceId, int graphId, long[] destinationIds)
+		throws TException, FlockException {
+		Map<Long, Edge> edgesByDestination = new HashMap<>();
+		for (int from = 0; from < destinationIds.length; from += MAX_IDS_PER_CALL) {
+			long[] lookedUpIds = Arrays.copyOfRange(destinationIds, from,
+			                                        Math.min(from + MAX_IDS_PER_CALL, destinationIds.length));
+			QueryTerm term = new QueryTerm(sourceId, graphId, true).setDestination_ids(asByteBuffer(lookedUpIds));
+			EdgeQuery query = new EdgeQuery(term, new Page(lookedUpIds.length, -1));
+			for (EdgeResults results : client.select_edges(singletonList(query))) {
+				for (Edge edge : results.getEdges()) {
+					edgesByDestination.put(edge.getDestination_id(), edge);
+				}
+			}
+		}
+
+		Edge[] edges = new Edge[destinationIds.length];
+		for (int i = 0; i < destinationIds.length; i++) {
+			edges[i] = edgesByDestination.get(destinationIds[i]);
+		}
+		return edges;
+	}
+
+	/**
+	 * Returns the metadata of each of the given nodes. FlockDB has no call to get the metadata of several nodes, so
+	 * they are fetched one after the other.
+	 */
+	static Metadata[] getMetadataAll(Iface client, int graphId, long[] sourceIds) throws TException, FlockException {
+		Metadata[] metadata = new Metadata[sourceIds.length];
+		for (int i = 0; i < sourceIds.length; i++) {
+			metadata[i] = client.get_metadata(sourceIds[i], graphId);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Returns the number of edges of each of the given nodes in the given direction, counted by a single call.
+	 */
+	static int[] countAll(Iface client, int graphId, Direction direction, long[] sourceIds)
+		throws TException, FlockException {
+		if (sourceIds.length == 0) {
+			return new int[0];
+		}
+
+		List<List<SelectOperation>> queries = new ArrayList<>(sourceIds.length);
+		for (long sourceId : sourceIds) {
+			queries.add(singletonList(
+				new SelectOperation(SimpleQuery).setTerm(new QueryTerm(sourceId, graphId, direction.forward))));
+		}
+
+		ByteBuffer counts = client.count2(queries).duplicate().order(LITTLE_ENDIAN);
+		int[] result = new int[sourceIds.length];
+		counts.asIntBuffer().get(result);
+		return result;
+	}
+
+	private static void select(Iface client, int graphId, List<Lookup> lookups, long[] destinationIds,
+	                           boolean[] contained) throws TException, FlockException {
+		List<SelectQuery> queries = new ArrayList<>(lookups.size());
+		for (Lookup lookup : lookups) {
+			long[] lookedUpIds = lookup.destinationIds(destinationIds);
+			QueryTerm term = new QueryTerm(lookup.sourceId, graphId, true).setDestination_ids(asByteBuffer(lookedUpIds));
+			queries.add(new SelectQuery(singletonList(new SelectOperation(SimpleQuery).setTerm(term)),
+			                            new Page(lookedUpIds.length, -1)));
+		}
+
+		List<Results> results = client.select2(queries);
+		for (int i = 0; i < lookups.size(); i++) {
+			long[] existingIds = sorted(DecodedResults.idsOf(results.get(i)));
+			Lookup lookup = lookups.get(i);
+			for (int j = 0; j < lookup.size(); j++) {
+				int index = lookup.indexes[j];
+				contained[index] = Arrays.binarySearch(existingIds, destinationIds[index]) >= 0;
+			}
+		}
+	}
+
+	/**
+	 * Groups the indexes of the lookups by their source node, in the order the sources appear first, and splits
+	 * groups exceeding {@link #MAX_IDS_PER_CALL}.
+	 */
+	private static List<Lookup> groupBySource(long[] sourceIds, long[] destinationIds) {
+		Map<Long, Lookup> lookupsBySource = new LinkedHashMap<>();
+		List<Lookup> lookups = new ArrayList<>();
+		for (int i = 0; i < destinationIds.length; i++) {
+			Lookup lookup = lookupsBySource.get(sourceIds[i]);
+			if (lookup == null || lookup.size() == MAX_IDS_PER_CALL) {
+				lookup = new Lookup(sourceIds[i]);
+				lookupsBySource.put(sourceIds[i], lookup);
+				lookups.add(lookup);
+			}
+			lookup.add(i);
+		}
+		return lookups;
+	}
+
+	private static long[] sorted(LongBuffer ids) {
+		long[] sortedIds = new long[ids.remaining()];
+		ids.get(sortedIds);
+		Arrays.sort(sortedIds);
+		return sortedIds;
+	}
+
+	private static final class Lookup {
+		private final long sourceId;
+		private int[] indexes = new int[4];
+		private int size;
+
+		Lookup(long sourceId) {
+			this.sourceId = sourceId;
+		}
+
+		void add(int index) {
+			if (size == indexes.length) {
+				indexes = Arrays.copyOf(indexes, size * 2);
+			}
+			indexes[size++] = index;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long[] destinationIds(long[] allDestinationIds) {
+			long[] lookedUpIds = new long[size];
+			for (int i = 0; i < size; i++) {
+				lookedUpIds[i] = allDestinationIds[indexes[i]];
+			}
+			return lookedUpIds;
+		}
+	}
+}
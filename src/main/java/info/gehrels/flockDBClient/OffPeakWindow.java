@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A daily time window, e.g. from 1am to 5am, in which FlockDB has little traffic. Used to spread non-urgent batch
+ * executions, see {@link ExecutionBuilder#executeOffPeak(OffPeakWindow, int)}. Windows ending at an earlier hour than
+ * they start span midnight.
+ */
+public final class OffPeakWindow {
+	private final int startHour;
+	private final int endHour;
+	private final TimeZone timeZone;
+
+	private OffPeakWindow(int startHour, int endHour, TimeZone timeZone) {
+		this.startHour = startHour;
+		this.endHour = endHour;
+		this.timeZone = timeZone;
+	}
+
+	public static OffPeakWindow daily(int startHour, int endHour, TimeZone timeZone) {
+		checkArgument(startHour >= 0 && startHour < 24, "startHour must be between 0 and 23");
+		checkArgument(endHour >= 0 && endHour < 24, "endHour must be between 0 and 23");
+		checkArgument(startHour != endHour, "The window must not be empty");
+		return new OffPeakWindow(startHour, endHour, timeZone);
+	}
+
+	/**
+	 * Returns the start of the next window, or {@code now} if it is within a window.
+	 */
+	public Date nextStart(Date now) {
+		Date end = nextEnd(now);
+		// A window spanning midnight starts on the day before it ends
+		Date start = atHour(end, startHour, startHour > endHour ? -1 : 0);
+		return start.before(now) ? now : start;
+	}
+
+	/**
+	 * Returns the end of the current window, or of the next one if {@code now} is not within a window.
+	 */
+	public Date nextEnd(Date now) {
+		Date end = atHour(now, endHour, 0);
+		return end.after(now) ? end : atHour(now, endHour, 1);
+	}
+
+	private Date atHour(Date day, int hour, int addedDays) {
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.setTime(day);
+		calendar.add(Calendar.DAY_OF_MONTH, addedDays);
+		calendar.set(Calendar.HOUR_OF_DAY, hour);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.QueryTerm;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static info.gehrels.flockDBClient.ByteHelper.asLongBuffer;
+
+/**
+ * Shrinks a list of execute operations without changing its effect:
+ * <ul>
+ * <li>An operation on an edge, which is removed by a later operation of the same list, is dropped.</li>
+ * <li>Operations of the same type, source, graph, direction (and position) are merged into one operation listing all
+ * destination ids, as long as no operation in between touches one of the merged edges.</li>
+ * </ul>
+ * Operations without destination ids (i.e. on all edges of a node) or with state ids are kept unchanged, and nothing is
+ * merged across them.
+ */
+final class OperationMerger {
+	private OperationMerger() {
+	}
+
+	static ExecuteOperations merge(ExecuteOperations batch) {
+		return withOperations(batch, merge(batch.getOperations()));
+	}
+
+	/**
+	 * Returns a copy of the given batch, with its priority and execution time, but the given operations.
+	 */
+	static ExecuteOperations withOperations(ExecuteOperations batch, List<ExecuteOperation> operations) {
+		ExecuteOperations copy = new ExecuteOperations(operations, batch.getPriority());
+		if (batch.isSetExecute_at()) {
+			copy.setExecute_at(batch.getExecute_at());
+		}
+		return copy;
+	}
+
+	static List<ExecuteOperation> merge(List<ExecuteOperation> operations) {
+		List<Entry> entries = dropRemovedEdges(expand(operations));
+
+		List<MergedOperation> merged = new ArrayList<>();
+		Map<MergeKey, MergedOperation> openOperations = new HashMap<>();
+		Map<EdgeKey, MergedOperation> lastOperationOnEdge = new HashMap<>();
+		for (Entry entry : entries) {
+			if (entry.unmergeable != null) {
+				merged.add(new MergedOperation(entry.unmergeable, merged.size()));
+				openOperations.clear();
+				continue;
+			}
+
+			EdgeKey edge = entry.edge();
+			MergedOperation open = openOperations.get(entry.key);
+			MergedOperation last = lastOperationOnEdge.get(edge);
+			if (open != null && last == open) {
+				// The very same operation on the very same edge, nothing happened to the edge in between
+				continue;
+			}
+			if (open == null || (last != null && last.index > open.index)) {
+				open = new MergedOperation(entry.key, merged.size());
+				merged.add(open);
+				openOperations.put(entry.key, open);
+			}
+			open.destinationIds.add(entry.destinationId);
+			lastOperationOnEdge.put(edge, open);
+		}
+
+		List<ExecuteOperation> result = new ArrayList<>(merged.size());
+		for (MergedOperation operation : merged) {
+			result.add(operation.toExecuteOperation());
+		}
+		return result;
+	}
+
+	private static List<Entry> expand(List<ExecuteOperation> operations) {
+		List<Entry> entries = new ArrayList<>(operations.size());
+		for (ExecuteOperation operation : operations) {
+			QueryTerm term = operation.getTerm();
+			if (!term.isSetDestination_ids() || term.isSetState_ids()) {
+				entries.add(new Entry(operation));
+				continue;
+			}
+
+			MergeKey key = new MergeKey(operation);
+			LongBuffer destinationIds = asLongBuffer(term.bufferForDestination_ids());
+			for (int i = 0; i < destinationIds.limit(); i++) {
+				entries.add(new Entry(key, destinationIds.get(i)));
+			}
+		}
+		return entries;
+	}
+
+	private static List<Entry> dropRemovedEdges(List<Entry> entries) {
+		Set<EdgeKey> removedLater = new HashSet<>();
+		List<Entry> kept = new ArrayList<>(entries.size());
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			Entry entry = entries.get(i);
+			if (entry.unmergeable == null) {
+				EdgeKey edge = entry.edge();
+				if (removedLater.contains(edge)) {
+					continue;
+				}
+				if (entry.key.type == ExecuteOperationType.Remove) {
+					removedLater.add(edge);
+				}
+			}
+			kept.add(entry);
+		}
+
+		List<Entry> result = new ArrayList<>(kept.size());
+		for (int i = kept.size() - 1; i >= 0; i--) {
+			result.add(kept.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Either a single destination id of a mergeable operation, or an operation to be kept unchanged.
+	 */
+	private static final class Entry {
+		final MergeKey key;
+		final long destinationId;
+		final ExecuteOperation unmergeable;
+
+		Entry(MergeKey key, long destinationId) {
+			this.key = key;
+			this.destinationId = destinationId;
+			this.unmergeable = null;
+		}
+
+		Entry(ExecuteOperation unmergeable) {
+			this.key = null;
+			this.destinationId = 0;
+			this.unmergeable = unmergeable;
+		}
+
+		EdgeKey edge() {
+			return key.forward
+				? new EdgeKey(key.graphId, key.sourceId, destinationId)
+				: new EdgeKey(key.graphId, destinationId, key.sourceId);
+		}
+	}
+
+	private static final class MergedOperation {
+		final MergeKey key;
+		final ExecuteOperation unmergeable;
+		final int index;
+		final LongList destinationIds = new LongList();
+
+		MergedOperation(MergeKey key, int index) {
+			this.key = key;
+			this.unmergeable = null;
+			this.index = index;
+		}
+
+		MergedOperation(ExecuteOperation unmergeable, int index) {
+			this.key = null;
+			this.unmergeable = unmergeable;
+			this.index = index;
+		}
+
+		ExecuteOperation toExecuteOperation() {
+			if (unmergeable != null) {
+				return unmergeable;
+			}
+
+			ExecuteOperation operation = new ExecuteOperation(
+				key.type,
+				new QueryTerm(key.sourceId, key.graphId, key.forward)
+					.setDestination_ids(asByteBufferOrNull(destinationIds.toArray()))
+			);
+			if (key.hasPosition) {
+				operation.setPosition(key.position);
+			}
+			return operation;
+		}
+	}
+
+	private static final class MergeKey {
+		final ExecuteOperationType type;
+		final long sourceId;
+		final int graphId;
+		final boolean forward;
+		final boolean hasPosition;
+		final long position;
+
+		MergeKey(ExecuteOperation operation) {
+			this.type = operation.getOperation_type();
+			this.sourceId = operation.getTerm().getSource_id();
+			this.graphId = operation.getTerm().getGraph_id();
+			this.forward = operation.getTerm().isIs_forward();
+			this.hasPosition = operation.isSetPosition();
+			this.position = operation.getPosition();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof MergeKey)) {
+				return false;
+			}
+			MergeKey other = (MergeKey) o;
+			return type == other.type && sourceId == other.sourceId && graphId == other.graphId
+			       && forward == other.forward && hasPosition == other.hasPosition && position == other.position;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = type.hashCode();
+			result = 31 * result + (int) (sourceId ^ (sourceId >>> 32));
+			result = 31 * result + graphId;
+			result = 31 * result + (forward ? 1 : 0);
+			return 31 * result + (int) (position ^ (position >>> 32));
+		}
+	}
+
+	private static final class EdgeKey {
+		final int graphId;
+		final long fromId;
+		final long toId;
+
+		EdgeKey(int graphId, long fromId, long toId) {
+			this.graphId = graphId;
+			this.fromId = fromId;
+			this.toId = toId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof EdgeKey)) {
+				return false;
+			}
+			EdgeKey other = (EdgeKey) o;
+			return graphId == other.graphId && fromId == other.fromId && toId == other.toId;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = graphId;
+			result = 31 * result + (int) (fromId ^ (fromId >>> 32));
+			return 31 * result + (int) (toId ^ (toId >>> 32));
+		}
+	}
+
+	private static final class LongList {
+		private long[] values = new long[4];
+		private int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+
+		long[] toArray() {
+			long[] result = new long[size];
+			System.arraycopy(values, 0, result, 0, size);
+			return result;
+		}
+	}
+}
@@ -17,11 +17,13 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.collect.Iterables;
 import com.twitter.flockdb.thrift.Edge;
 import com.twitter.flockdb.thrift.EdgeQuery;
 import com.twitter.flockdb.thrift.EdgeResults;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Page;
 import info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.MethodObject;
 import org.apache.thrift.TException;
 
@@ -29,17 +31,24 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
 
 public class PagedEdgeList implements Iterable<Edge> {
 	private final Iface backingFlockClient;
 	private final EdgeQuery edgeQuery;
 	private final EdgeResults results;
+	private final Deadline deadline;
 
 	PagedEdgeList(Iface backingFlockClient, EdgeQuery edgeQuery, EdgeResults results) {
+		this(backingFlockClient, edgeQuery, results, null);
+	}
+
+	PagedEdgeList(Iface backingFlockClient, EdgeQuery edgeQuery, EdgeResults results, Deadline deadline) {
 		this.backingFlockClient = backingFlockClient;
 		this.edgeQuery = edgeQuery;
 		this.results = results;
+		this.deadline = deadline;
 	}
 
 	public PagedEdgeList getNextPage() {
@@ -52,6 +61,37 @@ public class PagedEdgeList implements Iterable<Edge> {
 
 	}
 
+	/**
+	 * Returns this page and all pages following it. While a page is processed, up to {@code prefetchedPages} of the
+	 * following pages are fetched in the background. A failed fetch is thrown by the iterators {@code next()} method.
+	 */
+	public Iterable<PagedEdgeList> allPages(final int prefetchedPages) {
+		checkArgument(prefetchedPages > 0, "prefetchedPages must be positive");
+		return new Iterable<PagedEdgeList>() {
+			@Override
+			public Iterator<PagedEdgeList> iterator() {
+				return new PrefetchingPageIterator<PagedEdgeList>(PagedEdgeList.this, prefetchedPages) {
+					@Override
+					boolean hasNextPage(PagedEdgeList page) {
+						return page.hasNextPage();
+					}
+
+					@Override
+					PagedEdgeList getNextPage(PagedEdgeList page) {
+						return page.getNextPage();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Returns the elements of this page and all pages following it, see {@link #allPages(int)}.
+	 */
+	public Iterable<Edge> allEdges(int prefetchedPages) {
+		return Iterables.concat(allPages(prefetchedPages));
+	}
+
 	public boolean hasNextPage() {
 		return results.next_cursor != 0;
 	}
@@ -67,12 +107,14 @@ public class PagedEdgeList implements Iterable<Edge> {
 
 
 	private PagedEdgeList getOtherPage(final long otherPagesCursor) {
-		return handleFlockAndThriftExceptions(new MethodObject<PagedEdgeList>() {
+		return handleFlockAndThriftExceptions(deadline, new MethodObject<PagedEdgeList>() {
 			@Override
 			public PagedEdgeList call() throws TException, FlockException {
-				EdgeQuery nextPageQuery = edgeQuery.setPage(edgeQuery.getPage().setCursor(otherPagesCursor));
+				// Pages may be fetched in the background, so the query of this page must not be modified
+				EdgeQuery nextPageQuery =
+					new EdgeQuery(edgeQuery.getTerm(), new Page(edgeQuery.getPage().getCount(), otherPagesCursor));
 				List<EdgeResults> results = backingFlockClient.select_edges(Collections.singletonList(nextPageQuery));
-				return new PagedEdgeList(backingFlockClient, nextPageQuery, results.get(0));
+				return new PagedEdgeList(backingFlockClient, nextPageQuery, results.get(0), deadline);
 			}
 		});
 	}
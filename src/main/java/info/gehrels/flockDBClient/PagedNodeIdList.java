@@ -17,44 +17,94 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.collect.Iterables;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Page;
 import com.twitter.flockdb.thrift.Results;
 import com.twitter.flockdb.thrift.SelectQuery;
 import info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.MethodObject;
 import org.apache.thrift.TException;
 
+import java.nio.LongBuffer;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
 
+/**
+ * A page of node ids. The ids are read from the received response lazily, through a little endian {@link LongBuffer}
+ * view, instead of being copied into a {@code long[]} up front. {@link #toLongArray()} decodes them once, after which
+ * the page keeps the decoded ids and releases the received bytes. Blocking connections decode the ids while they read
+ * the response already, see {@link IdDecodingFlockClient}.
+ */
 public class PagedNodeIdList implements Iterable<Long> {
 	private final Iface backingFlockClient;
 	private final SelectQuery selectQuery;
-	private final Results results;
-	private long[] ids;
+	private final long nextCursor;
+	private final long previousCursor;
+	private final Deadline deadline;
+	private volatile LongBuffer ids;
 
 	PagedNodeIdList(Iface backingFlockClient, SelectQuery selectQuery, Results results) {
+		this(backingFlockClient, selectQuery, results, null);
+	}
+
+	PagedNodeIdList(Iface backingFlockClient, SelectQuery selectQuery, Results results, Deadline deadline) {
 		this.backingFlockClient = backingFlockClient;
 		this.selectQuery = selectQuery;
-		this.results = results;
-		this.ids = ByteHelper.toLongArray(results.getIds());
+		this.nextCursor = results.getNext_cursor();
+		this.previousCursor = results.getPrev_cursor();
+		this.deadline = deadline;
+		this.ids = DecodedResults.idsOf(results);
 	}
 
 	public PagedNodeIdList getNextPage() {
-		return getOtherPage(results.next_cursor);
+		return getOtherPage(nextCursor);
 	}
 
 
 	public PagedNodeIdList getPreviousPage() {
-		return getOtherPage(results.prev_cursor);
+		return getOtherPage(previousCursor);
+
+	}
+
+	/**
+	 * Returns this page and all pages following it. While a page is processed, up to {@code prefetchedPages} of the
+	 * following pages are fetched in the background. A failed fetch is thrown by the iterators {@code next()} method.
+	 */
+	public Iterable<PagedNodeIdList> allPages(final int prefetchedPages) {
+		checkArgument(prefetchedPages > 0, "prefetchedPages must be positive");
+		return new Iterable<PagedNodeIdList>() {
+			@Override
+			public Iterator<PagedNodeIdList> iterator() {
+				return new PrefetchingPageIterator<PagedNodeIdList>(PagedNodeIdList.this, prefetchedPages) {
+					@Override
+					boolean hasNextPage(PagedNodeIdList page) {
+						return page.hasNextPage();
+					}
+
+					@Override
+					PagedNodeIdList getNextPage(PagedNodeIdList page) {
+						return page.getNextPage();
+					}
+				};
+			}
+		};
+	}
 
+	/**
+	 * Returns the elements of this page and all pages following it, see {@link #allPages(int)}.
+	 */
+	public Iterable<Long> allIds(int prefetchedPages) {
+		return Iterables.concat(allPages(prefetchedPages));
 	}
 
 	public boolean hasNextPage() {
-		return results.next_cursor != 0;
+		return nextCursor != 0;
 	}
 
 	public boolean hasPreviousPage() {
@@ -62,30 +112,115 @@ public class PagedNodeIdList implements Iterable<Long> {
 	}
 
 	private PagedNodeIdList getOtherPage(final long otherPagesCursor) {
-		return handleFlockAndThriftExceptions(new MethodObject<PagedNodeIdList>() {
+		return handleFlockAndThriftExceptions(deadline, new MethodObject<PagedNodeIdList>() {
 			@Override
 			public PagedNodeIdList call() throws TException, FlockException {
-				SelectQuery nextPageQuery = selectQuery.setPage(selectQuery.getPage().setCursor(otherPagesCursor));
+				// Pages may be fetched in the background, so the query of this page must not be modified
+				SelectQuery nextPageQuery = new SelectQuery(selectQuery.getOperations(),
+				                                            new Page(selectQuery.getPage().getCount(), otherPagesCursor));
 				List<Results> results = backingFlockClient.select2(Collections.singletonList(nextPageQuery));
-				return new PagedNodeIdList(backingFlockClient, nextPageQuery, results.get(0));
+				return new PagedNodeIdList(backingFlockClient, nextPageQuery, results.get(0), deadline);
 			}
 		});
 	}
 
 
+	/**
+	 * Returns the number of ids on this page.
+	 */
+	public int size() {
+		return ids.limit();
+	}
+
+	public long get(int index) {
+		return ids.get(index);
+	}
+
+	/**
+	 * Returns a read only view of the ids of this page, which is not copied if the ids have not been decoded yet.
+	 */
+	public LongBuffer asLongBuffer() {
+		return ids.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns an iterator over the ids of this page, which does not box them into {@link Long}s like
+	 * {@link #iterator()} does.
+	 */
+	public LongIterator longIterator() {
+		final LongBuffer buffer = ids;
+		return new LongIterator() {
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < buffer.limit();
+			}
+
+			@Override
+			public long nextLong() {
+				if (index >= buffer.limit()) {
+					throw new NoSuchElementException();
+				}
+				return buffer.get(index++);
+			}
+		};
+	}
+
+	/**
+	 * Hands each id of this page to the given consumer, without boxing it into a {@link Long}.
+	 */
+	public void forEachId(LongConsumer consumer) {
+		LongBuffer buffer = ids;
+		for (int i = 0; i < buffer.limit(); i++) {
+			consumer.accept(buffer.get(i));
+		}
+	}
+
+	/**
+	 * Returns a copy of the ids of this page. From now on, the page keeps the decoded ids instead of the received bytes.
+	 */
+	public long[] toLongArray() {
+		return decodedIds().clone();
+	}
+
+	/**
+	 * Copies the ids of this page into {@code target}, starting at {@code offset}, and returns their number.
+	 *
+	 * @throws IndexOutOfBoundsException if they do not fit into {@code target}.
+	 */
+	public int copyInto(long[] target, int offset) {
+		LongBuffer buffer = ids.duplicate();
+		int size = buffer.limit();
+		buffer.get(target, offset, size);
+		return size;
+	}
+
+	private long[] decodedIds() {
+		LongBuffer buffer = ids;
+		if (buffer.hasArray()) {
+			return buffer.array();
+		}
+
+		long[] decodedIds = new long[buffer.limit()];
+		buffer.duplicate().get(decodedIds);
+		// Decoding the ids concurrently is harmless, both threads replace the view by equal arrays
+		ids = LongBuffer.wrap(decodedIds);
+		return decodedIds;
+	}
+
 	@Override
 	public Iterator<Long> iterator() {
+		final LongIterator longIterator = longIterator();
 		return new Iterator<Long>() {
-			int index = 0;
-
 			@Override
 			public boolean hasNext() {
-				return ids.length >= index + 1;
+				return longIterator.hasNext();
 			}
 
 			@Override
 			public Long next() {
-				return ids[index++];
+				return longIterator.nextLong();
 			}
 
 			@Override
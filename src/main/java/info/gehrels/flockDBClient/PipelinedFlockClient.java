@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.Closeable;
+
+import static org.apache.thrift.transport.TTransportException.NOT_OPEN;
+
+/**
+ * Sends all calls through a single {@link PipelinedFlockConnection}, which is replaced by a new one as soon as it
+ * failed on the transport level.
+ */
+class PipelinedFlockClient extends CallDispatchingFlockClient implements Closeable {
+	private final PipelinedConnectionFactory connectionFactory;
+	private volatile PipelinedFlockConnection connection;
+	private volatile boolean closed;
+
+	PipelinedFlockClient(PipelinedConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		return getOpenConnection().dispatch(call);
+	}
+
+	PipelinedFlockConnection getOpenConnection() throws TTransportException {
+		PipelinedFlockConnection current = connection;
+		if (current != null && current.isOpen()) {
+			return current;
+		}
+
+		synchronized (this) {
+			if (closed) {
+				throw new TTransportException(NOT_OPEN, "The pipelined FlockDB client has been closed");
+			}
+			if (connection == null || !connection.isOpen()) {
+				connection = connectionFactory.openConnection();
+			}
+			return connection;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (connection != null) {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.thrift.transport.TTransportException.NOT_OPEN;
+import static org.apache.thrift.transport.TTransportException.TIMED_OUT;
+
+/**
+ * A single, thread safe connection to a FlockDB server, which allows up to {@code maxPendingCalls} calls to be
+ * outstanding at the same time. Requests are written back to back as soon as they are issued, and a reader thread
+ * hands each response frame to the call waiting for its Thrift sequence id. Each call uses a fresh
+ * {@link IdDecodingFlockClient} whose sequence id has been preset, so the generated (de)serialization code is used.
+ */
+class PipelinedFlockConnection extends CallDispatchingFlockClient implements Closeable {
+	private static final int MAX_FRAME_SIZE = 16384000;
+
+	private final TTransport transport;
+	private final long callTimeoutNanos;
+	private final Semaphore pendingCallPermits;
+	private final ConcurrentMap<Integer, SettableFuture<byte[]>> pendingResponses = new ConcurrentHashMap<>();
+	private final AtomicInteger lastSeqId = new AtomicInteger();
+	private final Object writeLock = new Object();
+	private volatile TTransportException failure;
+
+	PipelinedFlockConnection(TTransport transport, int maxPendingCalls, long callTimeoutNanos) {
+		this.transport = transport;
+		this.callTimeoutNanos = callTimeoutNanos;
+		this.pendingCallPermits = new Semaphore(maxPendingCalls);
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, "FlockDB pipeline reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	static PipelinedFlockConnection open(String hostname, int port, int timeoutInMilliSeconds, int maxPendingCalls)
+		throws TTransportException {
+		TSocket socket = new TSocket(hostname, port, timeoutInMilliSeconds);
+		socket.open();
+		// The reader thread waits for responses as long as the connection lives, call timeouts are tracked per call
+		socket.setTimeout(0);
+		return new PipelinedFlockConnection(socket, maxPendingCalls, MILLISECONDS.toNanos(timeoutInMilliSeconds));
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		long timeoutNanos = Deadline.remainingNanos(Deadline.current(), callTimeoutNanos);
+		long deadline = System.nanoTime() + timeoutNanos;
+		acquirePermit(timeoutNanos);
+		int seqId = lastSeqId.incrementAndGet();
+		try {
+			SettableFuture<byte[]> response = SettableFuture.create();
+			pendingResponses.put(seqId, response);
+			if (failure != null) {
+				throw failure;
+			}
+			return call.call(new CallClient(new TBinaryProtocol(new CallTransport(response, deadline)), seqId));
+		} finally {
+			pendingResponses.remove(seqId);
+			pendingCallPermits.release();
+		}
+	}
+
+	boolean isOpen() {
+		return failure == null;
+	}
+
+	int getPendingCalls() {
+		return pendingResponses.size();
+	}
+
+	@Override
+	public void close() {
+		fail(new TTransportException(NOT_OPEN, "The pipelined FlockDB connection has been closed"));
+	}
+
+	private void acquirePermit(long timeoutNanos) throws TTransportException {
+		try {
+			if (!pendingCallPermits.tryAcquire(timeoutNanos, NANOSECONDS)) {
+				throw new LocalWaitTimeoutException("Timed out waiting for a free pipeline slot");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LocalWaitTimeoutException("Interrupted while waiting for a free pipeline slot");
+		}
+	}
+
+	private void readResponses() {
+		byte[] header = new byte[4];
+		try {
+			while (failure == null) {
+				transport.readAll(header, 0, 4);
+				int size = TFramedTransport.decodeFrameSize(header);
+				if (size < 0 || size > MAX_FRAME_SIZE) {
+					throw new TTransportException("Illegal response frame size " + size);
+				}
+
+				byte[] frame = new byte[size];
+				transport.readAll(frame, 0, size);
+				int seqId = new TBinaryProtocol(new TMemoryInputTransport(frame)).readMessageBegin().seqid;
+				// Responses to calls which already timed out have no receiver any more and are dropped
+				SettableFuture<byte[]> response = pendingResponses.remove(seqId);
+				if (response != null) {
+					response.set(frame);
+				}
+			}
+		} catch (TTransportException e) {
+			fail(e);
+		} catch (TException e) {
+			fail(new TTransportException(e));
+		}
+	}
+
+	private void writeRequest(TByteArrayOutputStream request) throws TTransportException {
+		byte[] header = new byte[4];
+		TFramedTransport.encodeFrameSize(request.len(), header);
+		synchronized (writeLock) {
+			if (failure != null) {
+				throw failure;
+			}
+			try {
+				transport.write(header, 0, 4);
+				transport.write(request.get(), 0, request.len());
+				transport.flush();
+			} catch (TTransportException e) {
+				// A partially written frame corrupts the stream for all other calls
+				fail(e);
+				throw e;
+			}
+		}
+	}
+
+	private void fail(TTransportException e) {
+		synchronized (writeLock) {
+			if (failure != null) {
+				return;
+			}
+			failure = e;
+		}
+
+		transport.close();
+		for (SettableFuture<byte[]> response : pendingResponses.values()) {
+			response.setException(e);
+		}
+	}
+
+	private static final class CallClient extends IdDecodingFlockClient {
+		CallClient(TProtocol protocol, int seqId) {
+			super(protocol);
+			// sendBase() increments the sequence id before writing the request
+			seqid_ = seqId - 1;
+		}
+	}
+
+	/**
+	 * Buffers the request of a single call until it is flushed, and serves the response frame once the reader thread
+	 * received it.
+	 */
+	private final class CallTransport extends TTransport {
+		private final TByteArrayOutputStream request = new TByteArrayOutputStream(256);
+		private final SettableFuture<byte[]> responseFrame;
+		private final long deadline;
+		private TMemoryInputTransport response;
+
+		CallTransport(SettableFuture<byte[]> responseFrame, long deadline) {
+			this.responseFrame = responseFrame;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return PipelinedFlockConnection.this.isOpen();
+		}
+
+		@Override
+		public void open() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			request.write(buf, off, len);
+		}
+
+		@Override
+		public void flush() throws TTransportException {
+			writeRequest(request);
+			request.reset();
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws TTransportException {
+			if (response == null) {
+				response = new TMemoryInputTransport(awaitResponseFrame());
+			}
+			return response.read(buf, off, len);
+		}
+
+		// Exposing the response frame lets the protocol read directly from it, instead of copying each value out first
+
+		@Override
+		public byte[] getBuffer() {
+			return response == null ? null : response.getBuffer();
+		}
+
+		@Override
+		public int getBufferPosition() {
+			return response == null ? 0 : response.getBufferPosition();
+		}
+
+		@Override
+		public int getBytesRemainingInBuffer() {
+			return response == null ? -1 : response.getBytesRemainingInBuffer();
+		}
+
+		@Override
+		public void consumeBuffer(int len) {
+			response.consumeBuffer(len);
+		}
+
+		private byte[] awaitResponseFrame() throws TTransportException {
+			try {
+				return responseFrame.get(deadline - System.nanoTime(), NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TTransportException(TIMED_OUT, "Interrupted while waiting for a FlockDB response");
+			} catch (TimeoutException e) {
+				throw new TTransportException(TIMED_OUT, "Timed out waiting for a FlockDB response");
+			} catch (ExecutionException e) {
+				throw (TTransportException) e.getCause();
+			}
+		}
+	}
+}
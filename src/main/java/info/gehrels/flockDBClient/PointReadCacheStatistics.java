@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often the point read cache answered {@link FlockDB#contains}, {@link FlockDB#get} and
+ * {@link FlockDB#getMetadata} without a call. Negative hits are the hits answered by a cached "not contained".
+ */
+public final class PointReadCacheStatistics {
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	PointReadCacheStatistics() {
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Counts the entries, which have been replaced by other entries before they expired.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Counts the entries, which have been removed because this instance wrote to their edges or nodes.
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	void hit(boolean negative) {
+		hits.incrementAndGet();
+		if (negative) {
+			negativeHits.incrementAndGet();
+		}
+	}
+
+	void miss() {
+		misses.incrementAndGet();
+	}
+
+	void evicted() {
+		evictions.incrementAndGet();
+	}
+
+	void invalidated() {
+		invalidations.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "PointReadCacheStatistics{hits=" + getHits() + ", negativeHits=" + getNegativeHits() + ", misses="
+		       + getMisses() + ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "}";
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.base.Ticker;
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.QueryTerm;
+import org.apache.thrift.TException;
+
+import java.nio.LongBuffer;
+
+/**
+ * Caches the results of {@code contains}, {@code get} and {@code get_metadata}, including negative results of
+ * {@code contains}, which may live shorter than positive ones. FlockDB answers {@code get} and {@code get_metadata} of
+ * missing edges and nodes with an exception, which is not cached.
+ * <p/>
+ * The entries are kept in a set associative table of primitive arrays: Each key maps to a set of {@link #WAYS} slots,
+ * and if all of them are taken, the entry expiring first is evicted. So the cache never allocates per entry, apart
+ * from the cached edges and metadata themselves.
+ * <p/>
+ * Executions passing this client, or sent asynchronously by the same {@link FlockDB}, remove the entries of the edges
+ * they write, and of the metadata of their source and destination nodes, or of the whole graph, if they touch all
+ * edges of a node. Lookups racing with such a write are not cached, see {@link WriteStamps}. Writes by other clients
+ * are only seen after the time to live expired.
+ */
+class PointReadCachingFlockClient extends CallDispatchingFlockClient implements ExecutionListener {
+	static final int WAYS = 4;
+	private static final int LOCK_STRIPES = 64;
+	private static final byte EMPTY = 0;
+	private static final byte CONTAINS = 1;
+	private static final byte GET = 2;
+	private static final byte METADATA = 3;
+	private static final Object MISSING = new Object();
+
+	private final Iface backingFlockClient;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+	private final Ticker ticker;
+	private final PointReadCacheStatistics statistics;
+	private final WriteStamps writeStamps = new WriteStamps();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final int setMask;
+
+	private final byte[] kinds;
+	private final int[] graphIds;
+	private final long[] sourceIds;
+	private final long[] destinationIds;
+	private final long[] expiresAtNanos;
+	private final Object[] values;
+
+	/**
+	 * @param maxEntries is rounded down to a power of two multiple of {@link #WAYS}.
+	 */
+	PointReadCachingFlockClient(Iface backingFlockClient, int maxEntries, long ttlNanos, long negativeTtlNanos,
+	                            Ticker ticker, PointReadCacheStatistics statistics) {
+		if (maxEntries < WAYS || ttlNanos < 0 || negativeTtlNanos < 0) {
+			throw new IllegalArgumentException("Illegal cache limits: " + maxEntries + " entries, " + ttlNanos
+			                                   + "ns, " + negativeTtlNanos + "ns for negative results");
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.ttlNanos = ttlNanos;
+		this.negativeTtlNanos = negativeTtlNanos;
+		this.ticker = ticker;
+		this.statistics = statistics;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+
+		int sets = Integer.highestOneBit(maxEntries / WAYS);
+		this.setMask = sets - 1;
+		this.kinds = new byte[sets * WAYS];
+		this.graphIds = new int[sets * WAYS];
+		this.sourceIds = new long[sets * WAYS];
+		this.destinationIds = new long[sets * WAYS];
+		this.expiresAtNanos = new long[sets * WAYS];
+		this.values = new Object[sets * WAYS];
+	}
+
+	@Override
+	public boolean contains(long source_id, int graph_id, long destination_id) throws FlockException, TException {
+		Object cached = lookup(CONTAINS, graph_id, source_id, destination_id);
+		if (cached != MISSING) {
+			return (Boolean) cached;
+		}
+
+		long nodeStamp = writeStamps.nodeStamp(source_id, graph_id);
+		long graphStamp = writeStamps.graphStamp(graph_id);
+		boolean contained = super.contains(source_id, graph_id, destination_id);
+		store(CONTAINS, graph_id, source_id, destination_id, contained, !contained, nodeStamp, graphStamp);
+		return contained;
+	}
+
+	@Override
+	public Edge get(long source_id, int graph_id, long destination_id) throws FlockException, TException {
+		Object cached = lookup(GET, graph_id, source_id, destination_id);
+		if (cached != MISSING) {
+			return ((Edge) cached).deepCopy();
+		}
+
+		long nodeStamp = writeStamps.nodeStamp(source_id, graph_id);
+		long graphStamp = writeStamps.graphStamp(graph_id);
+		Edge edge = super.get(source_id, graph_id, destination_id);
+		if (edge != null) {
+			store(GET, graph_id, source_id, destination_id, edge.deepCopy(), false, nodeStamp, graphStamp);
+		}
+		return edge;
+	}
+
+	@Override
+	public Metadata get_metadata(long source_id, int graph_id) throws FlockException, TException {
+		Object cached = lookup(METADATA, graph_id, source_id, 0);
+		if (cached != MISSING) {
+			return ((Metadata) cached).deepCopy();
+		}
+
+		long nodeStamp = writeStamps.nodeStamp(source_id, graph_id);
+		long graphStamp = writeStamps.graphStamp(graph_id);
+		Metadata metadata = super.get_metadata(source_id, graph_id);
+		if (metadata != null) {
+			store(METADATA, graph_id, source_id, 0, metadata.deepCopy(), false, nodeStamp, graphStamp);
+		}
+		return metadata;
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		if (!(call instanceof Write)) {
+			return call.call(backingFlockClient);
+		}
+
+		try {
+			return call.call(backingFlockClient);
+		} finally {
+			// Failed executions may have been executed partially
+			executed(((Write) call).operations);
+		}
+	}
+
+	@Override
+	public void executed(ExecuteOperations operations) {
+		for (ExecuteOperation operation : operations.getOperations()) {
+			writeStamps.written(operation.getTerm());
+			invalidate(operation.getTerm());
+		}
+	}
+
+	/**
+	 * Returns the cached value, or {@link #MISSING}.
+	 */
+	private Object lookup(byte kind, int graphId, long sourceId, long destinationId) {
+		int set = set(kind, graphId, sourceId, destinationId);
+		synchronized (lock(set)) {
+			int slot = find(set, kind, graphId, sourceId, destinationId);
+			if (slot >= 0 && ticker.read() - expiresAtNanos[slot] < 0) {
+				Object value = values[slot];
+				statistics.hit(Boolean.FALSE.equals(value));
+				return value;
+			}
+			if (slot >= 0) {
+				clear(slot);
+			}
+		}
+		statistics.miss();
+		return MISSING;
+	}
+
+	private void store(byte kind, int graphId, long sourceId, long destinationId, Object value, boolean negative,
+	                   long nodeStamp, long graphStamp) {
+		long now = ticker.read();
+		int set = set(kind, graphId, sourceId, destinationId);
+		synchronized (lock(set)) {
+			if (writeStamps.nodeStamp(sourceId, graphId) != nodeStamp || writeStamps.graphStamp(graphId) != graphStamp) {
+				return;
+			}
+
+			int slot = find(set, kind, graphId, sourceId, destinationId);
+			if (slot < 0) {
+				slot = freeOrVictim(set, now);
+			}
+			kinds[slot] = kind;
+			graphIds[slot] = graphId;
+			sourceIds[slot] = sourceId;
+			destinationIds[slot] = destinationId;
+			expiresAtNanos[slot] = now + (negative ? negativeTtlNanos : ttlNanos);
+			values[slot] = value;
+		}
+	}
+
+	private void invalidate(QueryTerm term) {
+		int graphId = term.getGraph_id();
+		if (!term.isSetDestination_ids()) {
+			invalidateGraph(graphId);
+			return;
+		}
+
+		long sourceId = term.getSource_id();
+		remove(METADATA, graphId, sourceId, 0);
+		LongBuffer destinationIds = ByteHelper.asLongBuffer(term.bufferForDestination_ids());
+		while (destinationIds.hasRemaining()) {
+			long destinationId = destinationIds.get();
+			long edgeSourceId = term.isIs_forward() ? sourceId : destinationId;
+			long edgeDestinationId = term.isIs_forward() ? destinationId : sourceId;
+			remove(CONTAINS, graphId, edgeSourceId, edgeDestinationId);
+			remove(GET, graphId, edgeSourceId, edgeDestinationId);
+			remove(METADATA, graphId, destinationId, 0);
+		}
+	}
+
+	private void invalidateGraph(int graphId) {
+		for (int set = 0; set <= setMask; set++) {
+			synchronized (lock(set)) {
+				for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+					if (kinds[slot] != EMPTY && graphIds[slot] == graphId) {
+						clear(slot);
+						statistics.invalidated();
+					}
+				}
+			}
+		}
+	}
+
+	private void remove(byte kind, int graphId, long sourceId, long destinationId) {
+		int set = set(kind, graphId, sourceId, destinationId);
+		synchronized (lock(set)) {
+			int slot = find(set, kind, graphId, sourceId, destinationId);
+			if (slot >= 0) {
+				clear(slot);
+				statistics.invalidated();
+			}
+		}
+	}
+
+	private int find(int set, byte kind, int graphId, long sourceId, long destinationId) {
+		for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+			if (kinds[slot] == kind && graphIds[slot] == graphId && sourceIds[slot] == sourceId
+			    && destinationIds[slot] == destinationId) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private int freeOrVictim(int set, long now) {
+		int victim = set * WAYS;
+		for (int slot = set * WAYS; slot < (set + 1) * WAYS; slot++) {
+			if (kinds[slot] == EMPTY || now - expiresAtNanos[slot] >= 0) {
+				return slot;
+			}
+			if (expiresAtNanos[slot] - expiresAtNanos[victim] < 0) {
+				victim = slot;
+			}
+		}
+		statistics.evicted();
+		return victim;
+	}
+
+	private void clear(int slot) {
+		kinds[slot] = EMPTY;
+		values[slot] = null;
+	}
+
+	private Object lock(int set) {
+		return locks[set & (LOCK_STRIPES - 1)];
+	}
+
+	private int set(byte kind, int graphId, long sourceId, long destinationId) {
+		long hash = sourceId * 0x9E3779B97F4A7C15L + destinationId;
+		hash = (hash * 31 + graphId) * 31 + kind;
+		hash ^= hash >>> 29;
+		return (int) (hash ^ (hash >>> 32)) & setMask;
+	}
+}
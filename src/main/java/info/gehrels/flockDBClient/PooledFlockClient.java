@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+
+/**
+ * A thread safe {@link Iface} implementation, that borrows a connection from a {@link ConnectionPool} for the duration
+ * of each call. Connections are discarded instead of being returned to the pool as soon as a call failed on the
+ * Thrift level, since the state of their transport is unknown afterwards.
+ */
+class PooledFlockClient extends CallDispatchingFlockClient {
+	private final ConnectionPool connectionPool;
+
+	PooledFlockClient(ConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		Deadline deadline = Deadline.current();
+		if (deadline != null) {
+			deadline.check();
+		}
+		FlockConnection connection = connectionPool.borrow(deadline);
+		boolean reusable = false;
+		try {
+			connection.limitTimeoutTo(deadline);
+			T result = call.call(connection.getClient());
+			reusable = true;
+			return result;
+		} catch (FlockException e) {
+			reusable = true;
+			throw e;
+		} finally {
+			if (reusable) {
+				connectionPool.release(connection);
+			} else {
+				connectionPool.invalidate(connection);
+			}
+		}
+	}
+}
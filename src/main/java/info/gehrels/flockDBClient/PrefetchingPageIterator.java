@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Iterates over a page and all pages following it, while fetching up to {@code prefetchedPages} of the following pages
+ * in the background. Pages are only fetched while the consumer is not more than that many pages behind, so an iterator
+ * which is not consumed to its end does not keep a thread busy.
+ */
+abstract class PrefetchingPageIterator<P> implements Iterator<P> {
+	private static final ExecutorService PREFETCHING_THREADS = Executors.newCachedThreadPool(
+		new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FlockDB page prefetcher %d").build()
+	);
+
+	private final int prefetchedPages;
+	private final Deque<P> fetchedPages = new ArrayDeque<>();
+	private P lastFetchedPage;
+	private boolean fetching;
+	private RuntimeException failure;
+
+	PrefetchingPageIterator(P firstPage, int prefetchedPages) {
+		checkArgument(prefetchedPages > 0, "prefetchedPages must be positive");
+		this.prefetchedPages = prefetchedPages;
+		this.fetchedPages.add(firstPage);
+		this.lastFetchedPage = firstPage;
+	}
+
+	abstract boolean hasNextPage(P page);
+
+	abstract P getNextPage(P page);
+
+	@Override
+	public synchronized boolean hasNext() {
+		return !fetchedPages.isEmpty() || failure != null || hasNextPage(lastFetchedPage);
+	}
+
+	@Override
+	public synchronized P next() {
+		while (fetchedPages.isEmpty()) {
+			if (failure != null) {
+				throw failure;
+			}
+			if (!hasNextPage(lastFetchedPage)) {
+				throw new NoSuchElementException();
+			}
+			fetchMoreIfNeeded();
+			awaitFetchedPage();
+		}
+
+		P page = fetchedPages.poll();
+		fetchMoreIfNeeded();
+		return page;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private void awaitFetchedPage() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FlockDBException(e);
+		}
+	}
+
+	private void fetchMoreIfNeeded() {
+		if (!fetching && failure == null && fetchedPages.size() < prefetchedPages && hasNextPage(lastFetchedPage)) {
+			fetching = true;
+			PREFETCHING_THREADS.execute(new Runnable() {
+				@Override
+				public void run() {
+					fetch();
+				}
+			});
+		}
+	}
+
+	private void fetch() {
+		P page;
+		synchronized (this) {
+			page = lastFetchedPage;
+		}
+
+		while (true) {
+			try {
+				page = getNextPage(page);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					failure = e;
+					fetching = false;
+					notifyAll();
+				}
+				return;
+			}
+
+			synchronized (this) {
+				fetchedPages.add(page);
+				lastFetchedPage = page;
+				notifyAll();
+				if (fetchedPages.size() >= prefetchedPages || !hasNextPage(page)) {
+					fetching = false;
+					return;
+				}
+			}
+		}
+	}
+}
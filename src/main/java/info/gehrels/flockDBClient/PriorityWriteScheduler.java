@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Priority;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.thrift.transport.TTransportException.TIMED_OUT;
+
+/**
+ * Lets at most {@code maxConcurrentWrites} executions run at the same time, so that writes cannot occupy all
+ * connections. Executions waiting for a free slot are queued per {@link Priority}, and free slots are handed to the
+ * queues in proportion to their weights (smooth weighted round robin), so a flood of low priority writes slows down,
+ * but never blocks, high priority ones. Optionally, the operations per second of a priority are limited, too. All
+ * other calls are passed through unchanged.
+ */
+class PriorityWriteScheduler extends CallDispatchingFlockClient {
+	private final Iface backingFlockClient;
+	private final int maxConcurrentWrites;
+	private final Map<Priority, Integer> weights;
+	private final Map<Priority, RateLimiter> rateLimiters;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<Priority, Queue<Waiter>> queues = new EnumMap<>(Priority.class);
+	private final Map<Priority, Integer> currentWeights = new EnumMap<>(Priority.class);
+	private int runningWrites;
+
+	/**
+	 * @param weights      the share of free slots each priority gets, if writes of several priorities are waiting.
+	 *                     Priorities without weight get a weight of 1.
+	 * @param rateLimiters the operations per second each priority may execute. Priorities without rate limiter are
+	 *                     not limited.
+	 */
+	PriorityWriteScheduler(Iface backingFlockClient, int maxConcurrentWrites, Map<Priority, Integer> weights,
+	                       Map<Priority, RateLimiter> rateLimiters) {
+		if (maxConcurrentWrites < 1) {
+			throw new IllegalArgumentException("Illegal number of concurrent writes: " + maxConcurrentWrites);
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.maxConcurrentWrites = maxConcurrentWrites;
+		this.weights = weights;
+		this.rateLimiters = rateLimiters;
+		for (Priority priority : Priority.values()) {
+			queues.put(priority, new ArrayDeque<Waiter>());
+			currentWeights.put(priority, 0);
+		}
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		if (!(call instanceof Write)) {
+			return call.call(backingFlockClient);
+		}
+
+		Priority priority = ((Write) call).operations.getPriority();
+		limitRate(priority, Math.max(1, ((Write) call).operations.getOperationsSize()));
+		acquireSlot(priority);
+		try {
+			return call.call(backingFlockClient);
+		} finally {
+			releaseSlot();
+		}
+	}
+
+	int getQueuedWrites(Priority priority) {
+		lock.lock();
+		try {
+			return queues.get(priority).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void limitRate(Priority priority, int operations) throws TTransportException {
+		RateLimiter rateLimiter = rateLimiters.get(priority);
+		if (rateLimiter == null) {
+			return;
+		}
+
+		Deadline deadline = Deadline.current();
+		if (deadline == null) {
+			rateLimiter.acquire(operations);
+		} else if (!rateLimiter.tryAcquire(operations, deadline.remainingNanos(), NANOSECONDS)) {
+			throw new TTransportException(TIMED_OUT, "The write rate limit does not allow a write before the deadline");
+		}
+	}
+
+	private void acquireSlot(Priority priority) throws TTransportException {
+		Deadline deadline = Deadline.current();
+		lock.lock();
+		try {
+			if (runningWrites < maxConcurrentWrites && nothingQueued()) {
+				runningWrites++;
+				return;
+			}
+
+			Waiter waiter = new Waiter(lock.newCondition());
+			queues.get(priority).add(waiter);
+			boolean interrupted = false;
+			try {
+				while (!waiter.granted) {
+					if (deadline == null) {
+						waiter.condition.awaitUninterruptibly();
+					} else if (deadline.isExpired()) {
+						queues.get(priority).remove(waiter);
+						throw new TTransportException(TIMED_OUT, "Timed out waiting for a write slot");
+					} else {
+						try {
+							waiter.condition.awaitNanos(deadline.remainingNanos());
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void releaseSlot() {
+		lock.lock();
+		try {
+			Priority next = nextPriority();
+			if (next == null) {
+				runningWrites--;
+				return;
+			}
+
+			// The slot is handed over, so the number of running writes stays the same
+			Waiter waiter = queues.get(next).remove();
+			waiter.granted = true;
+			waiter.condition.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Picks the queue to be served next by smooth weighted round robin, or returns null if all queues are empty.
+	 */
+	private Priority nextPriority() {
+		Priority best = null;
+		int totalWeight = 0;
+		for (Priority priority : Priority.values()) {
+			if (queues.get(priority).isEmpty()) {
+				continue;
+			}
+			int weight = weightOf(priority);
+			totalWeight += weight;
+			currentWeights.put(priority, currentWeights.get(priority) + weight);
+			if (best == null || currentWeights.get(priority) > currentWeights.get(best)) {
+				best = priority;
+			}
+		}
+
+		if (best != null) {
+			currentWeights.put(best, currentWeights.get(best) - totalWeight);
+		}
+		return best;
+	}
+
+	private int weightOf(Priority priority) {
+		Integer weight = weights.get(priority);
+		return weight == null ? 1 : weight;
+	}
+
+	private boolean nothingQueued() {
+		for (Queue<Waiter> queue : queues.values()) {
+			if (!queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Waiter {
+		final Condition condition;
+		boolean granted;
+
+		Waiter(Condition condition) {
+			this.condition = condition;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.QueryTerm;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Caches the pages returned by {@code select2}, keyed on the serialized query, so that identical selections issued
+ * within the time to live of their graph are answered locally. Pages are stored as {@code long[]} and the cache is
+ * bounded by their size in bytes.
+ * <p/>
+ * Executions passing this client, or sent asynchronously by the same {@link FlockDB}, invalidate the cached pages of
+ * all source and destination nodes they touch, and of the whole graph if they touch all edges of a node. Instead of
+ * indexing the cached pages by node, each page remembers the {@link WriteStamps} of its nodes and graphs as they were
+ * before it was selected, and is dropped once one of them moved on. Writes by other clients are only seen after the
+ * time to live expired.
+ */
+class SelectCachingFlockClient extends CallDispatchingFlockClient implements ExecutionListener {
+	private static final int PAGE_OVERHEAD_BYTES = 64;
+
+	private final Iface backingFlockClient;
+	private final long defaultTtlNanos;
+	private final Map<Integer, Long> ttlNanosByGraph;
+	private final Ticker ticker;
+	private final Cache<SerializedKey, CachedPage> cache;
+	private final WriteStamps writeStamps = new WriteStamps();
+
+	/**
+	 * @param ttlNanosByGraph the time to live of pages selecting from the given graphs. Pages selecting from several
+	 *                        graphs live as long as the shortest of them.
+	 */
+	SelectCachingFlockClient(Iface backingFlockClient, long maxBytes, long defaultTtlNanos,
+	                         Map<Integer, Long> ttlNanosByGraph, Ticker ticker) {
+		if (maxBytes < 1 || defaultTtlNanos < 1) {
+			throw new IllegalArgumentException("Illegal cache limits: " + maxBytes + " bytes, " + defaultTtlNanos + "ns");
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.defaultTtlNanos = defaultTtlNanos;
+		this.ttlNanosByGraph = ttlNanosByGraph;
+		this.ticker = ticker;
+
+		long maxTtlNanos = defaultTtlNanos;
+		for (long ttlNanos : ttlNanosByGraph.values()) {
+			maxTtlNanos = Math.max(maxTtlNanos, ttlNanos);
+		}
+		this.cache = CacheBuilder.newBuilder()
+			.maximumWeight(maxBytes)
+			.weigher(new Weigher<SerializedKey, CachedPage>() {
+				@Override
+				public int weigh(SerializedKey key, CachedPage page) {
+					return key.sizeInBytes() + page.ids.length * ByteHelper.BYTES_PER_ID + PAGE_OVERHEAD_BYTES;
+				}
+			})
+			.expireAfterWrite(maxTtlNanos, NANOSECONDS)
+			.ticker(ticker)
+			.build();
+	}
+
+	@Override
+	public List<Results> select2(List<SelectQuery> queries) throws TException, FlockException {
+		List<Results> results = new ArrayList<>(queries.size());
+		final List<SelectQuery> missedQueries = new ArrayList<>();
+		List<PendingPage> missedPages = new ArrayList<>();
+		for (SelectQuery query : queries) {
+			SerializedKey key = new SerializedKey("select2", query);
+			CachedPage page = cache.getIfPresent(key);
+			if (page != null && isValid(page)) {
+				results.add(page.toResults());
+				continue;
+			}
+			if (page != null) {
+				cache.invalidate(key);
+			}
+
+			// The stamps are taken before the query is sent, so that a write racing with it invalidates its page
+			missedPages.add(new PendingPage(key, results.size(), query));
+			missedQueries.add(query);
+			results.add(null);
+		}
+
+		if (missedQueries.isEmpty()) {
+			return results;
+		}
+
+		List<Results> selectedResults = dispatch(new FlockCall<List<Results>>() {
+			@Override
+			List<Results> call(Iface client) throws TException, FlockException {
+				return client.select2(missedQueries);
+			}
+		});
+		for (int i = 0; i < missedPages.size(); i++) {
+			PendingPage pending = missedPages.get(i);
+			CachedPage page = pending.toCachedPage(selectedResults.get(i));
+			cache.put(pending.key, page);
+			results.set(pending.index, page.toResults());
+		}
+		return results;
+	}
+
+	@Override
+	<T> T dispatch(FlockCall<T> call) throws TException, FlockException {
+		if (!(call instanceof Write)) {
+			return call.call(backingFlockClient);
+		}
+
+		try {
+			return call.call(backingFlockClient);
+		} finally {
+			// Failed executions may have been executed partially
+			executed(((Write) call).operations);
+		}
+	}
+
+	@Override
+	public void executed(ExecuteOperations operations) {
+		for (ExecuteOperation operation : operations.getOperations()) {
+			writeStamps.written(operation.getTerm());
+		}
+	}
+
+	long cachedPages() {
+		return cache.size();
+	}
+
+	private boolean isValid(CachedPage page) {
+		if (ticker.read() - page.expiresAtNanos > 0) {
+			return false;
+		}
+		for (int i = 0; i < page.nodeIds.length; i++) {
+			if (writeStamps.nodeStamp(page.nodeIds[i], page.graphIds[i]) != page.nodeStamps[i]
+			    || writeStamps.graphStamp(page.graphIds[i]) != page.graphStamps[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A page being selected, with the stamps of the nodes and graphs it selects from as they were before.
+	 */
+	private final class PendingPage {
+		final SerializedKey key;
+		final int index;
+		final long startNanos = ticker.read();
+		final long[] nodeIds;
+		final int[] graphIds;
+		final long[] nodeStamps;
+		final long[] graphStamps;
+		long ttlNanos = Long.MAX_VALUE;
+
+		PendingPage(SerializedKey key, int index, SelectQuery query) {
+			this.key = key;
+			this.index = index;
+
+			List<QueryTerm> terms = new ArrayList<>();
+			for (SelectOperation operation : query.getOperations()) {
+				if (operation.isSetTerm()) {
+					terms.add(operation.getTerm());
+				}
+			}
+			nodeIds = new long[terms.size()];
+			graphIds = new int[terms.size()];
+			nodeStamps = new long[terms.size()];
+			graphStamps = new long[terms.size()];
+			for (int i = 0; i < terms.size(); i++) {
+				QueryTerm term = terms.get(i);
+				nodeIds[i] = term.getSource_id();
+				graphIds[i] = term.getGraph_id();
+				nodeStamps[i] = writeStamps.nodeStamp(nodeIds[i], graphIds[i]);
+				graphStamps[i] = writeStamps.graphStamp(graphIds[i]);
+				Long graphTtlNanos = ttlNanosByGraph.get(term.getGraph_id());
+				ttlNanos = Math.min(ttlNanos, graphTtlNanos != null ? graphTtlNanos : defaultTtlNanos);
+			}
+			if (terms.isEmpty()) {
+				ttlNanos = defaultTtlNanos;
+			}
+		}
+
+		CachedPage toCachedPage(Results results) {
+			long[] ids;
+			if (results instanceof DecodedResults) {
+				ids = ((DecodedResults) results).getDecodedIds();
+			} else {
+				LongBuffer binaryIds = DecodedResults.idsOf(results);
+				ids = new long[binaryIds.remaining()];
+				binaryIds.get(ids);
+			}
+			return new CachedPage(ids, results.getNext_cursor(), results.getPrev_cursor(), startNanos + ttlNanos,
+			                      nodeIds, graphIds, nodeStamps, graphStamps);
+		}
+	}
+
+	private static final class CachedPage {
+		final long[] ids;
+		final long nextCursor;
+		final long prevCursor;
+		final long expiresAtNanos;
+		final long[] nodeIds;
+		final int[] graphIds;
+		final long[] nodeStamps;
+		final long[] graphStamps;
+
+		CachedPage(long[] ids, long nextCursor, long prevCursor, long expiresAtNanos, long[] nodeIds, int[] graphIds,
+		           long[] nodeStamps, long[] graphStamps) {
+			this.ids = ids;
+			this.nextCursor = nextCursor;
+			this.prevCursor = prevCursor;
+			this.expiresAtNanos = expiresAtNanos;
+			this.nodeIds = nodeIds;
+			this.graphIds = graphIds;
+			this.nodeStamps = nodeStamps;
+			this.graphStamps = graphStamps;
+		}
+
+		Results toResults() {
+			// The ids are shared with all callers, which only get read-only views on them
+			return new DecodedResults(ids, nextCursor, prevCursor);
+		}
+	}
+}
@@ -17,6 +17,8 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
 import com.twitter.flockdb.thrift.Page;
@@ -28,14 +30,23 @@ import org.apache.thrift.TException;
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkState;
 import static info.gehrels.flockDBClient.FlockAndThriftExceptionHandling.handleFlockAndThriftExceptions;
+import static info.gehrels.flockDBClient.FutureHelper.transform;
 
 public class SelectionBuilder {
 	private final Iface backingFlockClient;
+	private final AsyncFlockClient asyncFlockClient;
 	private final List<SelectQuery> queries = new ArrayList<>();
+	private long timeoutInMilliSeconds;
 
 	SelectionBuilder(Iface backingFlockClient) {
+		this(backingFlockClient, null);
+	}
+
+	SelectionBuilder(Iface backingFlockClient, AsyncFlockClient asyncFlockClient) {
 		this.backingFlockClient = backingFlockClient;
+		this.asyncFlockClient = asyncFlockClient;
 	}
 
 	public SelectionBuilder select(SelectionQuery firstQuery) {
@@ -58,21 +69,50 @@ public class SelectionBuilder {
 		return this;
 	}
 
+	/**
+	 * Fails the call with a {@link FlockDBException}, if it did not complete within the given time, including the time
+	 * spent waiting for a connection. The remaining time is also the limit for fetching further pages of the returned
+	 * lists, so the whole iteration has to complete in time.
+	 */
+	public SelectionBuilder withTimeout(long timeoutInMilliSeconds) {
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		return this;
+	}
+
 	public List<PagedNodeIdList> execute() {
-		return handleFlockAndThriftExceptions(new MethodObject<List<PagedNodeIdList>>() {
+		final Deadline deadline = Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+		return handleFlockAndThriftExceptions(deadline, new MethodObject<List<PagedNodeIdList>>() {
 			@Override
 			public List<PagedNodeIdList> call() throws TException, FlockException {
-				return tryToExecute();
+				return tryToExecute(deadline);
 			}
 		});
 	}
 
-	private List<PagedNodeIdList> tryToExecute() throws FlockException, TException {
-		List<PagedNodeIdList> result = new ArrayList<>();
-		List<Results> rawResults = backingFlockClient.select2(queries);
+	public ListenableFuture<List<PagedNodeIdList>> executeAsync() {
+		checkState(asyncFlockClient != null, "This FlockDB instance has not been configured for async calls");
+		final Deadline deadline = Deadline.afterMilliSeconds(timeoutInMilliSeconds);
+		Deadline previous = Deadline.enter(deadline);
+		try {
+			return transform(asyncFlockClient.select2(queries), new Function<List<Results>, List<PagedNodeIdList>>() {
+				@Override
+				public List<PagedNodeIdList> apply(List<Results> rawResults) {
+					return toPagedNodeIdLists(rawResults, deadline);
+				}
+			});
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
 
+	private List<PagedNodeIdList> tryToExecute(Deadline deadline) throws FlockException, TException {
+		return toPagedNodeIdLists(backingFlockClient.select2(queries), deadline);
+	}
+
+	private List<PagedNodeIdList> toPagedNodeIdLists(List<Results> rawResults, Deadline deadline) {
+		List<PagedNodeIdList> result = new ArrayList<>();
 		for (int i = 0; i < rawResults.size(); i++) {
-			result.add(new PagedNodeIdList(backingFlockClient, queries.get(i), rawResults.get(i)));
+			result.add(new PagedNodeIdList(backingFlockClient, queries.get(i), rawResults.get(i), deadline));
 		}
 
 		return result;
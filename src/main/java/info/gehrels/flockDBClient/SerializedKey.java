@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+
+import java.util.Arrays;
+
+/**
+ * A key made of the binary encoding of a thrift struct, which is needed because the generated structs do not compute
+ * hash codes from their fields.
+ */
+final class SerializedKey {
+	private static final ThreadLocal<TSerializer> SERIALIZERS = new ThreadLocal<TSerializer>() {
+		@Override
+		protected TSerializer initialValue() {
+			return new TSerializer(new TBinaryProtocol.Factory());
+		}
+	};
+
+	private final String kind;
+	private final byte[] bytes;
+	private final int hashCode;
+
+	/**
+	 * @param kind tells apart structs of different meaning, but possibly equal encoding.
+	 */
+	SerializedKey(String kind, TBase<?, ?> struct) throws TException {
+		this.kind = kind;
+		this.bytes = SERIALIZERS.get().serialize(struct);
+		this.hashCode = 31 * kind.hashCode() + Arrays.hashCode(bytes);
+	}
+
+	int sizeInBytes() {
+		return bytes.length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof SerializedKey)) {
+			return false;
+		}
+		SerializedKey other = (SerializedKey) o;
+		return kind.equals(other.kind) && Arrays.equals(bytes, other.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Appends batch executions to a memory mapped journal file and returns right away, while a background thread sends
+ * the journaled operations to FlockDB in large batches. The journal is a ring buffer of {@code capacity} bytes behind
+ * a small file header, which holds the offset up to which all operations have been confirmed by FlockDB. After a crash
+ * or restart, all entries behind that offset are sent again, so every operation is executed at least once.
+ * <p/>
+ * Each entry holds one serialized {@link ExecuteOperations} behind a header of its length, its CRC32 checksum and its
+ * logical offset, which tells entries of the current round through the ring apart from stale ones. Entries are
+ * written to the page cache of the operating system only, so they survive crashes of the JVM, but not necessarily
+ * crashes of the operating system.
+ * <p/>
+ * Calls failing on the transport level are retried with growing pauses until they succeed. Entries rejected by
+ * FlockDB with a {@link FlockException} are retried one by one, and those still failing are dropped. Unexpected
+ * runtime exceptions of the backing client are logged and retried the same way as transport failures.
+ */
+class WriteBehindJournal implements Closeable {
+	private static final Logger LOG = Logger.getLogger(WriteBehindJournal.class.getName());
+	private static final int MAGIC = 0x464a4e4c;
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 64;
+	private static final int CONFIRMED_OFFSET_POSITION = 16;
+	private static final int ENTRY_HEADER_SIZE = 16;
+	private static final int ALIGNMENT = 16;
+	private static final int WRAP_MARKER = -1;
+	private static final int MAX_OPERATIONS_PER_CALL = 10000;
+	private static final long MIN_RETRY_PAUSE_MILLIS = 100;
+	private static final long MAX_RETRY_PAUSE_MILLIS = 10000;
+
+	private final Iface backingFlockClient;
+	private final long capacity;
+	private final MappedByteBuffer mappedFile;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Thread drainer;
+
+	// all guarded by lock
+	private long writeOffset;
+	private long confirmedOffset;
+	private long droppedEntries;
+	private boolean closed;
+
+	WriteBehindJournal(File file, long capacity, Iface backingFlockClient) throws IOException {
+		if (capacity < 1024 || capacity % ALIGNMENT != 0 || capacity > Integer.MAX_VALUE - FILE_HEADER_SIZE) {
+			throw new IllegalArgumentException("Illegal journal capacity: " + capacity);
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		boolean existing = file.length() > 0;
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			if (existing) {
+				MappedByteBuffer header = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+				                                                            FILE_HEADER_SIZE);
+				if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+					throw new IOException(file + " is no FlockDB journal");
+				}
+				capacity = header.getLong(8);
+			}
+			this.capacity = capacity;
+			this.mappedFile = randomAccessFile.getChannel()
+				.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + capacity);
+		}
+
+		if (existing) {
+			confirmedOffset = mappedFile.getLong(CONFIRMED_OFFSET_POSITION);
+			writeOffset = findEnd(confirmedOffset);
+		} else {
+			mappedFile.putInt(0, MAGIC);
+			mappedFile.putInt(4, VERSION);
+			mappedFile.putLong(8, capacity);
+			mappedFile.putLong(CONFIRMED_OFFSET_POSITION, 0);
+		}
+
+		drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "FlockDB journal drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * @throws FlockDBException if the journal is full, because FlockDB could not keep up or is unavailable.
+	 */
+	void append(ExecuteOperations operations) {
+		byte[] payload;
+		try {
+			payload = new TSerializer(new TBinaryProtocol.Factory()).serialize(operations);
+		} catch (TException e) {
+			throw new FlockDBException(e);
+		}
+		int entrySize = align(ENTRY_HEADER_SIZE + payload.length);
+		if (entrySize > capacity) {
+			throw new IllegalArgumentException("The operations do not fit into the journal");
+		}
+
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("The journal has been closed");
+			}
+
+			long offset = writeOffset;
+			long remainingInRound = capacity - offset % capacity;
+			long skipped = remainingInRound < entrySize ? remainingInRound : 0;
+			if (offset + skipped + entrySize - confirmedOffset > capacity) {
+				throw new FlockDBException(new IOException("The write behind journal is full"));
+			}
+
+			if (skipped > 0) {
+				writeEntryHeader(offset, WRAP_MARKER, 0);
+				offset += skipped;
+			}
+			ByteBuffer entry = mappedFile.duplicate();
+			entry.position(physicalPosition(offset) + ENTRY_HEADER_SIZE);
+			entry.put(payload);
+			writeEntryHeader(offset, payload.length, checksum(payload));
+			writeOffset = offset + entrySize;
+			appended.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getPendingBytes() {
+		lock.lock();
+		try {
+			return writeOffset - confirmedOffset;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getDroppedEntries() {
+		lock.lock();
+		try {
+			return droppedEntries;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops sending journaled operations. Operations not confirmed yet will be sent after the journal has been opened
+	 * again.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			appended.signal();
+		} finally {
+			lock.unlock();
+		}
+
+		drainer.interrupt();
+		try {
+			drainer.join(SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mappedFile.force();
+	}
+
+	private void drain() {
+		long retryPauseMillis = MIN_RETRY_PAUSE_MILLIS;
+		while (true) {
+			List<Entry> entries = new ArrayList<>();
+			long end = awaitEntries(entries);
+			if (end < 0) {
+				return;
+			}
+			if (entries.isEmpty()) {
+				// Nothing but a wrap marker
+				confirm(end, 0);
+				continue;
+			}
+
+			try {
+				send(entries);
+				confirm(end, 0);
+				retryPauseMillis = MIN_RETRY_PAUSE_MILLIS;
+			} catch (TException | RuntimeException e) {
+				if (e instanceof RuntimeException) {
+					LOG.log(Level.WARNING,
+					        "Sending journaled operations failed, retrying in " + retryPauseMillis + "ms", e);
+				}
+				if (!pause(retryPauseMillis)) {
+					return;
+				}
+				retryPauseMillis = Math.min(2 * retryPauseMillis, MAX_RETRY_PAUSE_MILLIS);
+			}
+		}
+	}
+
+	private void send(List<Entry> entries) throws TException {
+		try {
+			backingFlockClient.execute(combine(entries));
+		} catch (FlockException e) {
+			// Find out which entries FlockDB rejects, and send all others
+			long dropped = 0;
+			for (Entry entry : entries) {
+				try {
+					backingFlockClient.execute(entry.operations);
+				} catch (FlockException rejected) {
+					dropped++;
+				}
+			}
+			confirm(entries.get(entries.size() - 1).end, dropped);
+		}
+	}
+
+	/**
+	 * Collects the unconfirmed entries of the same priority and execution time, which are to be sent in a single call,
+	 * and returns the offset behind them, or -1 if the journal has been closed.
+	 */
+	private long awaitEntries(List<Entry> entries) {
+		long offset;
+		long end;
+		lock.lock();
+		try {
+			while (!closed && writeOffset == confirmedOffset) {
+				appended.awaitUninterruptibly();
+			}
+			if (closed) {
+				return -1;
+			}
+			offset = confirmedOffset;
+			end = writeOffset;
+		} finally {
+			lock.unlock();
+		}
+
+		int operationCount = 0;
+		while (offset < end) {
+			Entry entry = readEntry(offset);
+			if (entry == null) {
+				offset = nextRound(offset);
+				continue;
+			}
+			if (!entries.isEmpty() && (!isCombinable(entries.get(0).operations, entry.operations)
+			                           || operationCount + entry.operations.getOperationsSize()
+			                              > MAX_OPERATIONS_PER_CALL)) {
+				break;
+			}
+			entries.add(entry);
+			operationCount += entry.operations.getOperationsSize();
+			offset = entry.end;
+		}
+		return Math.min(offset, end);
+	}
+
+	private void confirm(long offset, long dropped) {
+		lock.lock();
+		try {
+			if (offset > confirmedOffset) {
+				confirmedOffset = offset;
+				mappedFile.putLong(CONFIRMED_OFFSET_POSITION, offset);
+			}
+			droppedEntries += dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Finds the end of the valid entries following {@code offset}.
+	 */
+	private long findEnd(long offset) {
+		while (offset - confirmedOffset < capacity) {
+			int position = physicalPosition(offset);
+			int length = mappedFile.getInt(position);
+			if (mappedFile.getLong(position + 8) != offset) {
+				return offset;
+			}
+			if (length == WRAP_MARKER) {
+				offset = nextRound(offset);
+				continue;
+			}
+			if (readEntry(offset) == null) {
+				return offset;
+			}
+			offset += align(ENTRY_HEADER_SIZE + length);
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns the entry at the given offset, or null for a wrap marker or an invalid entry.
+	 */
+	private Entry readEntry(long offset) {
+		int position = physicalPosition(offset);
+		int length = mappedFile.getInt(position);
+		if (length <= 0 || length > capacity - ENTRY_HEADER_SIZE || mappedFile.getLong(position + 8) != offset) {
+			return null;
+		}
+
+		byte[] payload = new byte[length];
+		ByteBuffer entry = mappedFile.duplicate();
+		entry.position(position + ENTRY_HEADER_SIZE);
+		entry.get(payload);
+		if (checksum(payload) != mappedFile.getInt(position + 4)) {
+			return null;
+		}
+
+		ExecuteOperations operations = new ExecuteOperations();
+		try {
+			new TDeserializer(new TBinaryProtocol.Factory()).deserialize(operations, payload);
+		} catch (TException e) {
+			return null;
+		}
+		return new Entry(operations, offset + align(ENTRY_HEADER_SIZE + length));
+	}
+
+	private void writeEntryHeader(long offset, int length, int checksum) {
+		int position = physicalPosition(offset);
+		mappedFile.putInt(position, length);
+		mappedFile.putInt(position + 4, checksum);
+		mappedFile.putLong(position + 8, offset);
+	}
+
+	private static ExecuteOperations combine(List<Entry> entries) {
+		List<ExecuteOperation> operations = new ArrayList<>();
+		for (Entry entry : entries) {
+			operations.addAll(entry.operations.getOperations());
+		}
+		return OperationMerger.withOperations(entries.get(0).operations, OperationMerger.merge(operations));
+	}
+
+	private static boolean isCombinable(ExecuteOperations first, ExecuteOperations second) {
+		return first.getPriority() == second.getPriority()
+		       && first.isSetExecute_at() == second.isSetExecute_at()
+		       && first.getExecute_at() == second.getExecute_at();
+	}
+
+	private boolean pause(long millis) {
+		try {
+			MILLISECONDS.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	private int physicalPosition(long offset) {
+		return (int) (FILE_HEADER_SIZE + offset % capacity);
+	}
+
+	private long nextRound(long offset) {
+		return (offset / capacity + 1) * capacity;
+	}
+
+	private static int align(int size) {
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	private static final class Entry {
+		final ExecuteOperations operations;
+		final long end;
+
+		Entry(ExecuteOperations operations, long end) {
+			this.operations = operations;
+			this.end = end;
+		}
+	}
+}
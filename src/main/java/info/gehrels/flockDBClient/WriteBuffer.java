@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Priority;
+import com.twitter.flockdb.thrift.QueryTerm;
+import org.apache.thrift.TException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Collects mutating operations from many threads and sends them as one {@code execute} call per {@link Priority}, as
+ * soon as {@code maxOperations} operations of that priority are buffered or the oldest of them has been buffered for
+ * {@code lingerNanos}. Batches are sent one after the other by a single thread, so operations of the same priority are
+ * executed in the order they were submitted. Operations of different priorities are collected in different batches and
+ * may be executed in a different order than they were submitted, so they should not depend on each other. Each
+ * operation gets a future, which completes once its batch has been executed and fails with a {@link FlockDBException}
+ * if the batch failed. Like with the {@link ExecutionBuilder}, the operations of a batch are merged before they are
+ * sent.
+ */
+public final class WriteBuffer implements Closeable {
+	private final Iface backingFlockClient;
+	private final int maxOperations;
+	private final long lingerNanos;
+	private final ScheduledExecutorService sender;
+	private final Map<Priority, Batch> openBatches = new EnumMap<>(Priority.class);
+	private boolean closed;
+
+	WriteBuffer(Iface backingFlockClient, int maxOperations, long lingerNanos) {
+		if (maxOperations < 1) {
+			throw new IllegalArgumentException("Illegal maximum number of operations per batch: " + maxOperations);
+		}
+
+		this.backingFlockClient = backingFlockClient;
+		this.maxOperations = maxOperations;
+		this.lingerNanos = lingerNanos;
+		this.sender = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FlockDB write buffer %d").build());
+	}
+
+	public ListenableFuture<Void> add(Priority priority, long sourceId, int graphId, long position,
+	                                  Direction direction, long... destinationIds) {
+		return submit(priority, new ExecuteOperation(ExecuteOperationType.Add,
+		                                             queryTerm(sourceId, graphId, direction, destinationIds))
+			.setPosition(position));
+	}
+
+	public ListenableFuture<Void> remove(Priority priority, long sourceId, int graphId, Direction direction,
+	                                     long... destinationIds) {
+		return submit(priority, new ExecuteOperation(ExecuteOperationType.Remove,
+		                                             queryTerm(sourceId, graphId, direction, destinationIds)));
+	}
+
+	public ListenableFuture<Void> negate(Priority priority, long sourceId, int graphId, Direction direction,
+	                                     long... destinationIds) {
+		return submit(priority, new ExecuteOperation(ExecuteOperationType.Negate,
+		                                             queryTerm(sourceId, graphId, direction, destinationIds)));
+	}
+
+	public ListenableFuture<Void> archive(Priority priority, long sourceId, int graphId, Direction direction,
+	                                      long... destinationIds) {
+		return submit(priority, new ExecuteOperation(ExecuteOperationType.Archive,
+		                                             queryTerm(sourceId, graphId, direction, destinationIds)));
+	}
+
+	/**
+	 * Sends all buffered operations right away and waits until they have been executed. Failures are reported by the
+	 * futures of the operations.
+	 */
+	public void flush() {
+		List<ListenableFuture<?>> sent = new ArrayList<>();
+		synchronized (openBatches) {
+			for (Batch batch : openBatches.values()) {
+				sent.add(batch.completion);
+				sender.execute(batch);
+			}
+			openBatches.clear();
+		}
+
+		for (ListenableFuture<?> completion : sent) {
+			try {
+				getUninterruptibly(completion);
+			} catch (ExecutionException e) {
+				// reported to the futures of the operations
+			}
+		}
+	}
+
+	/**
+	 * Sends all buffered operations and stops accepting new ones.
+	 */
+	@Override
+	public void close() {
+		synchronized (openBatches) {
+			closed = true;
+		}
+		flush();
+		sender.shutdown();
+	}
+
+	private ListenableFuture<Void> submit(Priority priority, ExecuteOperation operation) {
+		SettableFuture<Void> result = SettableFuture.create();
+		synchronized (openBatches) {
+			checkState(!closed, "The write buffer has been closed");
+			Batch batch = openBatches.get(priority);
+			if (batch == null) {
+				batch = new Batch(priority);
+				openBatches.put(priority, batch);
+				scheduleLingerTimeout(batch);
+			}
+
+			batch.add(operation, result);
+			if (batch.operations.size() >= maxOperations) {
+				openBatches.remove(priority);
+				sender.execute(batch);
+			}
+		}
+		return result;
+	}
+
+	private void scheduleLingerTimeout(final Batch batch) {
+		sender.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (openBatches) {
+					// The batch may already have been sent because it became full
+					if (openBatches.get(batch.priority) != batch) {
+						return;
+					}
+					openBatches.remove(batch.priority);
+				}
+				batch.run();
+			}
+		}, lingerNanos, NANOSECONDS);
+	}
+
+	private static QueryTerm queryTerm(long sourceId, int graphId, Direction direction, long... destinationIds) {
+		return new QueryTerm(sourceId, graphId, direction.forward)
+			.setDestination_ids(asByteBufferOrNull(destinationIds));
+	}
+
+	private final class Batch implements Runnable {
+		final Priority priority;
+		final List<ExecuteOperation> operations = new ArrayList<>();
+		final List<SettableFuture<Void>> results = new ArrayList<>();
+		final SettableFuture<Void> completion = SettableFuture.create();
+
+		Batch(Priority priority) {
+			this.priority = priority;
+		}
+
+		void add(ExecuteOperation operation, SettableFuture<Void> result) {
+			operations.add(operation);
+			results.add(result);
+		}
+
+		@Override
+		public void run() {
+			try {
+				backingFlockClient.execute(new ExecuteOperations(OperationMerger.merge(operations), priority));
+				for (SettableFuture<Void> result : results) {
+					result.set(null);
+				}
+			} catch (TException | FlockException | RuntimeException e) {
+				FlockDBException failure = new FlockDBException(e);
+				for (SettableFuture<Void> result : results) {
+					result.setException(failure);
+				}
+			} finally {
+				completion.set(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *
+ * limitations under the License.
+ */
+
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.QueryTerm;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the writes to nodes and graphs, so that caches can tell whether a node has been written since they read it:
+ * A cache takes the stamps of a node and its graph before it reads, and its entry is stale once one of them moved on.
+ * The stamps are striped, so a write may make entries of some unrelated nodes look stale, too.
+ */
+final class WriteStamps {
+	private static final int STRIPES = 4096;
+
+	private final AtomicLongArray nodeStamps = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray graphStamps = new AtomicLongArray(STRIPES);
+
+	long nodeStamp(long nodeId, int graphId) {
+		return nodeStamps.get(nodeStripe(nodeId, graphId));
+	}
+
+	long graphStamp(int graphId) {
+		return graphStamps.get(graphStripe(graphId));
+	}
+
+	/**
+	 * Moves on the stamps of the source and all destination nodes of the given term, or the stamp of its whole graph,
+	 * if it has no destination ids and thus addresses all edges of its source node.
+	 */
+	void written(QueryTerm term) {
+		if (!term.isSetDestination_ids()) {
+			graphStamps.incrementAndGet(graphStripe(term.getGraph_id()));
+			return;
+		}
+
+		nodeStamps.incrementAndGet(nodeStripe(term.getSource_id(), term.getGraph_id()));
+		LongBuffer destinationIds = ByteHelper.asLongBuffer(term.bufferForDestination_ids());
+		while (destinationIds.hasRemaining()) {
+			nodeStamps.incrementAndGet(nodeStripe(destinationIds.get(), term.getGraph_id()));
+		}
+	}
+
+	private static int nodeStripe(long nodeId, int graphId) {
+		long hash = (nodeId ^ (nodeId >>> 32)) * 31 + graphId;
+		return ((int) (hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % STRIPES;
+	}
+
+	private static int graphStripe(int graphId) {
+		return (graphId & Integer.MAX_VALUE) % STRIPES;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.FlockDB.AsyncClient.contains_call;
+import com.twitter.flockdb.thrift.FlockDB.AsyncIface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.transport.TTransport;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AsyncFlockClientTest {
+	private final AsyncIface asyncClientMock = mock(AsyncIface.class);
+	private final TTransport transport = mock(TTransport.class);
+	private final ArgumentCaptor<AsyncMethodCallback> callbackCaptor =
+		ArgumentCaptor.forClass(AsyncMethodCallback.class);
+	private int openedConnections;
+
+	private final AsyncFlockClient clientUnderTest = new AsyncFlockClient(new AsyncConnectionFactory() {
+		@Override
+		public AsyncFlockConnection openConnection() {
+			openedConnections++;
+			return new AsyncFlockConnection(asyncClientMock, transport);
+		}
+	}, 1);
+
+	@Test
+	public void startsCallAndCompletesFutureWithItsResult() throws Exception {
+		ListenableFuture<Boolean> result = clientUnderTest.contains(1, 2, 3);
+
+		verify(asyncClientMock).contains(eq(1L), eq(2), eq(3L), callbackCaptor.capture());
+		assertThat(result.isDone(), is(false));
+
+		callbackCaptor.getValue().onComplete(aContainsCallReturning(true));
+
+		assertThat(result.get(), is(true));
+	}
+
+	@Test
+	public void queuesCallsExceedingMaxConnectionsUntilAConnectionIsReleased() throws Exception {
+		ListenableFuture<Boolean> first = clientUnderTest.contains(1, 2, 3);
+		ListenableFuture<Boolean> second = clientUnderTest.contains(4, 5, 6);
+
+		verify(asyncClientMock).contains(eq(1L), eq(2), eq(3L), callbackCaptor.capture());
+		verify(asyncClientMock, never()).contains(eq(4L), eq(5), eq(6L), any(AsyncMethodCallback.class));
+
+		callbackCaptor.getValue().onComplete(aContainsCallReturning(true));
+
+		verify(asyncClientMock).contains(eq(4L), eq(5), eq(6L), callbackCaptor.capture());
+		callbackCaptor.getValue().onComplete(aContainsCallReturning(false));
+
+		assertThat(first.get(), is(true));
+		assertThat(second.get(), is(false));
+		assertThat(openedConnections, is(1));
+	}
+
+	@Test
+	public void reusesConnectionAfterFlockException() throws Exception {
+		ListenableFuture<Boolean> result = clientUnderTest.contains(1, 2, 3);
+		verify(asyncClientMock).contains(anyLong(), anyInt(), anyLong(), callbackCaptor.capture());
+
+		contains_call failingCall = mock(contains_call.class);
+		when(failingCall.getResult()).thenThrow(new FlockException("arbitrary"));
+		callbackCaptor.getValue().onComplete(failingCall);
+
+		assertFailsWithFlockDBException(result);
+		verify(transport, never()).close();
+		assertThat(clientUnderTest.getOpenConnections(), is(1));
+	}
+
+	@Test
+	public void discardsConnectionAfterTransportError() throws Exception {
+		ListenableFuture<Boolean> result = clientUnderTest.contains(1, 2, 3);
+		verify(asyncClientMock).contains(anyLong(), anyInt(), anyLong(), callbackCaptor.capture());
+
+		callbackCaptor.getValue().onError(new IOException("arbitrary"));
+
+		assertFailsWithFlockDBException(result);
+		verify(transport).close();
+		assertThat(clientUnderTest.getOpenConnections(), is(0));
+
+		clientUnderTest.contains(1, 2, 3);
+		verify(asyncClientMock, times(2)).contains(anyLong(), anyInt(), anyLong(), any(AsyncMethodCallback.class));
+		assertThat(openedConnections, is(2));
+	}
+
+	@Test
+	public void discardsConnectionIfDecodingTheResponseFailed() throws Exception {
+		ListenableFuture<Boolean> result = clientUnderTest.contains(1, 2, 3);
+		verify(asyncClientMock).contains(anyLong(), anyInt(), anyLong(), callbackCaptor.capture());
+
+		contains_call failingCall = mock(contains_call.class);
+		when(failingCall.getResult()).thenThrow(new IllegalStateException("arbitrary"));
+		callbackCaptor.getValue().onComplete(failingCall);
+
+		assertFailsWithFlockDBException(result);
+		verify(transport).close();
+		assertThat(clientUnderTest.getOpenConnections(), is(0));
+	}
+
+	@Test
+	public void awaitingACallWrapsUnexpectedCheckedExceptions() throws Exception {
+		SettableFuture<Boolean> call = SettableFuture.create();
+		call.setException(new IOException("arbitrary"));
+
+		try {
+			FutureHelper.awaitCall(call);
+			fail();
+		} catch (FlockDBException e) {
+			assertThat(e.getCause().getCause(), instanceOf(IOException.class));
+		}
+	}
+
+	@Test
+	public void failsPendingCallsOnClose() throws Exception {
+		clientUnderTest.contains(1, 2, 3);
+		ListenableFuture<Boolean> pending = clientUnderTest.contains(4, 5, 6);
+
+		clientUnderTest.close();
+
+		assertFailsWithFlockDBException(pending);
+		verify(transport).close();
+	}
+
+	private contains_call aContainsCallReturning(boolean result) throws TException, FlockException {
+		contains_call call = mock(contains_call.class);
+		when(call.getResult()).thenReturn(result);
+		return call;
+	}
+
+	private void assertFailsWithFlockDBException(ListenableFuture<?> future) throws InterruptedException {
+		try {
+			future.get();
+			fail("Expected the future to fail");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(FlockDBException.class));
+		}
+	}
+}
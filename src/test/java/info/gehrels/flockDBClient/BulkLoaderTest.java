@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Add;
+import static com.twitter.flockdb.thrift.Priority.Low;
+import static info.gehrels.flockDBClient.ExecutionMatchers.anOperation;
+import static info.gehrels.flockDBClient.ExecutionMatchers.hasOperations;
+import static info.gehrels.flockDBClient.ExecutionMatchers.hasPriority;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withDestinationIds;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withGraphId;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withPosition;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withSourceId;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withType;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class BulkLoaderTest {
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final List<ExecuteOperations> sentCalls = Collections.synchronizedList(new ArrayList<ExecuteOperations>());
+
+	public BulkLoaderTest() throws TException, FlockException {
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				sentCalls.add((ExecuteOperations) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(backingFlockMock).execute(any(ExecuteOperations.class));
+	}
+
+	@Test
+	public void groupsConsecutiveEdgesOfTheSameSourceNode() throws IOException {
+		BulkLoader loader = new BulkLoader(new FlockDB(backingFlockMock)).withParallelCalls(1);
+
+		BulkLoadResult result = loader.loadCsv(new StringReader("# source,graph,destination,position\n"
+		                                                        + "1,2,3,10\n"
+		                                                        + "1,2,4,10\n"
+		                                                        + "\n"
+		                                                        + "5,2,6,10\n"));
+
+		assertThat(result.getEdges(), is(3L));
+		assertThat(result.getCalls(), is(1L));
+		assertThat(sentCalls.get(0), allOf(
+			hasPriority(Low),
+			hasOperations(
+				anOperation(withType(Add), withSourceId(1), withGraphId(2), withPosition(10), withDestinationIds(3, 4)),
+				anOperation(withType(Add), withSourceId(5), withGraphId(2), withPosition(10), withDestinationIds(6))
+			)
+		));
+	}
+
+	@Test
+	public void sendsAtMostEdgesPerCallEdgesPerCall() throws IOException {
+		BulkLoader loader = new BulkLoader(new FlockDB(backingFlockMock)).withEdgesPerCall(100).withParallelCalls(3);
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < 1050; i++) {
+			csv.append(i / 7).append(",2,").append(i).append('\n');
+		}
+
+		BulkLoadResult result = loader.loadCsv(new StringReader(csv.toString()));
+
+		assertThat(result.getEdges(), is(1050L));
+		assertThat(result.getCalls(), is(11L));
+		assertThat(countSentEdges(), is(1050));
+	}
+
+	@Test
+	public void loadsMemoryMappedBinaryFile() throws IOException {
+		File file = temporaryFolder.newFile("edges.bin");
+		ByteBuffer records = ByteBuffer.allocate(3 * BulkLoader.BINARY_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		records.putLong(1).putLong(3).putLong(10).putInt(2);
+		records.putLong(1).putLong(4).putLong(10).putInt(2);
+		records.putLong(5).putLong(6).putLong(11).putInt(2);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(records.array());
+		}
+
+		BulkLoadResult result = new BulkLoader(new FlockDB(backingFlockMock)).loadBinary(file);
+
+		assertThat(result.getEdges(), is(3L));
+		assertThat(sentCalls.get(0), hasOperations(
+			anOperation(withSourceId(1), withPosition(10), withDestinationIds(3, 4)),
+			anOperation(withSourceId(5), withPosition(11), withDestinationIds(6))
+		));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMalformedCsvLines() throws IOException {
+		new BulkLoader(new FlockDB(backingFlockMock)).loadCsv(new StringReader("1,2\n"));
+	}
+
+	@Test
+	public void stopsAtFirstFailedCall() throws IOException, TException, FlockException {
+		doThrow(new FlockException("error")).when(backingFlockMock).execute(any(ExecuteOperations.class));
+		BulkLoader loader = new BulkLoader(new FlockDB(backingFlockMock)).withEdgesPerCall(1).withParallelCalls(1);
+
+		try {
+			loader.loadCsv(new StringReader("1,2,3\n4,5,6\n7,8,9\n"));
+			fail();
+		} catch (FlockDBException e) {
+			assertThat(e.getCause() instanceof FlockException, is(true));
+		}
+	}
+
+	private int countSentEdges() {
+		int edges = 0;
+		for (ExecuteOperations call : sentCalls) {
+			for (ExecuteOperation operation : call.getOperations()) {
+				edges += operation.getTerm().getDestination_ids().length / 8;
+			}
+		}
+		return edges;
+	}
+}
@@ -2,8 +2,12 @@ package info.gehrels.flockDBClient;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
 import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
 import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static info.gehrels.flockDBClient.ByteHelper.asLongBuffer;
 import static info.gehrels.flockDBClient.ByteHelper.toLongArray;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -51,4 +55,29 @@ public class ByteHelperTest {
 		assertThat(result, is(equalTo(testData)));
 	}
 
+	@Test
+	public void encodesAndDecodesManyIdsTransparently() {
+		long[] testData = new long[1000];
+		for (int i = 0; i < testData.length; i++) {
+			testData[i] = i * -7919L;
+		}
+
+		ByteBuffer encoded = asByteBuffer(testData);
+
+		assertThat(encoded.getLong(8), is(-7919L));
+		assertThat(toLongArray(encoded.array()), is(equalTo(testData)));
+	}
+
+	@Test
+	public void viewsTheRemainingBytesOfAWrappedArrayAsLittleEndianLongs() {
+		byte[] frame = new byte[3 + 16];
+		System.arraycopy(asByteBuffer(12345L, -1L).array(), 0, frame, 3, 16);
+
+		LongBuffer result = asLongBuffer(ByteBuffer.wrap(frame, 3, 16));
+
+		assertThat(result.limit(), is(2));
+		assertThat(result.get(0), is(12345L));
+		assertThat(result.get(1), is(-1L));
+	}
+
 }
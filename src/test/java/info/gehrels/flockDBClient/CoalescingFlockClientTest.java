@@ -0,0 +1,295 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Page;
+import com.twitter.flockdb.thrift.Priority;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static info.gehrels.flockDBClient.Direction.OUTGOING;
+import static info.gehrels.flockDBClient.SelectionQuery.simpleSelection;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CoalescingFlockClientTest {
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final CoalescingFlockClient clientUnderTest = new CoalescingFlockClient(backingFlockMock);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final CountDownLatch firstCallStarted = new CountDownLatch(1);
+	private final CountDownLatch releaseFirstCall = new CountDownLatch(1);
+	private final AtomicInteger calls = new AtomicInteger();
+
+	@After
+	public void shutDownExecutor() {
+		releaseFirstCall.countDown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void identicalConcurrentSelectionsShareOneCall() throws Exception {
+		answerSelect2(new Results(asByteBuffer(1, 2, 3), 0, -1));
+
+		Future<List<Results>> first = select2InBackground(10);
+		firstCallStarted.await();
+		Future<List<Results>> second = select2InBackground(10);
+		awaitCoalescedReads(1);
+		releaseFirstCall.countDown();
+
+		assertThat(first.get(1, SECONDS).get(0).getIds(), is(asByteBuffer(1, 2, 3).array()));
+		assertThat(second.get(1, SECONDS).get(0).getIds(), is(asByteBuffer(1, 2, 3).array()));
+		assertThat(second.get().get(0), is(not(sameInstance(first.get().get(0)))));
+		verify(backingFlockMock, times(1)).select2(any(List.class));
+	}
+
+	@Test
+	public void threadsDoNotWaitForCallsSentWithinAnEarlierDeadline() throws Exception {
+		answerSelect2(new Results(asByteBuffer(1, 2, 3), 0, -1));
+
+		Future<List<Results>> first = select2InBackground(10, 60000);
+		firstCallStarted.await();
+		select2InBackground(10, 0).get(1, SECONDS);
+		releaseFirstCall.countDown();
+		first.get(1, SECONDS);
+
+		verify(backingFlockMock, times(2)).select2(any(List.class));
+		assertThat(clientUnderTest.coalescedReads(), is(0L));
+	}
+
+	@Test
+	public void threadsWaitForCallsSentWithinALaterDeadline() throws Exception {
+		answerSelect2(new Results(asByteBuffer(1, 2, 3), 0, -1));
+
+		Future<List<Results>> first = select2InBackground(10, 0);
+		firstCallStarted.await();
+		Future<List<Results>> second = select2InBackground(10, 60000);
+		awaitCoalescedReads(1);
+		releaseFirstCall.countDown();
+		first.get(1, SECONDS);
+		second.get(1, SECONDS);
+
+		verify(backingFlockMock, times(1)).select2(any(List.class));
+	}
+
+	@Test
+	public void differentSelectionsAreNotCoalesced() throws Exception {
+		answerSelect2(new Results(asByteBuffer(1, 2, 3), 0, -1));
+
+		Future<List<Results>> first = select2InBackground(10);
+		firstCallStarted.await();
+		select2InBackground(20).get(1, SECONDS);
+		releaseFirstCall.countDown();
+		first.get(1, SECONDS);
+
+		verify(backingFlockMock, times(2)).select2(any(List.class));
+		assertThat(clientUnderTest.coalescedReads(), is(0L));
+	}
+
+	@Test
+	public void waitingThreadsGetCopiesOfTheCounts() throws Exception {
+		final ByteBuffer counts = ByteBuffer.allocate(4).order(LITTLE_ENDIAN).putInt(0, 42);
+		doAnswer(new Answer<ByteBuffer>() {
+			@Override
+			public ByteBuffer answer(InvocationOnMock invocation) throws InterruptedException {
+				firstCallStarted.countDown();
+				releaseFirstCall.await();
+				return counts;
+			}
+		}).when(backingFlockMock).count2(any(List.class));
+
+		Callable<ByteBuffer> count = new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				return clientUnderTest.count2(singletonList(simpleSelection(1, 2, OUTGOING).getSelectOperations()));
+			}
+		};
+		Future<ByteBuffer> first = executor.submit(count);
+		firstCallStarted.await();
+		Future<ByteBuffer> second = executor.submit(count);
+		awaitCoalescedReads(1);
+		releaseFirstCall.countDown();
+
+		assertThat(first.get(1, SECONDS), is(sameInstance(counts)));
+		assertThat(second.get(1, SECONDS), is(not(sameInstance(counts))));
+		assertThat(second.get().order(LITTLE_ENDIAN).getInt(), is(42));
+	}
+
+	@Test
+	public void waitingThreadsGetAllCountsIfTheFirstThreadConsumedItsBufferBeforeThey() throws Exception {
+		final ByteBuffer counts = ByteBuffer.allocate(40).order(LITTLE_ENDIAN);
+		doAnswer(new Answer<ByteBuffer>() {
+			@Override
+			public ByteBuffer answer(InvocationOnMock invocation) throws InterruptedException {
+				firstCallStarted.countDown();
+				releaseFirstCall.await();
+				return counts;
+			}
+		}).when(backingFlockMock).count2(any(List.class));
+
+		Future<ByteBuffer> first = executor.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				ByteBuffer firstCounts = clientUnderTest.count2(singletonList(simpleSelection(1, 2, OUTGOING)
+					                                                              .getSelectOperations()));
+				// Reads the counts right away like the CountBuilder, usually before the waiting thread woke up
+				while (firstCounts.hasRemaining()) {
+					firstCounts.getInt();
+				}
+				return firstCounts;
+			}
+		});
+		firstCallStarted.await();
+		Future<ByteBuffer> second = executor.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				return clientUnderTest.count2(singletonList(simpleSelection(1, 2, OUTGOING).getSelectOperations()));
+			}
+		});
+		awaitCoalescedReads(1);
+		releaseFirstCall.countDown();
+
+		first.get(1, SECONDS);
+		assertThat(second.get(1, SECONDS).remaining(), is(40));
+	}
+
+	@Test
+	public void waitingThreadsGetTheFailureOfTheSharedCall() throws Exception {
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) throws Exception {
+				firstCallStarted.countDown();
+				releaseFirstCall.await();
+				throw new FlockException("broken");
+			}
+		}).when(backingFlockMock).select2(any(List.class));
+
+		Future<List<Results>> first = select2InBackground(10);
+		firstCallStarted.await();
+		Future<List<Results>> second = select2InBackground(10);
+		awaitCoalescedReads(1);
+		releaseFirstCall.countDown();
+
+		for (Future<List<Results>> result : Arrays.asList(first, second)) {
+			try {
+				result.get(1, SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertThat(e.getCause(), is(instanceOf(FlockException.class)));
+			}
+		}
+	}
+
+	@Test
+	public void readsStartedAfterAnExecutionDoNotJoinReadsSentBeforeIt() throws Exception {
+		answerSelect2(new Results(asByteBuffer(1, 2, 3), 0, -1));
+
+		Future<List<Results>> first = select2InBackground(10);
+		firstCallStarted.await();
+		clientUnderTest.execute(new ExecuteOperations(new ArrayList<ExecuteOperation>(), Priority.High));
+		select2InBackground(10).get(1, SECONDS);
+		releaseFirstCall.countDown();
+		first.get(1, SECONDS);
+
+		verify(backingFlockMock, times(2)).select2(any(List.class));
+	}
+
+	@Test
+	public void readsStartedAfterAnAsyncExecutionDoNotJoinReadsSentBeforeIt() throws Exception {
+		answerSelect2(new Results(asByteBuffer(1, 2, 3), 0, -1));
+
+		Future<List<Results>> first = select2InBackground(10);
+		firstCallStarted.await();
+		clientUnderTest.executed(new ExecuteOperations(new ArrayList<ExecuteOperation>(), Priority.High));
+		select2InBackground(10).get(1, SECONDS);
+		releaseFirstCall.countDown();
+		first.get(1, SECONDS);
+
+		verify(backingFlockMock, times(2)).select2(any(List.class));
+	}
+
+	private void answerSelect2(final Results results) throws TException, FlockException {
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) throws InterruptedException {
+				if (calls.getAndIncrement() == 0) {
+					firstCallStarted.countDown();
+					releaseFirstCall.await();
+				}
+				return singletonList(results);
+			}
+		}).when(backingFlockMock).select2(any(List.class));
+	}
+
+	private Future<List<Results>> select2InBackground(long sourceId) {
+		return select2InBackground(sourceId, 0);
+	}
+
+	private Future<List<Results>> select2InBackground(final long sourceId, final long timeoutInMilliSeconds) {
+		return executor.submit(new Callable<List<Results>>() {
+			@Override
+			public List<Results> call() throws Exception {
+				Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+				try {
+					return clientUnderTest.select2(singletonList(
+						new SelectQuery(simpleSelection(sourceId, 2, OUTGOING).getSelectOperations(), new Page(10, -1))));
+				} finally {
+					Deadline.restore(previous);
+				}
+			}
+		});
+	}
+
+	private void awaitCoalescedReads(long reads) throws InterruptedException {
+		while (clientUnderTest.coalescedReads() < reads) {
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConnectionPoolTest {
+	private final TTransport openTransport = mock(TTransport.class);
+	private final ConnectionFactory connectionFactory = new ConnectionFactory() {
+		@Override
+		public FlockConnection openConnection() {
+			openedConnections++;
+			return new FlockConnection(mock(Iface.class), openTransport);
+		}
+	};
+	private int openedConnections;
+
+	{
+		when(openTransport.isOpen()).thenReturn(true);
+	}
+
+	@Test
+	public void opensMinConnectionsOnStartup() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 3, 5, SECONDS.toNanos(1), SECONDS.toNanos(60), true);
+
+		assertThat(openedConnections, is(3));
+		assertThat(pool.getIdleConnections(), is(3));
+	}
+
+	@Test
+	public void reusesReleasedConnections() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 0, 5, SECONDS.toNanos(1), SECONDS.toNanos(60), true);
+
+		FlockConnection connection = pool.borrow();
+		pool.release(connection);
+
+		assertThat(pool.borrow(), is(sameInstance(connection)));
+		assertThat(openedConnections, is(1));
+	}
+
+	@Test
+	public void opensNewConnectionsWhileAllAreBorrowed() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 1, 5, SECONDS.toNanos(1), SECONDS.toNanos(60), true);
+
+		FlockConnection first = pool.borrow();
+		FlockConnection second = pool.borrow();
+
+		assertThat(second, is(not(sameInstance(first))));
+		assertThat(pool.getOpenConnections(), is(2));
+	}
+
+	@Test(expected = TTransportException.class)
+	public void timesOutIfMaxConnectionsAreBorrowed() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 0, 1, MILLISECONDS.toNanos(10), SECONDS.toNanos(60),
+		                                         true);
+
+		pool.borrow();
+		pool.borrow();
+	}
+
+	@Test
+	public void waitsNoLongerThanTheDeadlineAllows() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 0, 1, SECONDS.toNanos(10), SECONDS.toNanos(60),
+		                                         true);
+		pool.borrow();
+
+		long start = System.nanoTime();
+		try {
+			pool.borrow(Deadline.afterMilliSeconds(50));
+			fail();
+		} catch (TTransportException e) {
+			assertThat(System.nanoTime() - start, lessThan(SECONDS.toNanos(5)));
+		}
+	}
+
+	@Test
+	public void invalidatedConnectionsAreClosedAndFreeTheirSlot() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 0, 1, MILLISECONDS.toNanos(10), SECONDS.toNanos(60),
+		                                         true);
+
+		pool.invalidate(pool.borrow());
+		pool.borrow();
+
+		verify(openTransport).close();
+		assertThat(openedConnections, is(2));
+	}
+
+	@Test
+	public void replacesClosedConnectionsOnBorrowIfValidationIsEnabled() throws TTransportException {
+		TTransport closedTransport = mock(TTransport.class);
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 0, 5, SECONDS.toNanos(1), SECONDS.toNanos(60), true);
+		FlockConnection closedConnection = new FlockConnection(mock(Iface.class), closedTransport);
+		pool.release(closedConnection);
+
+		FlockConnection connection = pool.borrow();
+
+		assertThat(connection, is(not(sameInstance(closedConnection))));
+		verify(closedTransport).close();
+	}
+
+	@Test
+	public void evictsIdleConnectionsExceedingMinConnections() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 1, 5, SECONDS.toNanos(1), 0, true);
+		FlockConnection first = pool.borrow();
+		FlockConnection second = pool.borrow();
+		FlockConnection third = pool.borrow();
+		pool.release(first);
+		pool.release(second);
+		pool.release(third);
+
+		pool.release(pool.borrow());
+
+		assertThat(pool.getOpenConnections(), is(1));
+		verify(openTransport, times(2)).close();
+	}
+
+	@Test
+	public void evictsIdleConnectionsWithoutBorrowing() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 1, 5, SECONDS.toNanos(1), 0, true);
+		FlockConnection first = pool.borrow();
+		FlockConnection second = pool.borrow();
+		pool.release(first);
+		pool.release(second);
+
+		pool.evictIdleConnections();
+
+		assertThat(pool.getOpenConnections(), is(1));
+		assertThat(pool.getIdleConnections(), is(1));
+	}
+
+	@Test
+	public void closesIdleConnectionsOnCloseAndBorrowedOnesOnRelease() throws TTransportException {
+		ConnectionPool pool = new ConnectionPool(connectionFactory, 2, 5, SECONDS.toNanos(1), SECONDS.toNanos(60), true);
+		FlockConnection borrowed = pool.borrow();
+
+		pool.close();
+		verify(openTransport, times(1)).close();
+
+		pool.release(borrowed);
+		verify(openTransport, times(2)).close();
+		assertThat(pool.getOpenConnections(), is(0));
+	}
+}
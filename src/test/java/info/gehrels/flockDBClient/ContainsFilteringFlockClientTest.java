@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Priority;
+import com.twitter.flockdb.thrift.QueryTerm;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.List;
+
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContainsFilteringFlockClientTest {
+	private static final int GRAPH_ID = 2;
+	private static final int BYTES_PER_FILTER = 1024;
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final ContainsFilteringFlockClient clientUnderTest =
+		new ContainsFilteringFlockClient(backingFlockMock, BYTES_PER_FILTER, 2);
+
+	public ContainsFilteringFlockClientTest() throws TException, FlockException {
+		when(backingFlockMock.count(any(List.class))).thenReturn(3);
+		when(backingFlockMock.contains(anyLong(), anyInt(), anyLong())).thenReturn(true);
+		// Two pages: 10 and 11, then 12
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) {
+				@SuppressWarnings("unchecked")
+				SelectQuery query = ((List<SelectQuery>) invocation.getArguments()[0]).get(0);
+				if (query.getPage().getCursor() == -1) {
+					return singletonList(new Results(asByteBuffer(10, 11), 11, 0));
+				}
+				return singletonList(new Results(asByteBuffer(12), 0, 11));
+			}
+		}).when(backingFlockMock).select2(any(List.class));
+	}
+
+	@Test
+	public void answersDefiniteNegativesWithoutACall() throws TException, FlockException {
+		clientUnderTest.load(1, GRAPH_ID);
+
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 99), is(false));
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 12), is(true));
+
+		verify(backingFlockMock, never()).contains(1, GRAPH_ID, 99);
+		verify(backingFlockMock, times(2)).select2(any(List.class));
+		assertThat(clientUnderTest.definiteNegatives(), is(1L));
+		assertThat(clientUnderTest.possiblePositives(), is(1L));
+	}
+
+	@Test
+	public void passesLookupsOfNodesWithoutFilterThrough() throws TException, FlockException {
+		clientUnderTest.load(1, GRAPH_ID);
+
+		clientUnderTest.contains(1, GRAPH_ID + 1, 99);
+		clientUnderTest.contains(2, GRAPH_ID, 99);
+
+		verify(backingFlockMock).contains(1, GRAPH_ID + 1, 99);
+		verify(backingFlockMock).contains(2, GRAPH_ID, 99);
+		assertThat(clientUnderTest.definiteNegatives(), is(0L));
+	}
+
+	@Test
+	public void addsTheEdgesAddedByThisClient() throws TException, FlockException {
+		clientUnderTest.load(1, GRAPH_ID);
+
+		clientUnderTest.execute(execution(new QueryTerm(1, GRAPH_ID, true).setDestination_ids(asByteBuffer(50))));
+		// Adds the edge 1->60 from the perspective of node 60
+		clientUnderTest.execute(execution(new QueryTerm(60, GRAPH_ID, false).setDestination_ids(asByteBuffer(1))));
+
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 50), is(true));
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 60), is(true));
+	}
+
+	@Test
+	public void dropsTheFiltersOfAGraphWhenAllEdgesOfANodeAreAdded() throws TException, FlockException {
+		clientUnderTest.load(1, GRAPH_ID);
+
+		clientUnderTest.execute(execution(new QueryTerm(5, GRAPH_ID, false)));
+
+		assertThat(clientUnderTest.filters(), is(0));
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 99), is(true));
+	}
+
+	@Test
+	public void measuresTheMemoryOfAllFiltersAndLimitsTheirNumber() throws TException, FlockException {
+		clientUnderTest.load(1, GRAPH_ID);
+		clientUnderTest.load(2, GRAPH_ID);
+		clientUnderTest.load(2, GRAPH_ID);
+
+		assertThat(clientUnderTest.memoryInBytes(), is(2L * BYTES_PER_FILTER));
+		try {
+			clientUnderTest.load(3, GRAPH_ID);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		clientUnderTest.unload(1, GRAPH_ID);
+		clientUnderTest.load(3, GRAPH_ID);
+		assertThat(clientUnderTest.filters(), is(2));
+	}
+
+	@Test
+	public void doesNotKeepAFilterWhoseLoadFailed() throws TException, FlockException {
+		doThrow(new FlockException("broken")).when(backingFlockMock).select2(any(List.class));
+
+		try {
+			clientUnderTest.load(1, GRAPH_ID);
+			fail();
+		} catch (FlockException e) {
+			// expected
+		}
+
+		assertThat(clientUnderTest.filters(), is(0));
+	}
+
+	private static ExecuteOperations execution(QueryTerm term) {
+		return new ExecuteOperations(singletonList(new ExecuteOperation(ExecuteOperationType.Add, term)),
+		                             Priority.High);
+	}
+}
@@ -16,6 +16,8 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.twitter.flockdb.thrift.ExecuteOperations;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
@@ -24,6 +26,10 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 import static com.twitter.flockdb.thrift.ExecuteOperationType.Add;
 import static com.twitter.flockdb.thrift.ExecuteOperationType.Archive;
@@ -44,8 +50,16 @@ import static info.gehrels.flockDBClient.ExecutionMatchers.withoutDestinationIds
 import static info.gehrels.flockDBClient.ExecutionMatchers.withoutPosition;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class ExecutionBuilderTest {
 	private final Iface mock = mock(Iface.class);
@@ -230,4 +244,64 @@ public class ExecutionBuilderTest {
 	}
 
 
+	@Test
+	public void setsExecutionTimeInSeconds() throws FlockException, TException {
+		builderUnderTest.add(1, 2, 3, OUTGOING).withExecutionTime(new Date(1234567L)).execute();
+
+		verify(mock).execute(executeOperationsCapture.capture());
+		assertThat(executeOperationsCapture.getValue().getExecute_at(), is(1234));
+	}
+
+	@Test
+	public void spreadsCallsEvenlyOverTheWindow() throws FlockException, TException {
+		for (int sourceId = 0; sourceId < 4; sourceId++) {
+			builderUnderTest.add(sourceId, 2, 3, OUTGOING);
+		}
+
+		builderUnderTest.executeSpreadOver(new Date(1000000L), new Date(1040000L), 1);
+
+		verify(mock, times(4)).execute(executeOperationsCapture.capture());
+		List<Integer> executionTimes = new ArrayList<>();
+		for (ExecuteOperations call : executeOperationsCapture.getAllValues()) {
+			assertThat(call.getOperationsSize(), is(1));
+			executionTimes.add(call.getExecute_at());
+		}
+		assertThat(executionTimes, contains(1000, 1010, 1020, 1030));
+	}
+
+	@Test
+	public void reportsFailedAndUnsentCallsOfASpreadExecution() throws FlockException, TException {
+		doNothing().doThrow(new FlockException("error")).when(mock).execute(any(ExecuteOperations.class));
+		for (int sourceId = 0; sourceId < 3; sourceId++) {
+			builderUnderTest.add(sourceId, 2, 3, OUTGOING);
+		}
+
+		try {
+			builderUnderTest.executeSpreadOver(new Date(1000000L), new Date(1030000L), 1);
+			fail();
+		} catch (ChunkedExecutionException e) {
+			assertThat(e.getExecutedChunks(), is(1));
+			assertThat(e.getFailedChunks().get(0).getOperations().getExecute_at(), is(1010));
+			assertThat(e.getUnsentChunks().size(), is(1));
+			assertThat(e.getUnsentChunks().get(0).getExecute_at(), is(1020));
+		}
+	}
+
+	@Test
+	public void reportsAsyncExecutionsToTheExecutionListenersOnceTheyCompleted() throws Exception {
+		AsyncFlockClient asyncFlockClient = mock(AsyncFlockClient.class);
+		SettableFuture<Void> sent = SettableFuture.create();
+		when(asyncFlockClient.execute(any(ExecuteOperations.class))).thenReturn(sent);
+		ExecutionListener listener = mock(ExecutionListener.class);
+		ExecutionBuilder builder =
+			new ExecutionBuilder(mock, asyncFlockClient, null, null, Collections.singletonList(listener), Low);
+
+		ListenableFuture<Void> result = builder.add(1, 2, 3, OUTGOING, 4).executeAsync();
+
+		verify(listener, never()).executed(any(ExecuteOperations.class));
+		sent.setException(new FlockException("error"));
+		verify(listener).executed(executeOperationsCapture.capture());
+		assertThat(executeOperationsCapture.getValue(), hasOperations(anOperation(withSourceId(1), withType(Add))));
+		assertThat(result.isDone(), is(true));
+	}
 }
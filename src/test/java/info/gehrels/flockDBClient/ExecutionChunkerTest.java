@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.QueryTerm;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Add;
+import static com.twitter.flockdb.thrift.Priority.Low;
+import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static info.gehrels.flockDBClient.ByteHelper.toLongArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ExecutionChunkerTest {
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final List<ExecuteOperations> sentCalls = Collections.synchronizedList(new ArrayList<ExecuteOperations>());
+
+	@After
+	public void shutDownExecutor() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void sendsSmallBatchAsOneCall() throws TException, FlockException {
+		recordCalls(-1);
+		ExecutionChunker chunker = new ExecutionChunker(10, 10000, 4, executor);
+
+		chunker.execute(backingFlockMock, operations(1, 2, 3));
+
+		assertThat(sentCalls.size(), is(1));
+	}
+
+	@Test
+	public void splitsBatchByNumberOfOperationsAndKeepsOrderPerSource() throws TException, FlockException {
+		recordCalls(-1);
+		ExecutionChunker chunker = new ExecutionChunker(2, 10000, 2, executor);
+
+		// 3 operations on each of the sources 0 and 1, with different positions so that they are not merged
+		List<ExecuteOperation> operations = new ArrayList<>();
+		for (int position = 0; position < 3; position++) {
+			operations.add(operation(0, position, 10));
+			operations.add(operation(1, position, 10));
+		}
+		chunker.execute(backingFlockMock, new ExecuteOperations(operations, Low));
+
+		assertThat(sentCalls.size(), is(4));
+		List<Long> positionsOfSource0 = new ArrayList<>();
+		for (ExecuteOperations call : sentCalls) {
+			assertThat(call.getOperationsSize(), lessThanOrEqualTo(2));
+			for (ExecuteOperation operation : call.getOperations()) {
+				if (operation.getTerm().getSource_id() == 0) {
+					positionsOfSource0.add(operation.getPosition());
+				}
+			}
+		}
+		assertThat(positionsOfSource0, contains(0L, 1L, 2L));
+	}
+
+	@Test
+	public void splitsOperationsWithTooManyDestinationIds() throws TException, FlockException {
+		recordCalls(-1);
+		ExecutionChunker chunker = new ExecutionChunker(10, 64 + 8 * 100, 1, executor);
+		long[] destinationIds = new long[250];
+		for (int i = 0; i < destinationIds.length; i++) {
+			destinationIds[i] = i;
+		}
+
+		chunker.execute(backingFlockMock,
+		                new ExecuteOperations(Collections.singletonList(operation(1, 0, destinationIds)), Low));
+
+		assertThat(sentCalls.size(), is(3));
+		int sentIds = 0;
+		for (ExecuteOperations call : sentCalls) {
+			sentIds += toLongArray(call.getOperations().get(0).getTerm().getDestination_ids()).length;
+		}
+		assertThat(sentIds, is(250));
+	}
+
+	@Test
+	public void keepsPriorityAndExecutionTimeOfTheBatchInEachChunk() throws TException, FlockException {
+		recordCalls(-1);
+		ExecutionChunker chunker = new ExecutionChunker(1, 10000, 2, executor);
+
+		chunker.execute(backingFlockMock, operations(1, 2, 3).setExecute_at(1234));
+
+		assertThat(sentCalls.size(), is(3));
+		for (ExecuteOperations call : sentCalls) {
+			assertThat(call.getPriority(), is(Low));
+			assertThat(call.getExecute_at(), is(1234));
+		}
+	}
+
+	@Test
+	public void reportsFailedAndUnsentChunks() throws TException, FlockException {
+		recordCalls(1);
+		ExecutionChunker chunker = new ExecutionChunker(1, 10000, 1, executor);
+
+		try {
+			chunker.execute(backingFlockMock, operations(1, 2, 3));
+			fail();
+		} catch (ChunkedExecutionException e) {
+			assertThat(e.getExecutedChunks(), is(1));
+			assertThat(e.getFailedChunks().size(), is(1));
+			assertThat(e.getFailedChunks().get(0).getCause() instanceof FlockException, is(true));
+			assertThat(e.getUnsentChunks().size(), is(1));
+		}
+	}
+
+	@Test
+	public void sendsChunksOfALaneAsynchronouslyOneAfterTheOther() throws Exception {
+		AsyncFlockClient asyncFlockClient = mock(AsyncFlockClient.class);
+		final SettableFuture<Void> firstCall = SettableFuture.create();
+		when(asyncFlockClient.execute(any(ExecuteOperations.class)))
+			.thenReturn(firstCall, Futures.<Void>immediateFuture(null));
+		ExecutionChunker chunker = new ExecutionChunker(1, 10000, 1, executor);
+
+		ListenableFuture<Void> result = chunker.executeAsync(asyncFlockClient, operations(1, 2));
+
+		verify(asyncFlockClient, times(1)).execute(any(ExecuteOperations.class));
+		firstCall.set(null);
+		verify(asyncFlockClient, times(2)).execute(any(ExecuteOperations.class));
+		assertThat(result.isDone(), is(true));
+		result.get();
+	}
+
+	@Test
+	public void sendsBothDirectionsOfAnEdgeInTheSameLane() throws Exception {
+		AsyncFlockClient asyncFlockClient = mock(AsyncFlockClient.class);
+		final List<SettableFuture<Void>> pendingCalls = new ArrayList<>();
+		when(asyncFlockClient.execute(any(ExecuteOperations.class))).thenAnswer(new Answer<ListenableFuture<Void>>() {
+			@Override
+			public ListenableFuture<Void> answer(InvocationOnMock invocation) {
+				sentCalls.add((ExecuteOperations) invocation.getArguments()[0]);
+				SettableFuture<Void> call = SettableFuture.create();
+				pendingCalls.add(call);
+				return call;
+			}
+		});
+		ExecutionChunker chunker = new ExecutionChunker(1, 10000, 2, executor);
+
+		// The edge 1 -> 2 is written forward first, then backward together with the edge 4 -> 2 of the other lane
+		chunker.executeAsync(asyncFlockClient, new ExecuteOperations(Arrays.asList(
+			operation(1, 0, 2),
+			new ExecuteOperation(Add, new QueryTerm(2, 2, false).setDestination_ids(asByteBufferOrNull(1, 4)))
+				.setPosition(1)
+		), Low));
+
+		assertThat(sentCalls.size(), is(2));
+		for (ExecuteOperations call : sentCalls) {
+			QueryTerm term = call.getOperations().get(0).getTerm();
+			assertThat(term.isIs_forward() || toLongArray(term.getDestination_ids())[0] == 4, is(true));
+		}
+		pendingCalls.get(0).set(null);
+		pendingCalls.get(1).set(null);
+		assertThat(sentCalls.size(), is(3));
+		QueryTerm backwardTerm = sentCalls.get(2).getOperations().get(0).getTerm();
+		assertThat(backwardTerm.isIs_forward(), is(false));
+		assertThat(toLongArray(backwardTerm.getDestination_ids())[0], is(1L));
+	}
+
+	private void recordCalls(final int failingCall) throws TException, FlockException {
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws FlockException {
+				synchronized (sentCalls) {
+					if (sentCalls.size() == failingCall) {
+						sentCalls.add(null);
+						throw new FlockException("error");
+					}
+					sentCalls.add((ExecuteOperations) invocation.getArguments()[0]);
+				}
+				return null;
+			}
+		}).when(backingFlockMock).execute(any(ExecuteOperations.class));
+	}
+
+	private static ExecuteOperations operations(long... sourceIds) {
+		List<ExecuteOperation> operations = new ArrayList<>();
+		for (long sourceId : sourceIds) {
+			operations.add(operation(sourceId, 0, 10));
+		}
+		return new ExecuteOperations(operations, Low);
+	}
+
+	private static ExecuteOperation operation(long sourceId, long position, long... destinationIds) {
+		return new ExecuteOperation(Add, new QueryTerm(sourceId, 2, true)
+			.setDestination_ids(asByteBufferOrNull(destinationIds))).setPosition(position);
+	}
+}
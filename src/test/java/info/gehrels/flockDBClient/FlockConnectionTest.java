@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class FlockConnectionTest {
+	private final ServerSocket server = new ServerSocket(0);
+
+	public FlockConnectionTest() throws IOException {
+	}
+
+	@After
+	public void closeServer() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void connectionsAreAliveUntilTheServerClosesThem() throws Exception {
+		FlockConnection connection = FlockConnection.open("localhost", server.getLocalPort(), 1000);
+		Socket accepted = server.accept();
+		assertThat(connection.isAlive(), is(true));
+
+		accepted.close();
+
+		assertThat(awaitDeath(connection), is(true));
+		assertThat(connection.isOpen(), is(true));
+		connection.close();
+	}
+
+	@Test
+	public void connectionsWithUnexpectedDataAreNotAlive() throws Exception {
+		FlockConnection connection = FlockConnection.open("localhost", server.getLocalPort(), 1000);
+		Socket accepted = server.accept();
+
+		accepted.getOutputStream().write(42);
+		accepted.getOutputStream().flush();
+
+		assertThat(awaitDeath(connection), is(true));
+		accepted.close();
+		connection.close();
+	}
+
+	private static boolean awaitDeath(FlockConnection connection) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			if (!connection.isAlive()) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HedgingFlockClientTest {
+	private static final int WARM_UP_CALLS = 1024;
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private static final ThreadLocal<Boolean> FIRST_ATTEMPT = new ThreadLocal<>();
+
+	private final HedgingStatistics statistics = new HedgingStatistics();
+	private final ExecutorService threadPool = Executors.newCachedThreadPool();
+	private final AttemptCountingExecutor executor = new AttemptCountingExecutor();
+
+	@After
+	public void shutDownThreadPool() {
+		threadPool.shutdown();
+	}
+
+	@Test
+	public void passesOtherCallsThrough() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.1, statistics);
+
+		clientUnderTest.select2(Collections.<SelectQuery>emptyList());
+
+		verify(backingFlockMock).select2(Collections.<SelectQuery>emptyList());
+		assertThat(statistics.getCalls(), is(0L));
+	}
+
+	@Test
+	public void doesNotHedgeBeforeLatenciesAreKnown() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.1, statistics);
+		when(backingFlockMock.contains(1, 2, 3)).thenAnswer(slowFirstAttempt(100));
+
+		assertThat(clientUnderTest.contains(1, 2, 3), is(true));
+
+		verify(backingFlockMock, times(1)).contains(1, 2, 3);
+		assertThat(statistics.getHedgesFired(), is(0L));
+	}
+
+	@Test
+	public void hedgesSlowCallAndReturnsFirstAnswer() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.1, statistics);
+		warmUp(clientUnderTest);
+		when(backingFlockMock.contains(1, 2, 3)).thenAnswer(slowFirstAttempt(2000));
+
+		long start = System.nanoTime();
+		assertThat(clientUnderTest.contains(1, 2, 3), is(true));
+
+		assertThat(System.nanoTime() - start, lessThan(MILLISECONDS.toNanos(1000)));
+		assertThat(statistics.getHedgesFired(), is(1L));
+		assertThat(statistics.getHedgesWon(), is(1L));
+	}
+
+	@Test
+	public void suppressesHedgesExceedingTheBudget() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest =
+			new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.001, statistics);
+		warmUp(clientUnderTest);
+		when(backingFlockMock.contains(1, 2, 3)).thenAnswer(slowFirstAttempt(100));
+		when(backingFlockMock.contains(4, 5, 6)).thenAnswer(slowFirstAttempt(100));
+
+		clientUnderTest.contains(1, 2, 3);
+		executor.startCounting();
+		clientUnderTest.contains(4, 5, 6);
+
+		assertThat(statistics.getHedgesFired(), is(1L));
+		assertThat(statistics.getHedgesSuppressed(), is(1L));
+	}
+
+	@Test
+	public void earnsHedgesEvenWithATinyBudgetPerCall() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest =
+			new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.0005, statistics);
+		warmUp(clientUnderTest);
+		warmUp(clientUnderTest);
+		when(backingFlockMock.contains(1, 2, 3)).thenAnswer(slowFirstAttempt(100));
+
+		clientUnderTest.contains(1, 2, 3);
+
+		assertThat(statistics.getHedgesFired(), is(1L));
+	}
+
+	@Test
+	public void runsFirstAttemptsRejectedByTheExecutorOnTheCallingThread() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, new Executor() {
+			@Override
+			public void execute(Runnable attempt) {
+				throw new RejectedExecutionException();
+			}
+		}, 0.9, 0.1, statistics);
+		when(backingFlockMock.contains(1, 2, 3)).thenReturn(true);
+
+		assertThat(clientUnderTest.contains(1, 2, 3), is(true));
+	}
+
+	@Test
+	public void suppressesHedgesRejectedByTheExecutor() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.1, statistics);
+		warmUp(clientUnderTest);
+		executor.rejectHedges();
+		when(backingFlockMock.contains(1, 2, 3)).thenAnswer(slowFirstAttempt(100));
+
+		assertThat(clientUnderTest.contains(1, 2, 3), is(true));
+
+		verify(backingFlockMock, times(1)).contains(1, 2, 3);
+		assertThat(statistics.getHedgesFired(), is(0L));
+		assertThat(statistics.getHedgesSuppressed(), is(1L));
+	}
+
+	@Test
+	public void succeedsIfOnlyOneAttemptFailed() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.1, statistics);
+		warmUp(clientUnderTest);
+		when(backingFlockMock.contains(1, 2, 3)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Exception {
+				if (FIRST_ATTEMPT.get()) {
+					MILLISECONDS.sleep(100);
+					throw new TTransportException();
+				}
+				return true;
+			}
+		});
+
+		assertThat(clientUnderTest.contains(1, 2, 3), is(true));
+	}
+
+	@Test
+	public void propagatesFlockException() throws TException, FlockException {
+		HedgingFlockClient clientUnderTest = new HedgingFlockClient(backingFlockMock, executor, 0.9, 0.1, statistics);
+		when(backingFlockMock.get_metadata(1, 2)).thenThrow(new FlockException("error"));
+
+		try {
+			clientUnderTest.get_metadata(1, 2);
+			fail();
+		} catch (FlockException e) {
+			assertThat(e.getDescription(), is("error"));
+		}
+	}
+
+	private void warmUp(HedgingFlockClient clientUnderTest) throws TException, FlockException {
+		for (int i = 0; i < WARM_UP_CALLS; i++) {
+			clientUnderTest.contains_metadata(1, 2);
+		}
+		executor.startCounting();
+	}
+
+	private static Answer<Boolean> slowFirstAttempt(final long delayInMilliSeconds) {
+		return new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+				if (FIRST_ATTEMPT.get()) {
+					MILLISECONDS.sleep(delayInMilliSeconds);
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Marks the threads running the first attempt started after {@link #startCounting()}, so that the backing client
+	 * can answer it slowly, and optionally rejects the attempts after it.
+	 */
+	private final class AttemptCountingExecutor implements Executor {
+		private final AtomicInteger startedAttempts = new AtomicInteger();
+		private volatile boolean rejectHedges;
+
+		void startCounting() {
+			startedAttempts.set(0);
+		}
+
+		void rejectHedges() {
+			rejectHedges = true;
+		}
+
+		@Override
+		public void execute(final Runnable attempt) {
+			final boolean firstAttempt = startedAttempts.getAndIncrement() == 0;
+			if (!firstAttempt && rejectHedges) {
+				throw new RejectedExecutionException();
+			}
+			threadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					FIRST_ATTEMPT.set(firstAttempt);
+					attempt.run();
+				}
+			});
+		}
+	}
+}
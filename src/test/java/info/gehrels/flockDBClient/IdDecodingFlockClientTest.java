@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockDB.Processor;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static info.gehrels.flockDBClient.PrimitiveMatchers.isLongArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class IdDecodingFlockClientTest {
+	private static final List<SelectQuery> QUERIES = Collections.emptyList();
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final Processor<Iface> processor = new Processor<>(backingFlockMock);
+	private final long[] manyIds = new long[5000];
+
+	{
+		for (int i = 0; i < manyIds.length; i++) {
+			manyIds[i] = i * 31L - 1000;
+		}
+	}
+
+	@Test
+	public void decodesIdsStraightOutOfABufferedResponse() throws TException, FlockException {
+		doReturn(Arrays.asList(new Results(ByteHelper.asByteBuffer(manyIds), 12, 11),
+		                       new Results(ByteHelper.asByteBuffer(), 0, -1)))
+			.when(backingFlockMock).select2(any(List.class));
+		TMemoryBuffer request = new TMemoryBuffer(64);
+		TMemoryInputTransport response = new TMemoryInputTransport();
+		IdDecodingFlockClient client = new IdDecodingFlockClient(new TBinaryProtocol(response),
+		                                                         new TBinaryProtocol(request));
+
+		client.send_select2(QUERIES);
+		TMemoryBuffer responseBuffer = new TMemoryBuffer(64);
+		processor.process(new TBinaryProtocol(request), new TBinaryProtocol(responseBuffer));
+		response.reset(responseBuffer.getArray(), 0, responseBuffer.length());
+		List<Results> results = client.recv_select2();
+
+		assertDecoded(results);
+	}
+
+	@Test
+	public void decodesIdsInChunksFromAnUnbufferedResponse() throws TException, FlockException {
+		doReturn(Arrays.asList(new Results(ByteHelper.asByteBuffer(manyIds), 12, 11),
+		                       new Results(ByteHelper.asByteBuffer(), 0, -1)))
+			.when(backingFlockMock).select2(any(List.class));
+		TMemoryBuffer request = new TMemoryBuffer(64);
+		TMemoryBuffer response = new TMemoryBuffer(64);
+		IdDecodingFlockClient client = new IdDecodingFlockClient(new TBinaryProtocol(response),
+		                                                         new TBinaryProtocol(request));
+
+		client.send_select2(QUERIES);
+		processor.process(new TBinaryProtocol(request), new TBinaryProtocol(response));
+		List<Results> results = client.recv_select2();
+
+		assertDecoded(results);
+	}
+
+	@Test
+	public void decodedResultsEqualPlainResultsWithTheSameContent() {
+		Results plain = new Results(ByteHelper.asByteBuffer(manyIds), 12, 11);
+		DecodedResults decoded = new DecodedResults(manyIds, 12, 11);
+
+		assertThat(decoded.equals((Object) plain), is(true));
+		assertThat(decoded.equals(new DecodedResults(manyIds, 12, 11)), is(true));
+		assertThat(decoded.equals(new DecodedResults(manyIds, 0, 11)), is(false));
+		assertThat(decoded.hashCode(), is(plain.hashCode()));
+		assertThat(decoded.compareTo(plain), is(0));
+		assertThat(decoded.toString(), is(plain.toString()));
+	}
+
+	@Test
+	public void throwsFlockException() throws TException, FlockException {
+		doThrow(new FlockException("error")).when(backingFlockMock).select2(any(List.class));
+		TMemoryBuffer request = new TMemoryBuffer(64);
+		TMemoryBuffer response = new TMemoryBuffer(64);
+		IdDecodingFlockClient client = new IdDecodingFlockClient(new TBinaryProtocol(response),
+		                                                         new TBinaryProtocol(request));
+
+		client.send_select2(QUERIES);
+		processor.process(new TBinaryProtocol(request), new TBinaryProtocol(response));
+		try {
+			client.recv_select2();
+			fail();
+		} catch (FlockException e) {
+			assertThat(e.getDescription(), is("error"));
+		}
+	}
+
+	private void assertDecoded(List<Results> results) {
+		assertThat(results.size(), is(2));
+		assertThat(results.get(0), instanceOf(DecodedResults.class));
+		assertThat(((DecodedResults) results.get(0)).getDecodedIds(), isLongArray(manyIds));
+		assertThat(results.get(0).getNext_cursor(), is(12L));
+		assertThat(results.get(0).getPrev_cursor(), is(11L));
+		assertThat(results.get(0).getIds(), is(ByteHelper.asByteBuffer(manyIds).array()));
+		assertThat(((DecodedResults) results.get(1)).getDecodedIds(), isLongArray());
+		assertThat(results.get(1).getNext_cursor(), is(0L));
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LoadBalancingFlockClientTest {
+	private final Iface firstEndpoint = mock(Iface.class);
+	private final Iface secondEndpoint = mock(Iface.class);
+
+	@Test
+	public void spreadsCallsOverAllEndpoints() throws TException, FlockException {
+		LoadBalancingFlockClient clientUnderTest = createClient(3, Long.MAX_VALUE);
+
+		for (int i = 0; i < 100; i++) {
+			clientUnderTest.contains(1, 2, 3);
+		}
+
+		verify(firstEndpoint, atLeast(1)).contains(1, 2, 3);
+		verify(secondEndpoint, atLeast(1)).contains(1, 2, 3);
+	}
+
+	@Test
+	public void prefersEndpointWithFewerOutstandingCalls() throws Exception {
+		final LoadBalancingFlockClient clientUnderTest = createClient(3, Long.MAX_VALUE);
+		final CountDownLatch blockedCallStarted = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		when(firstEndpoint.contains(1, 2, 3)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+				blockedCallStarted.countDown();
+				unblock.await();
+				return true;
+			}
+		});
+		when(secondEndpoint.contains(1, 2, 3)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+				blockedCallStarted.countDown();
+				unblock.await();
+				return true;
+			}
+		});
+
+		Thread blockedCall = new Thread() {
+			@Override
+			public void run() {
+				try {
+					clientUnderTest.contains(1, 2, 3);
+				} catch (TException | FlockException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		blockedCall.start();
+		blockedCallStarted.await(1, SECONDS);
+
+		int busyEndpoint = clientUnderTest.getOutstandingCalls(0) == 1 ? 0 : 1;
+		Iface idleEndpoint = busyEndpoint == 0 ? secondEndpoint : firstEndpoint;
+		when(idleEndpoint.get_metadata(1, 2)).thenReturn(null);
+		for (int i = 0; i < 10; i++) {
+			clientUnderTest.get_metadata(1, 2);
+		}
+
+		verify(idleEndpoint, times(10)).get_metadata(1, 2);
+		unblock.countDown();
+		blockedCall.join();
+	}
+
+	@Test
+	public void ejectsFailingEndpoint() throws TException, FlockException {
+		LoadBalancingFlockClient clientUnderTest = createClient(1, Long.MAX_VALUE);
+		when(firstEndpoint.contains(1, 2, 3)).thenThrow(new TTransportException());
+
+		for (int i = 0; i < 100; i++) {
+			try {
+				clientUnderTest.contains(1, 2, 3);
+			} catch (TTransportException e) {
+				// expected for the first call hitting the broken endpoint
+			}
+		}
+
+		verify(firstEndpoint, times(1)).contains(1, 2, 3);
+		assertThat(clientUnderTest.isAvailable(0), is(false));
+		assertThat(clientUnderTest.isAvailable(1), is(true));
+	}
+
+	@Test
+	public void doesNotEjectEndpointWhenDeadlineExpired() throws Exception {
+		LoadBalancingFlockClient clientUnderTest = createClient(1, Long.MAX_VALUE);
+		when(firstEndpoint.contains(1, 2, 3)).thenThrow(new TTransportException(TTransportException.TIMED_OUT));
+		when(secondEndpoint.contains(1, 2, 3)).thenThrow(new TTransportException(TTransportException.TIMED_OUT));
+
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(1));
+		try {
+			Thread.sleep(10);
+			for (int i = 0; i < 10; i++) {
+				try {
+					clientUnderTest.contains(1, 2, 3);
+				} catch (TTransportException e) {
+					// expected, the deadline has expired
+				}
+			}
+		} finally {
+			Deadline.restore(previous);
+		}
+
+		assertThat(clientUnderTest.isAvailable(0), is(true));
+		assertThat(clientUnderTest.isAvailable(1), is(true));
+	}
+
+	@Test
+	public void doesNotEjectEndpointOnLocalWaitTimeout() throws TException, FlockException {
+		LoadBalancingFlockClient clientUnderTest = createClient(1, Long.MAX_VALUE);
+		when(firstEndpoint.contains(1, 2, 3)).thenThrow(new LocalWaitTimeoutException("pool exhausted"));
+		when(secondEndpoint.contains(1, 2, 3)).thenThrow(new LocalWaitTimeoutException("pool exhausted"));
+
+		for (int i = 0; i < 10; i++) {
+			try {
+				clientUnderTest.contains(1, 2, 3);
+			} catch (TTransportException e) {
+				// expected
+			}
+		}
+
+		assertThat(clientUnderTest.isAvailable(0), is(true));
+		assertThat(clientUnderTest.isAvailable(1), is(true));
+	}
+
+	@Test
+	public void doesNotEjectEndpointOnFlockException() throws TException, FlockException {
+		LoadBalancingFlockClient clientUnderTest = createClient(1, Long.MAX_VALUE);
+		when(firstEndpoint.contains(1, 2, 3)).thenThrow(new FlockException());
+		when(secondEndpoint.contains(1, 2, 3)).thenThrow(new FlockException());
+
+		for (int i = 0; i < 10; i++) {
+			try {
+				clientUnderTest.contains(1, 2, 3);
+			} catch (FlockException e) {
+				// expected
+			}
+		}
+
+		assertThat(clientUnderTest.isAvailable(0), is(true));
+		assertThat(clientUnderTest.isAvailable(1), is(true));
+	}
+
+	@Test
+	public void ejectsSlowEndpoint() throws TException, FlockException {
+		LoadBalancingFlockClient clientUnderTest = createClient(1, MILLISECONDS.toNanos(100));
+		when(firstEndpoint.contains(1, 2, 3)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+				MILLISECONDS.sleep(200);
+				return true;
+			}
+		});
+
+		for (int i = 0; i < 50; i++) {
+			clientUnderTest.contains(1, 2, 3);
+		}
+
+		verify(firstEndpoint, times(1)).contains(1, 2, 3);
+		assertThat(clientUnderTest.isAvailable(0), is(false));
+	}
+
+	@Test
+	public void neverEjectsLastAvailableEndpoint() throws TException, FlockException {
+		LoadBalancingFlockClient clientUnderTest = createClient(1, Long.MAX_VALUE);
+		when(firstEndpoint.contains(1, 2, 3)).thenThrow(new TTransportException());
+		when(secondEndpoint.contains(1, 2, 3)).thenThrow(new TTransportException());
+
+		for (int i = 0; i < 10; i++) {
+			try {
+				clientUnderTest.contains(1, 2, 3);
+			} catch (TTransportException e) {
+				// expected
+			}
+		}
+
+		assertThat(clientUnderTest.isAvailable(0) || clientUnderTest.isAvailable(1), is(true));
+	}
+
+	private LoadBalancingFlockClient createClient(int failuresBeforeEjection, long maxAverageLatencyNanos) {
+		return new LoadBalancingFlockClient(Arrays.asList(firstEndpoint, secondEndpoint), failuresBeforeEjection,
+		                                    SECONDS.toNanos(60), maxAverageLatencyNanos);
+	}
+}
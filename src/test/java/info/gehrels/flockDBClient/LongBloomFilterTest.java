@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class LongBloomFilterTest {
+	private static final int IDS = 10000;
+
+	@Test
+	public void hasNoFalseNegatives() {
+		LongBloomFilter filter = new LongBloomFilter(IDS, IDS);
+		for (long id = 0; id < IDS; id++) {
+			filter.put(id * 7919);
+		}
+
+		for (long id = 0; id < IDS; id++) {
+			assertThat(filter.mightContain(id * 7919), is(true));
+		}
+	}
+
+	@Test
+	public void hasTheExpectedFalsePositiveRateForOneBytePerId() {
+		LongBloomFilter filter = new LongBloomFilter(IDS, IDS);
+		for (long id = 0; id < IDS; id++) {
+			filter.put(id);
+		}
+
+		int falsePositives = 0;
+		for (long id = IDS; id < 11 * IDS; id++) {
+			if (filter.mightContain(id)) {
+				falsePositives++;
+			}
+		}
+		assertThat(falsePositives, lessThan(IDS * 10 * 3 / 100));
+	}
+
+	@Test
+	public void choosesTheNumberOfHashesByTheExpectedIds() {
+		assertThat(new LongBloomFilter(IDS, IDS).getHashes(), is(6));
+		assertThat(new LongBloomFilter(IDS, 0).getHashes(), is(16));
+		assertThat(new LongBloomFilter(IDS, 1000000).getHashes(), is(1));
+		assertThat(new LongBloomFilter(IDS, IDS).sizeInBytes(), is(IDS));
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Page;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectOperation;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static info.gehrels.flockDBClient.ByteHelper.toLongArray;
+import static info.gehrels.flockDBClient.Direction.OUTGOING;
+import static info.gehrels.flockDBClient.SelectionQuery.simpleSelection;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class MicroBatchingFlockClientTest {
+	private static final long LONG_LINGER = SECONDS.toNanos(10);
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final List<Integer> queriesPerCall = Collections.synchronizedList(new ArrayList<Integer>());
+	private final List<Deadline> deadlinesPerCall = Collections.synchronizedList(new ArrayList<Deadline>());
+
+	public MicroBatchingFlockClientTest() throws TException, FlockException {
+		// Each query selects its source id
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) {
+				@SuppressWarnings("unchecked")
+				List<SelectQuery> queries = (List<SelectQuery>) invocation.getArguments()[0];
+				queriesPerCall.add(queries.size());
+				deadlinesPerCall.add(Deadline.current());
+				List<Results> results = new ArrayList<>();
+				for (SelectQuery query : queries) {
+					results.add(new Results(asByteBuffer(query.getOperations().get(0).getTerm().getSource_id()), 0, -1));
+				}
+				return results;
+			}
+		}).when(backingFlockMock).select2(any(List.class));
+	}
+
+	@After
+	public void shutDownExecutor() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void sendsTheQueriesOfConcurrentCallersAsOneCallOnceTheBatchIsFull() throws Exception {
+		MicroBatchingFlockClient clientUnderTest = new MicroBatchingFlockClient(backingFlockMock, 3, LONG_LINGER);
+
+		List<Future<List<Results>>> results = new ArrayList<>();
+		for (long sourceId = 1; sourceId <= 3; sourceId++) {
+			results.add(select2InBackground(clientUnderTest, sourceId));
+		}
+
+		for (int i = 0; i < results.size(); i++) {
+			List<Results> result = results.get(i).get(1, SECONDS);
+			assertThat(result.size(), is(1));
+			assertThat(toLongArray(result.get(0).getIds()), is(new long[]{i + 1}));
+		}
+		assertThat(queriesPerCall, is(Arrays.asList(3)));
+		assertThat(clientUnderTest.sentCalls(), is(1L));
+	}
+
+	@Test
+	public void sendsAPartialBatchAfterTheLinger() throws Exception {
+		MicroBatchingFlockClient clientUnderTest =
+			new MicroBatchingFlockClient(backingFlockMock, 100, MILLISECONDS.toNanos(5));
+
+		List<Results> result = select2InBackground(clientUnderTest, 7).get(1, SECONDS);
+
+		assertThat(toLongArray(result.get(0).getIds()), is(new long[]{7}));
+		assertThat(queriesPerCall, is(Arrays.asList(1)));
+	}
+
+	@Test
+	public void sendsTheOpenBatchIfTheQueriesOfAnotherCallerDoNotFitIn() throws Exception {
+		MicroBatchingFlockClient clientUnderTest = new MicroBatchingFlockClient(backingFlockMock, 2, LONG_LINGER);
+
+		Future<List<Results>> first = select2InBackground(clientUnderTest, 1);
+		while (clientUnderTest.openSelect2Queries() == 0) {
+			Thread.sleep(1);
+		}
+		List<Results> second = clientUnderTest.select2(Arrays.asList(query(2), query(3)));
+
+		assertThat(toLongArray(first.get(1, SECONDS).get(0).getIds()), is(new long[]{1}));
+		assertThat(toLongArray(second.get(1).getIds()), is(new long[]{3}));
+		assertThat(clientUnderTest.sentQueries(), is(3L));
+	}
+
+	@Test
+	public void handsEachCallerItsSliceOfTheCounts() throws Exception {
+		doAnswer(new Answer<ByteBuffer>() {
+			@Override
+			public ByteBuffer answer(InvocationOnMock invocation) {
+				ByteBuffer counts = ByteBuffer.allocate(12).order(LITTLE_ENDIAN).putInt(10).putInt(20).putInt(30);
+				counts.flip();
+				return counts;
+			}
+		}).when(backingFlockMock).count2(any(List.class));
+		final MicroBatchingFlockClient clientUnderTest = new MicroBatchingFlockClient(backingFlockMock, 3, LONG_LINGER);
+
+		Future<ByteBuffer> first = executor.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				return clientUnderTest.count2(singletonList(countQuery(1)));
+			}
+		});
+		Future<ByteBuffer> second = executor.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				return clientUnderTest.count2(Arrays.asList(countQuery(2), countQuery(3)));
+			}
+		});
+
+		ByteBuffer firstCounts = first.get(1, SECONDS).order(LITTLE_ENDIAN);
+		ByteBuffer secondCounts = second.get(1, SECONDS).order(LITTLE_ENDIAN);
+		assertThat(firstCounts.remaining() + secondCounts.remaining(), is(12));
+		int firstCount = firstCounts.getInt();
+		assertThat(firstCount == 10 || firstCount == 30, is(true));
+		if (firstCount == 10) {
+			assertThat(secondCounts.getInt(), is(20));
+			assertThat(secondCounts.getInt(), is(30));
+		} else {
+			assertThat(secondCounts.getInt(), is(10));
+			assertThat(secondCounts.getInt(), is(20));
+		}
+	}
+
+	@Test
+	public void sendsTheBatchWithinTheLatestDeadlineOfItsCallers() throws Exception {
+		MicroBatchingFlockClient clientUnderTest = new MicroBatchingFlockClient(backingFlockMock, 3, LONG_LINGER);
+
+		Future<List<Results>> first = select2InBackground(clientUnderTest, 1, 60000);
+		while (clientUnderTest.openSelect2Queries() == 0) {
+			Thread.sleep(1);
+		}
+		Future<List<Results>> second = select2InBackground(clientUnderTest, 2, 0);
+		Future<List<Results>> third = select2InBackground(clientUnderTest, 3, 120000);
+
+		assertThat(toLongArray(first.get(1, SECONDS).get(0).getIds()), is(new long[]{1}));
+		assertThat(toLongArray(second.get(1, SECONDS).get(0).getIds()), is(new long[]{2}));
+		assertThat(toLongArray(third.get(1, SECONDS).get(0).getIds()), is(new long[]{3}));
+		assertThat(queriesPerCall, is(Arrays.asList(3)));
+		// The second caller has no deadline at all
+		assertThat(deadlinesPerCall.get(0), is(nullValue()));
+	}
+
+	@Test
+	public void failsAllCallersOfAFailedBatch() throws Exception {
+		doThrow(new FlockException("broken")).when(backingFlockMock).select2(any(List.class));
+		MicroBatchingFlockClient clientUnderTest = new MicroBatchingFlockClient(backingFlockMock, 2, LONG_LINGER);
+
+		for (Future<List<Results>> result : Arrays.asList(select2InBackground(clientUnderTest, 1),
+		                                                  select2InBackground(clientUnderTest, 2))) {
+			try {
+				result.get(1, SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertThat(e.getCause(), is(instanceOf(FlockException.class)));
+			}
+		}
+	}
+
+	private Future<List<Results>> select2InBackground(MicroBatchingFlockClient clientUnderTest, long sourceId) {
+		return select2InBackground(clientUnderTest, sourceId, 0);
+	}
+
+	private Future<List<Results>> select2InBackground(final MicroBatchingFlockClient clientUnderTest,
+	                                                  final long sourceId, final long timeoutInMilliSeconds) {
+		return executor.submit(new Callable<List<Results>>() {
+			@Override
+			public List<Results> call() throws Exception {
+				Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(timeoutInMilliSeconds));
+				try {
+					return clientUnderTest.select2(singletonList(query(sourceId)));
+				} finally {
+					Deadline.restore(previous);
+				}
+			}
+		});
+	}
+
+	private static SelectQuery query(long sourceId) {
+		return new SelectQuery(simpleSelection(sourceId, 2, OUTGOING).getSelectOperations(), new Page(10, -1));
+	}
+
+	private static List<SelectOperation> countQuery(long sourceId) {
+		return simpleSelection(sourceId, 2, OUTGOING).getSelectOperations();
+	}
+}
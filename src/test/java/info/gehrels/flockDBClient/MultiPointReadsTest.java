@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.EdgeQuery;
+import com.twitter.flockdb.thrift.EdgeResults;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.QueryTerm;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static info.gehrels.flockDBClient.ByteHelper.toLongArray;
+import static info.gehrels.flockDBClient.Direction.INCOMING;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MultiPointReadsTest {
+	private static final int GRAPH_ID = 2;
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final Set<List<Long>> existingEdges = new HashSet<>();
+	private final List<Integer> queriesPerCall = new ArrayList<>();
+
+	@Test
+	public void looksUpAllDestinationsOfOneSourceWithOneQuery() throws TException, FlockException {
+		answerFromExistingEdges();
+		addEdge(1, 3);
+		addEdge(1, 5);
+
+		boolean[] result = new FlockDB(backingFlockMock).containsAll(1, GRAPH_ID, 3, 4, 5);
+
+		assertThat(result, is(new boolean[]{true, false, true}));
+		assertThat(queriesPerCall, is(singleCall(1)));
+	}
+
+	@Test
+	public void groupsLookupsOfSeveralSourcesIntoOneCall() throws TException, FlockException {
+		answerFromExistingEdges();
+		addEdge(2, 3);
+		addEdge(1, 4);
+
+		boolean[] result =
+			new FlockDB(backingFlockMock).containsAll(new long[]{1, 2, 1}, GRAPH_ID, new long[]{3, 3, 4});
+
+		assertThat(result, is(new boolean[]{false, true, true}));
+		assertThat(queriesPerCall, is(singleCall(2)));
+	}
+
+	@Test
+	public void splitsLargeLookupsIntoSeveralCalls() throws TException, FlockException {
+		answerFromExistingEdges();
+		long[] destinationIds = new long[2 * MultiPointReads.MAX_IDS_PER_CALL + 1];
+		for (int i = 0; i < destinationIds.length; i++) {
+			destinationIds[i] = i;
+		}
+		addEdge(1, destinationIds.length - 1);
+
+		boolean[] result = new FlockDB(backingFlockMock).containsAll(1, GRAPH_ID, destinationIds);
+
+		assertThat(queriesPerCall.size(), is(3));
+		assertThat(result[destinationIds.length - 1], is(true));
+		assertThat(result[0], is(false));
+	}
+
+	@Test
+	public void doesNotCallFlockDBWithoutDestinationIds() throws TException, FlockException {
+		boolean[] result = new FlockDB(backingFlockMock).containsAll(1, GRAPH_ID);
+
+		assertThat(result.length, is(0));
+		verify(backingFlockMock, never()).select2(any(List.class));
+	}
+
+	@Test
+	public void getsAllEdgesWithOneCallAlignedToTheDestinationIds() throws TException, FlockException {
+		answerSelectEdgesFromExistingEdges();
+		addEdge(1, 3);
+		addEdge(1, 5);
+
+		Edge[] result = new FlockDB(backingFlockMock).getAll(1, GRAPH_ID, 5, 4, 3);
+
+		assertThat(result[0].getDestination_id(), is(5L));
+		assertThat(result[1], is(nullValue()));
+		assertThat(result[2].getDestination_id(), is(3L));
+		assertThat(queriesPerCall, is(singleCall(1)));
+	}
+
+	@Test
+	public void getsMetadataOneAfterTheOtherWithoutAsyncConnections() throws TException, FlockException {
+		when(backingFlockMock.get_metadata(1, GRAPH_ID)).thenReturn(new Metadata(1, 0, 10, 0));
+		when(backingFlockMock.get_metadata(2, GRAPH_ID)).thenReturn(new Metadata(2, 0, 20, 0));
+
+		Metadata[] result = new FlockDB(backingFlockMock).getMetadataAll(GRAPH_ID, 2, 1);
+
+		assertThat(result[0].getCount(), is(20));
+		assertThat(result[1].getCount(), is(10));
+	}
+
+	@Test
+	public void sendsAllMetadataLookupsAtOnceWithAsyncConnections() {
+		AsyncFlockClient asyncFlockClientMock = mock(AsyncFlockClient.class);
+		when(asyncFlockClientMock.getMetadata(1, GRAPH_ID)).thenReturn(immediateFuture(new Metadata(1, 0, 10, 0)));
+		when(asyncFlockClientMock.getMetadata(2, GRAPH_ID)).thenReturn(immediateFuture(new Metadata(2, 0, 20, 0)));
+
+		Metadata[] result = new FlockDB(backingFlockMock, asyncFlockClientMock, Collections.<Closeable>emptyList())
+			.getMetadataAll(GRAPH_ID, 1, 2);
+
+		assertThat(result[0].getCount(), is(10));
+		assertThat(result[1].getCount(), is(20));
+		verify(asyncFlockClientMock, times(2)).getMetadata(any(Long.class), any(Integer.class));
+	}
+
+	@Test
+	public void countsTheEdgesOfAllNodesWithOneCall() throws TException, FlockException {
+		ByteBuffer counts = ByteBuffer.allocate(8).order(LITTLE_ENDIAN).putInt(7).putInt(0);
+		counts.flip();
+		when(backingFlockMock.count2(any(List.class))).thenReturn(counts);
+
+		int[] result = new FlockDB(backingFlockMock).countAll(GRAPH_ID, INCOMING, 1, 2);
+
+		assertThat(result, is(new int[]{7, 0}));
+		verify(backingFlockMock, times(1)).count2(any(List.class));
+	}
+
+	private void addEdge(long sourceId, long destinationId) {
+		existingEdges.add(edge(sourceId, destinationId));
+	}
+
+	private static List<Long> edge(long sourceId, long destinationId) {
+		List<Long> edge = new ArrayList<>();
+		edge.add(sourceId);
+		edge.add(destinationId);
+		return edge;
+	}
+
+	private static List<Integer> singleCall(int queries) {
+		List<Integer> calls = new ArrayList<>();
+		calls.add(queries);
+		return calls;
+	}
+
+	private void answerSelectEdgesFromExistingEdges() throws TException, FlockException {
+		doAnswer(new Answer<List<EdgeResults>>() {
+			@Override
+			public List<EdgeResults> answer(InvocationOnMock invocation) {
+				@SuppressWarnings("unchecked")
+				List<EdgeQuery> queries = (List<EdgeQuery>) invocation.getArguments()[0];
+				queriesPerCall.add(queries.size());
+				List<EdgeResults> results = new ArrayList<>();
+				for (EdgeQuery query : queries) {
+					QueryTerm term = query.getTerm();
+					List<Edge> edges = new ArrayList<>();
+					for (long destinationId : toLongArray(term.getDestination_ids())) {
+						if (term.getGraph_id() == GRAPH_ID && existingEdges.contains(edge(term.getSource_id(), destinationId))) {
+							edges.add(new Edge(term.getSource_id(), destinationId, 0, 0, 1, 0));
+						}
+					}
+					results.add(new EdgeResults(edges, 0, -1));
+				}
+				return results;
+			}
+		}).when(backingFlockMock).select_edges(any(List.class));
+	}
+
+	private void answerFromExistingEdges() throws TException, FlockException {
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) {
+				@SuppressWarnings("unchecked")
+				List<SelectQuery> queries = (List<SelectQuery>) invocation.getArguments()[0];
+				queriesPerCall.add(queries.size());
+				List<Results> results = new ArrayList<>();
+				for (SelectQuery query : queries) {
+					QueryTerm term = query.getOperations().get(0).getTerm();
+					List<Long> existingIds = new ArrayList<>();
+					for (long destinationId : toLongArray(term.getDestination_ids())) {
+						if (term.getGraph_id() == GRAPH_ID && existingEdges.contains(edge(term.getSource_id(), destinationId))) {
+							existingIds.add(destinationId);
+						}
+					}
+					long[] ids = new long[existingIds.size()];
+					for (int i = 0; i < ids.length; i++) {
+						ids[i] = existingIds.get(i);
+					}
+					results.add(new Results(ByteHelper.asByteBuffer(ids), 0, -1));
+				}
+				return results;
+			}
+		}).when(backingFlockMock).select2(any(List.class));
+	}
+}
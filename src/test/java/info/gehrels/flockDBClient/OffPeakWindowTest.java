@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class OffPeakWindowTest {
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	@Test
+	public void startsNextWindowLaterTheSameDay() throws ParseException {
+		OffPeakWindow window = OffPeakWindow.daily(1, 5, UTC);
+
+		assertThat(window.nextStart(date("2012-06-01 00:30")), is(date("2012-06-01 01:00")));
+		assertThat(window.nextEnd(date("2012-06-01 00:30")), is(date("2012-06-01 05:00")));
+	}
+
+	@Test
+	public void startsNextWindowTheNextDayAfterTheWindowEnded() throws ParseException {
+		OffPeakWindow window = OffPeakWindow.daily(1, 5, UTC);
+
+		assertThat(window.nextStart(date("2012-06-01 05:00")), is(date("2012-06-02 01:00")));
+		assertThat(window.nextEnd(date("2012-06-01 05:00")), is(date("2012-06-02 05:00")));
+	}
+
+	@Test
+	public void startsNowWithinAWindow() throws ParseException {
+		OffPeakWindow window = OffPeakWindow.daily(1, 5, UTC);
+
+		assertThat(window.nextStart(date("2012-06-01 03:15")), is(date("2012-06-01 03:15")));
+		assertThat(window.nextEnd(date("2012-06-01 03:15")), is(date("2012-06-01 05:00")));
+	}
+
+	@Test
+	public void handlesWindowsSpanningMidnight() throws ParseException {
+		OffPeakWindow window = OffPeakWindow.daily(22, 4, UTC);
+
+		assertThat(window.nextStart(date("2012-06-01 12:00")), is(date("2012-06-01 22:00")));
+		assertThat(window.nextEnd(date("2012-06-01 12:00")), is(date("2012-06-02 04:00")));
+		assertThat(window.nextStart(date("2012-06-01 23:00")), is(date("2012-06-01 23:00")));
+		assertThat(window.nextEnd(date("2012-06-01 23:00")), is(date("2012-06-02 04:00")));
+		assertThat(window.nextEnd(date("2012-06-02 02:00")), is(date("2012-06-02 04:00")));
+	}
+
+	private static Date date(String date) throws ParseException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		format.setTimeZone(UTC);
+		return format.parse(date);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.QueryTerm;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Add;
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Archive;
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Remove;
+import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static info.gehrels.flockDBClient.ExecutionMatchers.anOperation;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withDestinationIds;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withForward;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withPosition;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withSourceId;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withType;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withoutDestinationIds;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class OperationMergerTest {
+	@Test
+	public void mergesOperationsOnTheSameTerm() {
+		List<ExecuteOperation> merged = OperationMerger.merge(Arrays.asList(
+			operation(Add, 1, true, 10L, 3),
+			operation(Add, 2, true, 10L, 4),
+			operation(Add, 1, true, 10L, 5, 6)
+		));
+
+		assertThat(merged, contains(
+			anOperation(withType(Add), withSourceId(1), withPosition(10), withDestinationIds(3, 5, 6)),
+			anOperation(withType(Add), withSourceId(2), withPosition(10), withDestinationIds(4))
+		));
+	}
+
+	@Test
+	public void doesNotMergeOperationsWithDifferentPositions() {
+		List<ExecuteOperation> merged = OperationMerger.merge(Arrays.asList(
+			operation(Add, 1, true, 10L, 3),
+			operation(Add, 1, true, 11L, 4)
+		));
+
+		assertThat(merged, contains(
+			anOperation(withPosition(10), withDestinationIds(3)),
+			anOperation(withPosition(11), withDestinationIds(4))
+		));
+	}
+
+	@Test
+	public void dropsOperationsOnEdgesRemovedLater() {
+		List<ExecuteOperation> merged = OperationMerger.merge(Arrays.asList(
+			operation(Add, 1, true, 10L, 3, 4),
+			operation(Archive, 5, true, null, 6),
+			// removes the edge 1 -> 4 from its incoming side
+			operation(Remove, 4, false, null, 1),
+			operation(Remove, 6, false, null, 5),
+			operation(Remove, 4, false, null, 7)
+		));
+
+		assertThat(merged, contains(
+			anOperation(withType(Add), withSourceId(1), withDestinationIds(3)),
+			anOperation(withType(Remove), withSourceId(4), withForward(false), withDestinationIds(1, 7)),
+			anOperation(withType(Remove), withSourceId(6), withForward(false), withDestinationIds(5))
+		));
+	}
+
+	@Test
+	public void keepsLaterArchiveAndAddSeparateFromEarlierOperationsOnTheSameEdge() {
+		List<ExecuteOperation> merged = OperationMerger.merge(Arrays.asList(
+			operation(Add, 1, true, 10L, 3),
+			operation(Archive, 1, true, null, 3),
+			operation(Add, 1, true, 10L, 3, 4)
+		));
+
+		assertThat(merged, contains(
+			anOperation(withType(Add), withDestinationIds(3)),
+			anOperation(withType(Archive), withDestinationIds(3)),
+			anOperation(withType(Add), withDestinationIds(3, 4))
+		));
+	}
+
+	@Test
+	public void neitherMergesNorDropsAcrossOperationsOnAllEdges() {
+		List<ExecuteOperation> merged = OperationMerger.merge(Arrays.asList(
+			operation(Add, 1, true, 10L, 3),
+			operation(Archive, 1, true, null),
+			operation(Add, 1, true, 10L, 4)
+		));
+
+		assertThat(merged, contains(
+			anOperation(withType(Add), withDestinationIds(3)),
+			anOperation(withType(Archive), withoutDestinationIds()),
+			anOperation(withType(Add), withDestinationIds(4))
+		));
+	}
+
+	private static ExecuteOperation operation(ExecuteOperationType type, long sourceId, boolean forward, Long position,
+	                                          long... destinationIds) {
+		ExecuteOperation operation = new ExecuteOperation(
+			type, new QueryTerm(sourceId, 2, forward).setDestination_ids(asByteBufferOrNull(destinationIds)));
+		if (position != null) {
+			operation.setPosition(position);
+		}
+		return operation;
+	}
+}
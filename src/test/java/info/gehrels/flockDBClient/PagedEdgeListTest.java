@@ -155,5 +155,17 @@ public class PagedEdgeListTest {
 		           ));
 	}
 
+	@Test
+	public void iteratesOverTheEdgesOfAllFollowingPages() throws FlockException, TException {
+		Edge first = new Edge(1, 2, 3, 4, 0, 0);
+		Edge second = new Edge(1, 5, 6, 7, 0, 0);
+		doReturn(singletonList(new EdgeResults(singletonList(second), 0, 11)))
+			.when(backingFlockClient).select_edges(any(List.class));
+		PagedEdgeList list =
+			new PagedEdgeList(backingFlockClient, edgeQuery, new EdgeResults(singletonList(first), 11, -1));
+
+		assertThat(list.allEdges(1), contains(sameInstance(first), sameInstance(second)));
+	}
+
 
 }
@@ -23,27 +23,40 @@ import com.twitter.flockdb.thrift.Page;
 import com.twitter.flockdb.thrift.Results;
 import com.twitter.flockdb.thrift.SelectQuery;
 import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
 
 import static com.twitter.flockdb.thrift.SelectOperationType.SimpleQuery;
 import static info.gehrels.flockDBClient.Direction.OUTGOING;
+import static info.gehrels.flockDBClient.PrimitiveMatchers.isLongArray;
 import static info.gehrels.flockDBClient.SelectMatchers.aSelectOperation;
 import static info.gehrels.flockDBClient.SelectMatchers.aSelectQuery;
 import static info.gehrels.flockDBClient.SelectMatchers.withOperations;
 import static info.gehrels.flockDBClient.SelectMatchers.withType;
 import static info.gehrels.flockDBClient.SelectionQuery.simpleSelection;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.Collections.singletonList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.emptyIterable;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 public class PagedNodeIdListTest {
@@ -87,6 +100,58 @@ public class PagedNodeIdListTest {
 		assertThat(list, contains(is(4L), is(9L), is(2L)));
 	}
 
+	@Test
+	public void offersIdsWithoutBoxing() {
+		Results results = new Results(ByteHelper.asByteBuffer(4, 9, 2), 0, -1);
+		PagedNodeIdList list = new PagedNodeIdList(backingFlockClient, selectQuery, results);
+
+		assertThat(list.size(), is(3));
+		assertThat(list.get(1), is(9L));
+		assertThat(list.toLongArray(), isLongArray(4, 9, 2));
+
+		LongIterator iterator = list.longIterator();
+		long sum = 0;
+		while (iterator.hasNext()) {
+			sum += iterator.nextLong();
+		}
+		assertThat(sum, is(15L));
+
+		final long[] product = {1};
+		list.forEachId(new LongConsumer() {
+			@Override
+			public void accept(long value) {
+				product[0] *= value;
+			}
+		});
+		assertThat(product[0], is(72L));
+	}
+
+	@Test
+	public void readsIdsFromTheReceivedBytesUntilTheyAreDecoded() {
+		ByteBuffer receivedBytes = ByteHelper.asByteBuffer(4, 9, 2);
+		PagedNodeIdList list = new PagedNodeIdList(backingFlockClient, selectQuery, new Results(receivedBytes, 0, -1));
+
+		receivedBytes.putLong(8, 7);
+		assertThat(list.get(1), is(7L));
+		assertThat(list.asLongBuffer().get(1), is(7L));
+
+		assertThat(list.toLongArray(), isLongArray(4, 7, 2));
+		receivedBytes.putLong(8, 5);
+		assertThat(list.get(1), is(7L));
+		assertThat(list, contains(4L, 7L, 2L));
+	}
+
+	@Test
+	public void copiesIdsIntoGivenArray() {
+		Results results = new Results(ByteHelper.asByteBuffer(4, 9, 2), 0, -1);
+		PagedNodeIdList list = new PagedNodeIdList(backingFlockClient, selectQuery, results);
+		long[] target = new long[5];
+
+		assertThat(list.copyInto(target, 1), is(3));
+
+		assertThat(target, isLongArray(0, 4, 9, 2, 0));
+	}
+
 	@Test
 	public void hasNextPageForNonZeroAsNextCursor() {
 		Results results = new Results(ByteHelper.asByteBuffer(), 2, -1);
@@ -164,5 +229,71 @@ public class PagedNodeIdListTest {
 		           ));
 	}
 
+	@Test
+	public void failsNextPageFetchWithoutCallingTheServerOnceTheDeadlineExpired()
+		throws IOException, FlockException, TException, InterruptedException {
+		Results stubResults = new Results(ByteHelper.asByteBuffer(1, 2), 11, -1);
+		PagedNodeIdList list =
+			new PagedNodeIdList(backingFlockClient, selectQuery, stubResults, Deadline.afterMilliSeconds(1));
+		MILLISECONDS.sleep(5);
+
+		try {
+			list.getNextPage();
+			fail();
+		} catch (FlockDBException e) {
+			assertThat(e.getCause() instanceof TTransportException, is(true));
+		}
+		verify(backingFlockClient, never()).select2(any(List.class));
+	}
+
+	@Test
+	public void iteratesOverTheIdsOfAllFollowingPages() throws FlockException, TException {
+		stubPages();
+		PagedNodeIdList list =
+			new PagedNodeIdList(backingFlockClient, selectQuery, new Results(ByteHelper.asByteBuffer(1, 2), 11, -1));
 
+		assertThat(list.allIds(2), contains(1L, 2L, 3L, 4L, 5L));
+	}
+
+	@Test
+	public void prefetchesTheNextPageWhileTheCurrentOneIsProcessed() throws FlockException, TException {
+		stubPages();
+		PagedNodeIdList list =
+			new PagedNodeIdList(backingFlockClient, selectQuery, new Results(ByteHelper.asByteBuffer(1, 2), 11, -1));
+		Iterator<PagedNodeIdList> pages = list.allPages(1).iterator();
+
+		assertThat(pages.next(), is(sameInstance(list)));
+
+		verify(backingFlockClient, timeout(1000)).select2(any(List.class));
+		assertThat(pages.next(), contains(3L, 4L));
+	}
+
+	@Test
+	public void throwsFailedPrefetchWhenThePageIsRequested() throws FlockException, TException {
+		doThrow(new FlockException("error")).when(backingFlockClient).select2(any(List.class));
+		PagedNodeIdList list =
+			new PagedNodeIdList(backingFlockClient, selectQuery, new Results(ByteHelper.asByteBuffer(1, 2), 11, -1));
+		Iterator<PagedNodeIdList> pages = list.allPages(1).iterator();
+		pages.next();
+
+		assertThat(pages.hasNext(), is(true));
+		try {
+			pages.next();
+			fail();
+		} catch (FlockDBException e) {
+			assertThat(e.getCause() instanceof FlockException, is(true));
+		}
+	}
+
+	private void stubPages() throws FlockException, TException {
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) {
+				SelectQuery query = (SelectQuery) ((List<?>) invocation.getArguments()[0]).get(0);
+				return singletonList(query.getPage().getCursor() == 11
+					                     ? new Results(ByteHelper.asByteBuffer(3, 4), 12, 11)
+					                     : new Results(ByteHelper.asByteBuffer(5), 0, 12));
+			}
+		}).when(backingFlockClient).select2(any(List.class));
+	}
 }
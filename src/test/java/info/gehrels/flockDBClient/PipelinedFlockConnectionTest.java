@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockDB.Processor;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.SelectOperation;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PipelinedFlockConnectionTest {
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private FakeServer server;
+	private PipelinedFlockConnection connection;
+
+	@After
+	public void tearDown() throws IOException {
+		connection.close();
+		server.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void sendsCallsWithoutWaitingAndMatchesResponsesBySequenceId() throws Exception {
+		connect(3, SECONDS.toNanos(5));
+		when(backingFlockMock.contains(1, 2, 3)).thenReturn(true);
+		when(backingFlockMock.contains(4, 5, 6)).thenReturn(false);
+		when(backingFlockMock.count(Collections.<SelectOperation>emptyList())).thenReturn(7);
+
+		Future<Boolean> first = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return connection.contains(1, 2, 3);
+			}
+		});
+		Future<Boolean> second = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return connection.contains(4, 5, 6);
+			}
+		});
+		Future<Integer> third = executor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return connection.count(Collections.<SelectOperation>emptyList());
+			}
+		});
+
+		assertThat(first.get(5, SECONDS), is(true));
+		assertThat(second.get(5, SECONDS), is(false));
+		assertThat(third.get(5, SECONDS), is(7));
+		assertThat(connection.getPendingCalls(), is(0));
+	}
+
+	@Test
+	public void propagatesFlockExceptionWithoutClosingTheConnection() throws Exception {
+		connect(1, SECONDS.toNanos(5));
+		when(backingFlockMock.contains(1, 2, 3)).thenThrow(new FlockException("error"));
+
+		try {
+			connection.contains(1, 2, 3);
+			fail();
+		} catch (FlockException e) {
+			assertThat(e.getDescription(), is("error"));
+		}
+		assertThat(connection.isOpen(), is(true));
+	}
+
+	@Test
+	public void timesOutCallWithoutClosingTheConnection() throws Exception {
+		connect(2, MILLISECONDS.toNanos(100));
+
+		try {
+			connection.contains(1, 2, 3);
+			fail();
+		} catch (TTransportException e) {
+			assertThat(e.getType(), is(TTransportException.TIMED_OUT));
+		}
+		assertThat(connection.isOpen(), is(true));
+		assertThat(connection.getPendingCalls(), is(0));
+	}
+
+	@Test
+	public void failsPendingCallsWhenTheConnectionBreaks() throws Exception {
+		connect(2, SECONDS.toNanos(5));
+		Future<Boolean> call = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return connection.contains(1, 2, 3);
+			}
+		});
+		server.awaitRequest();
+
+		server.close();
+
+		try {
+			call.get(5, SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertThat(e.getCause() instanceof TTransportException, is(true));
+		}
+		assertThat(connection.isOpen(), is(false));
+	}
+
+	private void connect(int requestsPerBatch, long callTimeoutNanos) throws IOException, TTransportException {
+		server = new FakeServer(new Processor<>(backingFlockMock), requestsPerBatch);
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		connection = new PipelinedFlockConnection(new TSocket(socket), 16, callTimeoutNanos);
+	}
+
+	/**
+	 * Waits for {@code requestsPerBatch} requests, before it answers all of them in reverse order. Requests of an
+	 * incomplete batch are never answered.
+	 */
+	private static final class FakeServer implements Runnable {
+		private final Processor<Iface> processor;
+		private final int requestsPerBatch;
+		private final ServerSocket serverSocket;
+		private final Object lock = new Object();
+		private volatile Socket socket;
+		private int receivedRequests;
+
+		FakeServer(Processor<Iface> processor, int requestsPerBatch) throws IOException {
+			this.processor = processor;
+			this.requestsPerBatch = requestsPerBatch;
+			this.serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			Thread thread = new Thread(this, "fake FlockDB server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		void awaitRequest() throws InterruptedException {
+			synchronized (lock) {
+				while (receivedRequests == 0) {
+					lock.wait();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket = serverSocket.accept();
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				List<byte[]> responses = new ArrayList<>();
+				while (true) {
+					byte[] request = new byte[in.readInt()];
+					in.readFully(request);
+					synchronized (lock) {
+						receivedRequests++;
+						lock.notifyAll();
+					}
+
+					responses.add(process(request));
+					if (responses.size() == requestsPerBatch) {
+						Collections.reverse(responses);
+						for (byte[] response : responses) {
+							out.write(response);
+						}
+						out.flush();
+						responses.clear();
+					}
+				}
+			} catch (IOException | TException e) {
+				// the test is over
+			}
+		}
+
+		private byte[] process(byte[] request) throws TException {
+			TMemoryBuffer response = new TMemoryBuffer(64);
+			processor.process(new TBinaryProtocol(new TMemoryInputTransport(request)), new TBinaryProtocol(response));
+			byte[] frame = new byte[4 + response.length()];
+			TFramedTransport.encodeFrameSize(response.length(), frame);
+			System.arraycopy(response.getArray(), 0, frame, 4, response.length());
+			return frame;
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			if (socket != null) {
+				socket.close();
+			}
+		}
+	}
+}
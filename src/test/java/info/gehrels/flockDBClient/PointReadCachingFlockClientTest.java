@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.base.Ticker;
+import com.twitter.flockdb.thrift.Edge;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Metadata;
+import com.twitter.flockdb.thrift.Priority;
+import com.twitter.flockdb.thrift.QueryTerm;
+import org.apache.thrift.TException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PointReadCachingFlockClientTest {
+	private static final int GRAPH_ID = 2;
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final FakeTicker ticker = new FakeTicker();
+	private final PointReadCacheStatistics statistics = new PointReadCacheStatistics();
+
+	@Test
+	public void cachesPositiveAndNegativeContainsResults() throws TException, FlockException {
+		when(backingFlockMock.contains(1, GRAPH_ID, 3)).thenReturn(true);
+		when(backingFlockMock.contains(1, GRAPH_ID, 4)).thenReturn(false);
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+
+		for (int i = 0; i < 2; i++) {
+			assertThat(clientUnderTest.contains(1, GRAPH_ID, 3), is(true));
+			assertThat(clientUnderTest.contains(1, GRAPH_ID, 4), is(false));
+		}
+
+		verify(backingFlockMock, times(1)).contains(1, GRAPH_ID, 3);
+		verify(backingFlockMock, times(1)).contains(1, GRAPH_ID, 4);
+		assertThat(statistics.getHits(), is(2L));
+		assertThat(statistics.getNegativeHits(), is(1L));
+		assertThat(statistics.getMisses(), is(2L));
+	}
+
+	@Test
+	public void negativeResultsExpireAfterTheirOwnTimeToLive() throws TException, FlockException {
+		when(backingFlockMock.contains(1, GRAPH_ID, 3)).thenReturn(true);
+		when(backingFlockMock.contains(1, GRAPH_ID, 4)).thenReturn(false);
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+		clientUnderTest.contains(1, GRAPH_ID, 4);
+
+		ticker.advance(SECONDS.toNanos(2));
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 4), is(false));
+
+		verify(backingFlockMock, times(1)).contains(1, GRAPH_ID, 3);
+		verify(backingFlockMock, times(2)).contains(1, GRAPH_ID, 4);
+	}
+
+	@Test
+	public void doesNotCacheMissingEdges() throws TException, FlockException {
+		when(backingFlockMock.get(1, GRAPH_ID, 4)).thenThrow(new FlockException("Edge not found"));
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				clientUnderTest.get(1, GRAPH_ID, 4);
+				fail();
+			} catch (FlockException e) {
+				// expected
+			}
+		}
+
+		verify(backingFlockMock, times(2)).get(1, GRAPH_ID, 4);
+		assertThat(statistics.getHits(), is(0L));
+	}
+
+	@Test
+	public void handsOutCopiesOfCachedEdges() throws TException, FlockException {
+		when(backingFlockMock.get(1, GRAPH_ID, 3)).thenReturn(new Edge(1, 3, 7, 0, 1, 0));
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+
+		clientUnderTest.get(1, GRAPH_ID, 3).setPosition(99);
+		clientUnderTest.get(1, GRAPH_ID, 3).setPosition(99);
+
+		assertThat(clientUnderTest.get(1, GRAPH_ID, 3).getPosition(), is(7L));
+	}
+
+	@Test
+	public void executionsInvalidateTheWrittenEdgesAndTheMetadataOfTheirNodes() throws TException, FlockException {
+		when(backingFlockMock.get_metadata(3, GRAPH_ID)).thenReturn(new Metadata(3, 0, 1, 0));
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+		clientUnderTest.contains(1, GRAPH_ID, 4);
+		clientUnderTest.get_metadata(3, GRAPH_ID);
+
+		// Adds the edge 1->3 from the perspective of node 3
+		clientUnderTest.execute(execution(new QueryTerm(3, GRAPH_ID, false).setDestination_ids(asByteBuffer(1))));
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+		clientUnderTest.contains(1, GRAPH_ID, 4);
+		clientUnderTest.get_metadata(3, GRAPH_ID);
+
+		verify(backingFlockMock, times(2)).contains(1, GRAPH_ID, 3);
+		verify(backingFlockMock, times(1)).contains(1, GRAPH_ID, 4);
+		verify(backingFlockMock, times(2)).get_metadata(3, GRAPH_ID);
+		assertThat(statistics.getInvalidations(), is(2L));
+	}
+
+	@Test
+	public void asynchronousExecutionsInvalidateTheWrittenEdges() throws TException, FlockException {
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+
+		clientUnderTest.executed(execution(new QueryTerm(1, GRAPH_ID, true).setDestination_ids(asByteBuffer(3))));
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+
+		verify(backingFlockMock, times(2)).contains(1, GRAPH_ID, 3);
+	}
+
+	@Test
+	public void executionsOnAllEdgesOfANodeInvalidateTheirWholeGraph() throws TException, FlockException {
+		PointReadCachingFlockClient clientUnderTest = newClient(1024);
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+		clientUnderTest.contains(1, GRAPH_ID + 1, 3);
+
+		clientUnderTest.execute(execution(new QueryTerm(5, GRAPH_ID, true)));
+		clientUnderTest.contains(1, GRAPH_ID, 3);
+		clientUnderTest.contains(1, GRAPH_ID + 1, 3);
+
+		verify(backingFlockMock, times(2)).contains(1, GRAPH_ID, 3);
+		verify(backingFlockMock, times(1)).contains(1, GRAPH_ID + 1, 3);
+	}
+
+	@Test
+	public void evictsTheEntryExpiringFirstFromAFullSet() throws TException, FlockException {
+		PointReadCachingFlockClient clientUnderTest = newClient(PointReadCachingFlockClient.WAYS);
+		for (int i = 0; i <= PointReadCachingFlockClient.WAYS; i++) {
+			clientUnderTest.contains(1, GRAPH_ID, i);
+			ticker.advance(1);
+		}
+
+		clientUnderTest.contains(1, GRAPH_ID, 1);
+		clientUnderTest.contains(1, GRAPH_ID, 0);
+
+		verify(backingFlockMock, times(1)).contains(1, GRAPH_ID, 1);
+		verify(backingFlockMock, times(2)).contains(1, GRAPH_ID, 0);
+		assertThat(statistics.getEvictions(), is(2L));
+	}
+
+	@Test
+	public void doesNotCacheLookupsRacingWithAWrite() throws TException, FlockException {
+		final PointReadCachingFlockClient clientUnderTest = newClient(1024);
+		doAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws TException, FlockException {
+				clientUnderTest.execute(execution(new QueryTerm(1, GRAPH_ID, true).setDestination_ids(asByteBuffer(3))));
+				return false;
+			}
+		}).doReturn(true).when(backingFlockMock).contains(1, GRAPH_ID, 3);
+
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 3), is(false));
+		assertThat(clientUnderTest.contains(1, GRAPH_ID, 3), is(true));
+	}
+
+	private PointReadCachingFlockClient newClient(int maxEntries) {
+		return new PointReadCachingFlockClient(backingFlockMock, maxEntries, SECONDS.toNanos(60), SECONDS.toNanos(1),
+		                                       ticker, statistics);
+	}
+
+	private static ExecuteOperations execution(QueryTerm term) {
+		return new ExecuteOperations(singletonList(new ExecuteOperation(ExecuteOperationType.Add, term)),
+		                             Priority.High);
+	}
+
+	private static final class FakeTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		void advance(long nanos) {
+			this.nanos += nanos;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PooledFlockClientTest {
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final TTransport transport = mock(TTransport.class);
+	private final ConnectionPool pool;
+	private final PooledFlockClient clientUnderTest;
+
+	public PooledFlockClientTest() throws TTransportException {
+		when(transport.isOpen()).thenReturn(true);
+		pool = new ConnectionPool(new ConnectionFactory() {
+			@Override
+			public FlockConnection openConnection() {
+				return new FlockConnection(backingFlockMock, transport);
+			}
+		}, 1, 1, SECONDS.toNanos(1), SECONDS.toNanos(60), true);
+		clientUnderTest = new PooledFlockClient(pool);
+	}
+
+	@Test
+	public void delegatesToPooledConnectionAndReleasesIt() throws TException, FlockException {
+		when(backingFlockMock.contains(1, 2, 3)).thenReturn(true);
+
+		assertThat(clientUnderTest.contains(1, 2, 3), is(true));
+		assertThat(pool.getIdleConnections(), is(1));
+	}
+
+	@Test
+	public void releasesConnectionAfterFlockException() throws TException, FlockException {
+		when(backingFlockMock.contains_metadata(1, 2)).thenThrow(new FlockException("arbitrary"));
+
+		try {
+			clientUnderTest.contains_metadata(1, 2);
+		} catch (FlockException expected) {
+		}
+
+		assertThat(pool.getIdleConnections(), is(1));
+		verify(transport, never()).close();
+	}
+
+	@Test
+	public void invalidatesConnectionAfterThriftException() throws TException, FlockException {
+		when(backingFlockMock.get_metadata(1, 2)).thenThrow(new TTransportException());
+
+		try {
+			clientUnderTest.get_metadata(1, 2);
+		} catch (TTransportException expected) {
+		}
+
+		assertThat(pool.getOpenConnections(), is(0));
+		verify(transport).close();
+	}
+}
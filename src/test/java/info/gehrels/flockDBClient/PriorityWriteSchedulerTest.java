@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Priority;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.twitter.flockdb.thrift.Priority.High;
+import static com.twitter.flockdb.thrift.Priority.Low;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class PriorityWriteSchedulerTest {
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<Priority, Integer> weights = new EnumMap<>(Priority.class);
+	private final Map<Priority, RateLimiter> rateLimiters = new EnumMap<>(Priority.class);
+	private final List<Priority> executedPriorities = Collections.synchronizedList(new ArrayList<Priority>());
+	private final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+	private final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+
+	public PriorityWriteSchedulerTest() throws TException, FlockException {
+		weights.put(High, 16);
+		weights.put(Low, 1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws InterruptedException {
+				if (firstWriteStarted.getCount() > 0) {
+					firstWriteStarted.countDown();
+					releaseFirstWrite.await();
+				}
+				executedPriorities.add(((ExecuteOperations) invocation.getArguments()[0]).getPriority());
+				return null;
+			}
+		}).when(backingFlockMock).execute(any(ExecuteOperations.class));
+	}
+
+	@After
+	public void shutDownExecutor() {
+		releaseFirstWrite.countDown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void passesReadsThrough() throws TException, FlockException {
+		PriorityWriteScheduler clientUnderTest = new PriorityWriteScheduler(backingFlockMock, 1, weights, rateLimiters);
+
+		clientUnderTest.contains(1, 2, 3);
+
+		verify(backingFlockMock).contains(1, 2, 3);
+	}
+
+	@Test
+	public void servesQueuedHighPriorityWritesFirst() throws Exception {
+		PriorityWriteScheduler clientUnderTest = new PriorityWriteScheduler(backingFlockMock, 1, weights, rateLimiters);
+		List<Future<Void>> writes = new ArrayList<>();
+		writes.add(write(clientUnderTest, Low));
+		firstWriteStarted.await(5, SECONDS);
+
+		for (int i = 0; i < 3; i++) {
+			writes.add(write(clientUnderTest, Low));
+			awaitQueued(clientUnderTest, Low, i + 1);
+		}
+		writes.add(write(clientUnderTest, High));
+		awaitQueued(clientUnderTest, High, 1);
+		releaseFirstWrite.countDown();
+		for (Future<Void> write : writes) {
+			write.get(5, SECONDS);
+		}
+
+		assertThat(executedPriorities, contains(Low, High, Low, Low, Low));
+	}
+
+	@Test
+	public void limitsTheRateOfAPriority() throws Exception {
+		releaseFirstWrite.countDown();
+		rateLimiters.put(Low, RateLimiter.create(20));
+		PriorityWriteScheduler clientUnderTest = new PriorityWriteScheduler(backingFlockMock, 1, weights, rateLimiters);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			clientUnderTest.execute(operations(Low));
+		}
+
+		assertThat(System.nanoTime() - start, greaterThanOrEqualTo(MILLISECONDS.toNanos(150)));
+	}
+
+	@Test
+	public void givesUpWaitingForASlotAtTheDeadline() throws Exception {
+		PriorityWriteScheduler clientUnderTest = new PriorityWriteScheduler(backingFlockMock, 1, weights, rateLimiters);
+		write(clientUnderTest, Low);
+		firstWriteStarted.await(5, SECONDS);
+
+		Deadline previous = Deadline.enter(Deadline.afterMilliSeconds(20));
+		try {
+			clientUnderTest.execute(operations(High));
+			fail();
+		} catch (TTransportException e) {
+			assertThat(e.getType(), is(TTransportException.TIMED_OUT));
+		} finally {
+			Deadline.restore(previous);
+		}
+		assertThat(clientUnderTest.getQueuedWrites(High), is(0));
+	}
+
+	private Future<Void> write(final PriorityWriteScheduler clientUnderTest, final Priority priority) {
+		return executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				clientUnderTest.execute(operations(priority));
+				return null;
+			}
+		});
+	}
+
+	private static void awaitQueued(PriorityWriteScheduler clientUnderTest, Priority priority, int writes)
+		throws InterruptedException {
+		long deadline = System.nanoTime() + SECONDS.toNanos(5);
+		while (clientUnderTest.getQueuedWrites(priority) < writes && System.nanoTime() < deadline) {
+			MILLISECONDS.sleep(1);
+		}
+	}
+
+	private static ExecuteOperations operations(Priority priority) {
+		return new ExecuteOperations(Collections.<ExecuteOperation>emptyList(), priority);
+	}
+}
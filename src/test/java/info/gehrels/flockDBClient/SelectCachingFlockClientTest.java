@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.base.Ticker;
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperationType;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.Page;
+import com.twitter.flockdb.thrift.Priority;
+import com.twitter.flockdb.thrift.QueryTerm;
+import com.twitter.flockdb.thrift.Results;
+import com.twitter.flockdb.thrift.SelectQuery;
+import org.apache.thrift.TException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static info.gehrels.flockDBClient.ByteHelper.asByteBuffer;
+import static info.gehrels.flockDBClient.Direction.OUTGOING;
+import static info.gehrels.flockDBClient.SelectionQuery.simpleSelection;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class SelectCachingFlockClientTest {
+	private static final int GRAPH_ID = 2;
+	private static final int SHORT_LIVED_GRAPH_ID = 3;
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final FakeTicker ticker = new FakeTicker();
+	private final List<List<SelectQuery>> sentQueries = new ArrayList<>();
+	private final SelectCachingFlockClient clientUnderTest;
+	private Runnable duringSelect;
+
+	public SelectCachingFlockClientTest() throws TException, FlockException {
+		Map<Integer, Long> ttlNanosByGraph = new HashMap<>();
+		ttlNanosByGraph.put(SHORT_LIVED_GRAPH_ID, SECONDS.toNanos(1));
+		clientUnderTest =
+			new SelectCachingFlockClient(backingFlockMock, 1 << 20, SECONDS.toNanos(60), ttlNanosByGraph, ticker);
+
+		doAnswer(new Answer<List<Results>>() {
+			@Override
+			public List<Results> answer(InvocationOnMock invocation) {
+				@SuppressWarnings("unchecked")
+				List<SelectQuery> queries = (List<SelectQuery>) invocation.getArguments()[0];
+				sentQueries.add(queries);
+				if (duringSelect != null) {
+					duringSelect.run();
+				}
+				List<Results> results = new ArrayList<>();
+				for (SelectQuery query : queries) {
+					long sourceId = query.getOperations().get(0).getTerm().getSource_id();
+					results.add(new Results(asByteBuffer(sourceId * 10, sourceId * 10 + 1), 0, -1));
+				}
+				return results;
+			}
+		}).when(backingFlockMock).select2(any(List.class));
+	}
+
+	@Test
+	public void answersIdenticalSelectionsFromTheCache() throws TException, FlockException {
+		List<Results> first = clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		List<Results> second = clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+
+		assertThat(sentQueries.size(), is(1));
+		assertThat(ids(second.get(0)), is(ids(first.get(0))));
+		assertThat(ids(second.get(0)), is(new long[]{10, 11}));
+	}
+
+	@Test
+	public void distinguishesPages() throws TException, FlockException {
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(new SelectQuery(query(1, GRAPH_ID).getOperations(), new Page(10, 77))));
+
+		assertThat(sentQueries.size(), is(2));
+	}
+
+	@Test
+	public void sendsOnlyTheQueriesMissingInTheCache() throws TException, FlockException {
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+
+		List<Results> results = clientUnderTest.select2(Arrays.asList(query(1, GRAPH_ID), query(2, GRAPH_ID)));
+
+		assertThat(sentQueries.get(1).size(), is(1));
+		assertThat(ids(results.get(0)), is(new long[]{10, 11}));
+		assertThat(ids(results.get(1)), is(new long[]{20, 21}));
+	}
+
+	@Test
+	public void expiresPagesAfterTheTimeToLiveOfTheirGraph() throws TException, FlockException {
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(1, SHORT_LIVED_GRAPH_ID)));
+
+		ticker.advance(SECONDS.toNanos(2));
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(1, SHORT_LIVED_GRAPH_ID)));
+
+		assertThat(sentQueries.size(), is(3));
+	}
+
+	@Test
+	public void executionsInvalidateThePagesOfTouchedSourceAndDestinationNodes() throws TException, FlockException {
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(5, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(7, GRAPH_ID)));
+
+		clientUnderTest.execute(execution(new QueryTerm(9, GRAPH_ID, false).setDestination_ids(asByteBuffer(1, 5))));
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(5, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(7, GRAPH_ID)));
+
+		assertThat(sentQueries.size(), is(5));
+	}
+
+	@Test
+	public void asynchronousExecutionsInvalidateThePagesOfTouchedNodes() throws TException, FlockException {
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+
+		clientUnderTest.executed(execution(new QueryTerm(1, GRAPH_ID, true).setDestination_ids(asByteBuffer(2))));
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+
+		assertThat(sentQueries.size(), is(2));
+	}
+
+	@Test
+	public void executionsOnAllEdgesOfANodeInvalidateTheirWholeGraph() throws TException, FlockException {
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(1, SHORT_LIVED_GRAPH_ID)));
+
+		clientUnderTest.execute(execution(new QueryTerm(9, GRAPH_ID, true)));
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+		clientUnderTest.select2(singletonList(query(1, SHORT_LIVED_GRAPH_ID)));
+
+		assertThat(sentQueries.size(), is(3));
+	}
+
+	@Test
+	public void doesNotKeepPagesSelectedWhileTheirNodesWereWritten() throws TException, FlockException {
+		duringSelect = new Runnable() {
+			@Override
+			public void run() {
+				duringSelect = null;
+				try {
+					clientUnderTest.execute(
+						execution(new QueryTerm(1, GRAPH_ID, true).setDestination_ids(asByteBuffer(2))));
+				} catch (TException | FlockException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+
+		clientUnderTest.select2(singletonList(query(1, GRAPH_ID)));
+
+		assertThat(sentQueries.size(), is(2));
+	}
+
+	private static SelectQuery query(long sourceId, int graphId) {
+		return new SelectQuery(simpleSelection(sourceId, graphId, OUTGOING).getSelectOperations(), new Page(10, -1));
+	}
+
+	private static ExecuteOperations execution(QueryTerm term) {
+		return new ExecuteOperations(singletonList(new ExecuteOperation(ExecuteOperationType.Add, term)),
+		                             Priority.High);
+	}
+
+	private static long[] ids(Results results) {
+		return ByteHelper.toLongArray(results.getIds());
+	}
+
+	private static final class FakeTicker extends Ticker {
+		private long nanos;
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+		void advance(long nanos) {
+			this.nanos += nanos;
+		}
+	}
+}
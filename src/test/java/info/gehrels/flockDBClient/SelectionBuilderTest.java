@@ -16,6 +16,8 @@
 
 package info.gehrels.flockDBClient;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.twitter.flockdb.thrift.FlockDB.Iface;
 import com.twitter.flockdb.thrift.FlockException;
 import com.twitter.flockdb.thrift.Results;
@@ -177,6 +179,26 @@ public class SelectionBuilderTest {
 		verifyResultStub(results);
 	}
 
+	@Test
+	public void delegatesAsyncExecutionToAsyncFlockClientAndReturnsResults() throws Exception {
+		AsyncFlockClient asyncFlockClientMock = mock(AsyncFlockClient.class);
+		doReturn(Futures.immediateFuture(resultStub)).when(asyncFlockClientMock).select2(any(List.class));
+
+		ListenableFuture<List<PagedNodeIdList>> results = new SelectionBuilder(flockClientMock, asyncFlockClientMock)
+			.select(ARBITRARY_SELECTION_QUERY_NO1)
+			.select(ARBITRARY_SELECTION_QUERY_NO2)
+			.executeAsync();
+
+		verify(asyncFlockClientMock).select2(queryListCaptor.capture());
+		assertThat(queryListCaptor.getValue().size(), is(2));
+		verifyResultStub(results.get());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesAsyncExecutionWithoutAsyncFlockClient() {
+		new SelectionBuilder(flockClientMock).select(ARBITRARY_SELECTION_QUERY_NO1).executeAsync();
+	}
+
 	private void verifyResultStub(List<PagedNodeIdList> results) {
 		assertThat(results,
 		           contains(
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.twitter.flockdb.thrift.ExecuteOperation;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import com.twitter.flockdb.thrift.QueryTerm;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Add;
+import static com.twitter.flockdb.thrift.Priority.Low;
+import static info.gehrels.flockDBClient.ByteHelper.asByteBufferOrNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class WriteBehindJournalTest {
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final List<Long> executedSourceIds = Collections.synchronizedList(new ArrayList<Long>());
+	private WriteBehindJournal journal;
+
+	@After
+	public void closeJournal() {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void sendsAppendedOperationsInTheBackground() throws Exception {
+		recordExecutions();
+		journal = new WriteBehindJournal(temporaryFolder.newFile(), 4096, backingFlockMock);
+
+		journal.append(operations(1, 2));
+		journal.append(operations(3));
+
+		awaitConfirmation();
+		assertThat(executedSourceIds, contains(1L, 2L, 3L));
+	}
+
+	@Test
+	public void resendsUnconfirmedOperationsAfterReopening() throws Exception {
+		File file = temporaryFolder.newFile();
+		doThrow(new TTransportException()).when(backingFlockMock).execute(any(ExecuteOperations.class));
+		journal = new WriteBehindJournal(file, 4096, backingFlockMock);
+		journal.append(operations(1));
+		journal.append(operations(2));
+		journal.close();
+
+		recordExecutions();
+		journal = new WriteBehindJournal(file, 4096, backingFlockMock);
+
+		awaitConfirmation();
+		assertThat(executedSourceIds, contains(1L, 2L));
+	}
+
+	@Test
+	public void doesNotResendConfirmedOperationsAfterReopening() throws Exception {
+		File file = temporaryFolder.newFile();
+		recordExecutions();
+		journal = new WriteBehindJournal(file, 4096, backingFlockMock);
+		journal.append(operations(1));
+		awaitConfirmation();
+		journal.close();
+
+		journal = new WriteBehindJournal(file, 4096, backingFlockMock);
+		journal.append(operations(2));
+
+		awaitConfirmation();
+		assertThat(executedSourceIds, contains(1L, 2L));
+	}
+
+	@Test
+	public void wrapsAroundTheEndOfTheJournal() throws Exception {
+		recordExecutions();
+		journal = new WriteBehindJournal(temporaryFolder.newFile(), 1024, backingFlockMock);
+
+		List<Long> expectedSourceIds = new ArrayList<>();
+		for (long sourceId = 0; sourceId < 100; sourceId++) {
+			journal.append(operations(sourceId));
+			expectedSourceIds.add(sourceId);
+			awaitConfirmation();
+		}
+
+		assertThat(executedSourceIds, is(expectedSourceIds));
+	}
+
+	@Test
+	public void retriesAfterRuntimeExceptions() throws Exception {
+		final AtomicBoolean failed = new AtomicBoolean();
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				if (failed.compareAndSet(false, true)) {
+					throw new IllegalStateException("broken connection");
+				}
+				for (ExecuteOperation operation : ((ExecuteOperations) invocation.getArguments()[0]).getOperations()) {
+					executedSourceIds.add(operation.getTerm().getSource_id());
+				}
+				return null;
+			}
+		}).when(backingFlockMock).execute(any(ExecuteOperations.class));
+		journal = new WriteBehindJournal(temporaryFolder.newFile(), 4096, backingFlockMock);
+
+		journal.append(operations(1));
+
+		awaitConfirmation();
+		journal.append(operations(2));
+		awaitConfirmation();
+		assertThat(executedSourceIds, contains(1L, 2L));
+	}
+
+	@Test
+	public void rejectsOperationsIfFull() throws Exception {
+		doThrow(new TTransportException()).when(backingFlockMock).execute(any(ExecuteOperations.class));
+		journal = new WriteBehindJournal(temporaryFolder.newFile(), 1024, backingFlockMock);
+
+		try {
+			for (int i = 0; i < 100; i++) {
+				journal.append(operations(i));
+			}
+			fail();
+		} catch (FlockDBException e) {
+			assertThat(e.getCause() instanceof IOException, is(true));
+		}
+	}
+
+	@Test
+	public void dropsOnlyOperationsRejectedByFlockDB() throws Exception {
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws FlockException {
+				ExecuteOperations operations = (ExecuteOperations) invocation.getArguments()[0];
+				for (ExecuteOperation operation : operations.getOperations()) {
+					if (operation.getTerm().getSource_id() == 2) {
+						throw new FlockException("rejected");
+					}
+				}
+				for (ExecuteOperation operation : operations.getOperations()) {
+					executedSourceIds.add(operation.getTerm().getSource_id());
+				}
+				return null;
+			}
+		}).when(backingFlockMock).execute(any(ExecuteOperations.class));
+		journal = new WriteBehindJournal(temporaryFolder.newFile(), 4096, backingFlockMock);
+		journal.append(operations(1));
+		journal.append(operations(2));
+		journal.append(operations(3));
+
+		awaitConfirmation();
+		assertThat(executedSourceIds.contains(1L) && executedSourceIds.contains(3L), is(true));
+		assertThat(journal.getDroppedEntries(), is(1L));
+	}
+
+	private void awaitConfirmation() throws InterruptedException {
+		long deadline = System.nanoTime() + SECONDS.toNanos(5);
+		while (journal.getPendingBytes() > 0 && System.nanoTime() < deadline) {
+			MILLISECONDS.sleep(1);
+		}
+		assertThat(journal.getPendingBytes(), is(0L));
+	}
+
+	private void recordExecutions() throws TException, FlockException {
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				for (ExecuteOperation operation : ((ExecuteOperations) invocation.getArguments()[0]).getOperations()) {
+					executedSourceIds.add(operation.getTerm().getSource_id());
+				}
+				return null;
+			}
+		}).when(backingFlockMock).execute(any(ExecuteOperations.class));
+	}
+
+	private static ExecuteOperations operations(long... sourceIds) {
+		List<ExecuteOperation> operations = new ArrayList<>();
+		for (long sourceId : sourceIds) {
+			operations.add(new ExecuteOperation(Add, new QueryTerm(sourceId, 2, true)
+				.setDestination_ids(asByteBufferOrNull(sourceId + 100))).setPosition(1));
+		}
+		return new ExecuteOperations(operations, Low);
+	}
+}
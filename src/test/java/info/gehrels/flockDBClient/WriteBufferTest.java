@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Benjamin Gehrels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.gehrels.flockDBClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.twitter.flockdb.thrift.ExecuteOperations;
+import com.twitter.flockdb.thrift.FlockDB.Iface;
+import com.twitter.flockdb.thrift.FlockException;
+import org.apache.thrift.TException;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.ExecutionException;
+
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Add;
+import static com.twitter.flockdb.thrift.ExecuteOperationType.Remove;
+import static com.twitter.flockdb.thrift.Priority.High;
+import static com.twitter.flockdb.thrift.Priority.Low;
+import static info.gehrels.flockDBClient.Direction.OUTGOING;
+import static info.gehrels.flockDBClient.ExecutionMatchers.anOperation;
+import static info.gehrels.flockDBClient.ExecutionMatchers.hasOperations;
+import static info.gehrels.flockDBClient.ExecutionMatchers.hasPriority;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withSourceId;
+import static info.gehrels.flockDBClient.ExecutionMatchers.withType;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class WriteBufferTest {
+	private final Iface backingFlockMock = mock(Iface.class);
+	private final ArgumentCaptor<ExecuteOperations> executeOperationsCapture =
+		ArgumentCaptor.forClass(ExecuteOperations.class);
+	private WriteBuffer writeBuffer;
+
+	@After
+	public void closeWriteBuffer() {
+		writeBuffer.close();
+	}
+
+	@Test
+	public void sendsFullBatchAsOneCall() throws Exception {
+		writeBuffer = new WriteBuffer(backingFlockMock, 3, SECONDS.toNanos(60));
+
+		writeBuffer.add(Low, 1, 2, 3, OUTGOING, 4);
+		writeBuffer.remove(Low, 5, 2, OUTGOING, 6);
+		ListenableFuture<Void> last = writeBuffer.add(Low, 7, 2, 3, OUTGOING, 8);
+		last.get(5, SECONDS);
+
+		verify(backingFlockMock).execute(executeOperationsCapture.capture());
+		assertThat(executeOperationsCapture.getValue(), allOf(
+			hasPriority(Low),
+			hasOperations(
+				anOperation(withType(Add), withSourceId(1)),
+				anOperation(withType(Remove), withSourceId(5)),
+				anOperation(withType(Add), withSourceId(7))
+			)
+		));
+	}
+
+	@Test
+	public void sendsIncompleteBatchAfterLingerTime() throws Exception {
+		writeBuffer = new WriteBuffer(backingFlockMock, 100, MILLISECONDS.toNanos(20));
+
+		writeBuffer.add(Low, 1, 2, 3, OUTGOING, 4).get(5, SECONDS);
+
+		verify(backingFlockMock, times(1)).execute(any(ExecuteOperations.class));
+	}
+
+	@Test
+	public void sendsOneBatchPerPriority() throws Exception {
+		writeBuffer = new WriteBuffer(backingFlockMock, 100, SECONDS.toNanos(60));
+
+		writeBuffer.add(Low, 1, 2, 3, OUTGOING, 4);
+		writeBuffer.negate(High, 5, 2, OUTGOING, 6);
+		writeBuffer.archive(Low, 7, 2, OUTGOING, 8);
+		verify(backingFlockMock, never()).execute(any(ExecuteOperations.class));
+		writeBuffer.flush();
+
+		verify(backingFlockMock, times(2)).execute(executeOperationsCapture.capture());
+		for (ExecuteOperations operations : executeOperationsCapture.getAllValues()) {
+			assertThat(operations.getOperations().size(), is(operations.getPriority() == Low ? 2 : 1));
+		}
+	}
+
+	@Test
+	public void failsFuturesOfFailedBatch() throws Exception {
+		writeBuffer = new WriteBuffer(backingFlockMock, 2, SECONDS.toNanos(60));
+		doThrow(new FlockException("error")).when(backingFlockMock).execute(any(ExecuteOperations.class));
+
+		ListenableFuture<Void> first = writeBuffer.add(Low, 1, 2, 3, OUTGOING, 4);
+		writeBuffer.add(Low, 5, 2, 3, OUTGOING, 6);
+
+		try {
+			first.get(5, SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertThat(e.getCause() instanceof FlockDBException, is(true));
+			assertThat(e.getCause().getCause() instanceof FlockException, is(true));
+		}
+	}
+
+	@Test
+	public void sendsBufferedOperationsOnClose() throws TException, FlockException {
+		writeBuffer = new WriteBuffer(backingFlockMock, 100, SECONDS.toNanos(60));
+		ListenableFuture<Void> operation = writeBuffer.add(Low, 1, 2, 3, OUTGOING, 4);
+
+		writeBuffer.close();
+
+		assertThat(operation.isDone(), is(true));
+		verify(backingFlockMock).execute(any(ExecuteOperations.class));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsOperationsAfterClose() {
+		writeBuffer = new WriteBuffer(backingFlockMock, 100, SECONDS.toNanos(60));
+		writeBuffer.close();
+
+		writeBuffer.add(Low, 1, 2, 3, OUTGOING, 4);
+	}
+}